@@ -1,40 +1,115 @@
 package cl.vsschile;
 
-import org.apache.poi.ss.usermodel.*;
-import org.apache.poi.xssf.usermodel.XSSFWorkbook;
-import org.apache.poi.hssf.usermodel.HSSFWorkbook;
-
 import java.io.*;
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Procesa TODOS los archivos de cotización y guarda sus colores individualmente
+ *
+ * Es una configuración de IngestionPipeline (detectar columnas, extraer
+ * vessel/IMO y persistir). En modo concurrente (--concurrent) la lectura usa
+ * tantos hilos como núcleos y la persistencia un hilo por conexión: el parseo
+ * (CPU) y el JDBC (red) se solapan, y la cantidad de conexiones acota la
+ * concurrencia contra la base de datos. Con --watch, después de la pasada
+ * inicial queda vigilando los directorios de brokers y guarda los archivos a
+ * medida que llegan.
+ *
+ * Cada contenido se parsea y guarda una sola vez: un archivo idéntico (mismo
+ * SHA-256) a uno ya guardado se registra en cotizaciones_archivos con
+ * duplicado_de apuntando al original, sin colores propios.
+ *
+ * El formato de cada archivo se reconoce por su contenido (BrokerClassifier,
+ * con las firmas de los formatos guardados): un archivo en el directorio de
+ * otro broker se parsea con su propio formato y se avisa.
+ *
+ * Con --bulk los archivos se guardan con escritura diferida (WriteBehindQueue):
+ * la etapa de persistir sólo los encola y los escritores los guardan por
+ * lotes, en una transacción por lote: los registros de todos con un upsert de varias
+ * filas y sus colores con un solo COPY a una tabla temporal que reemplaza
+ * los anteriores, en vez de varias consultas y un commit por archivo. Si el
+ * lote falla se guarda archivo por archivo con savepoints.
  */
 public class ArchivoColorSaver {
     
+    private static final int DEFAULT_DB_CONNECTIONS = 4;
+    
+    private static final int DEFAULT_BULK_SIZE = 200;
+    
+    private static final String COLOR_COLUMNS = 
+        "archivo_id, campo_estandar, nombre_columna_original, indice_columna, " +
+        "letra_columna, color_fondo, color_texto, es_negrita, es_cursiva, tiene_borde";
+    
+    /** Manifiesto de archivos ya guardados, dentro del directorio de brokers */
+    private static final String MANIFEST_FILE = ".manifest-colores.tsv";
+    
+    private final ConnectionPool pool;
+    private final BrokerRegistry brokers;
     private Connection conn;
     
+    /** Re-procesar todo, ignorando el manifiesto */
+    private boolean full;
+    
+    /** Seguir vigilando los directorios después de la pasada inicial */
+    private boolean watch;
+    
+    /** Archivos por lote de carga masiva (0 = uno a uno) */
+    private int bulkSize;
+    
+    // Progreso (compartido entre hilos en modo concurrente)
+    private final AtomicInteger processed = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final Object progressLock = new Object();
+    
     public ArchivoColorSaver(String dbHost, int dbPort, String dbName, String dbUser, String dbPassword) 
             throws SQLException {
-        String dbUrl = "jdbc:postgresql://" + dbHost + ":" + dbPort + "/" + dbName;
-        this.conn = DriverManager.getConnection(dbUrl, dbUser, dbPassword);
+        this.pool = ConnectionPool.get(dbHost, dbPort, dbName, dbUser, dbPassword);
+        this.brokers = BrokerRegistry.forPool(pool);
+        this.conn = pool.getConnection();
     }
     
     public static void main(String[] args) {
         if (args.length < 1) {
-            System.out.println("Uso: java ArchivoColorSaver <directorio-brokers> [db-password]");
+            System.out.println("Uso: java ArchivoColorSaver <directorio-brokers> [db-password] [--concurrent[=conexiones]] [--bulk[=archivos]] [--full] [--watch]");
             System.out.println("\nProcesa TODOS los archivos y guarda colores individuales");
             return;
         }
         
         String brokersPath = args[0];
-        String dbPassword = args.length > 1 ? args[1] : "";
+        String dbPassword = "";
+        int dbConnections = 0;
+        boolean full = false;
+        boolean watch = false;
+        int bulkSize = 0;
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals("--full")) {
+                full = true;
+            } else if (args[i].equals("--watch")) {
+                watch = true;
+            } else if (args[i].equals("--concurrent")) {
+                dbConnections = DEFAULT_DB_CONNECTIONS;
+            } else if (args[i].startsWith("--concurrent=")) {
+                dbConnections = Integer.parseInt(args[i].substring("--concurrent=".length()));
+            } else if (args[i].equals("--bulk")) {
+                bulkSize = DEFAULT_BULK_SIZE;
+            } else if (args[i].startsWith("--bulk=")) {
+                bulkSize = Integer.parseInt(args[i].substring("--bulk=".length()));
+            } else {
+                dbPassword = args[i];
+            }
+        }
         
         try {
             ArchivoColorSaver saver = new ArchivoColorSaver(
                 "localhost", 5432, "sistema_cotizacion_2025", "postgres", dbPassword
             );
+            saver.setFull(full);
+            saver.setWatch(watch);
+            saver.setBulkSize(bulkSize);
             
             System.out.println("==============================================");
             System.out.println("  PROCESAR ARCHIVOS CON COLORES");
@@ -46,7 +121,12 @@ public class ArchivoColorSaver {
                 return;
             }
             
-            saver.processAllBrokers(brokersDir);
+            if (dbConnections > 0) {
+                saver.processAllBrokers(brokersDir,
+                    Runtime.getRuntime().availableProcessors(), dbConnections);
+            } else {
+                saver.processAllBrokers(brokersDir);
+            }
             saver.printSummary();
             
             saver.close();
@@ -57,133 +137,582 @@ public class ArchivoColorSaver {
         }
     }
     
+    public void setFull(boolean full) {
+        this.full = full;
+    }
+    
+    public void setWatch(boolean watch) {
+        this.watch = watch;
+    }
+    
+    public void setBulkSize(int bulkSize) {
+        this.bulkSize = bulkSize;
+    }
+    
     public void processAllBrokers(File brokersDir) throws Exception {
-        File[] brokerDirs = brokersDir.listFiles();
-        if (brokerDirs == null) return;
+        processAllBrokers(brokersDir, 1, 1);
+    }
+    
+    /**
+     * Procesa los archivos con parseThreads hilos de lectura y dbConnections
+     * hilos de escritura, cada uno con una conexión del pool
+     */
+    public void processAllBrokers(File brokersDir, int parseThreads, int dbConnections) throws Exception {
+        processed.set(0);
+        failed.set(0);
         
-        int totalFiles = 0;
-        int processed = 0;
+        // Las de escritura más la principal
+        pool.ensureMaxSize(dbConnections + 1);
+        System.out.println("Brokers registrados: " + brokers.size());
         
-        for (File brokerDir : brokerDirs) {
-            if (brokerDir.isDirectory()) {
-                String brokerName = brokerDir.getName();
-                System.out.println("\n▶ Procesando broker: " + brokerName);
-                
-                int brokerId = getOrCreateBroker(brokerName);
+        // Originales ya guardados por hash de contenido (en modo completo se vuelven a parsear)
+        final ConcurrentMap<String, Integer> originals = full 
+            ? new ConcurrentHashMap<String, Integer>() : loadOriginals();
+        
+        if (parseThreads > 1 || dbConnections > 1) {
+            System.out.println("Modo concurrente: " + parseThreads + " hilos de lectura, " 
+                + dbConnections + " conexiones");
+        }
+        
+        // Sólo se guardan archivos nuevos o modificados desde la última ejecución
+        ProcessingManifest manifest = ProcessingManifest.load(new File(brokersDir, MANIFEST_FILE), brokersDir);
+        manifest.setFull(full);
+        
+        BrokerClassifier classifier = BrokerClassifier.load(conn);
+        System.out.println("Firmas de formato: " + classifier.getSignatures().size());
+        
+        IngestionPipeline pipeline = new IngestionPipeline()
+            .detectColumns()
+            .extractQuotationInfo()
+            .manifest(manifest)
+            .classifier(classifier)
+            .contentIndex(new IngestionPipeline.ContentIndex() {
+                public String lookup(String contentHash) {
+                    Integer archivoId = originals.get(contentHash);
+                    return archivoId != null ? archivoId.toString() : null;
+                }
+            })
+            .readWorkers(parseThreads)
+            .detectWorkers(parseThreads)
+            .listener(new IngestionPipeline.Listener() {
+                @Override
+                public void brokerDiscovered(String brokerName, int fileCount) throws Exception {
+                    synchronized (progressLock) {
+                        System.out.println("\n▶ Procesando broker: " + brokerName);
+                        System.out.println("  Archivos encontrados: " + fileCount);
+                    }
+                    // Crea los brokers nuevos antes de que sus archivos lleguen a la escritura
+                    brokers.getId(brokerName);
+                }
                 
-                File[] files = brokerDir.listFiles(new FilenameFilter() {
-                    public boolean accept(File dir, String name) {
-                        String lower = name.toLowerCase();
-                        return lower.endsWith(".xlsx") || lower.endsWith(".xls");
+                @Override
+                public void completed(IngestionPipeline.Item item) {
+                    if (!item.formatBroker.equals(item.brokerName)) {
+                        synchronized (progressLock) {
+                            System.out.println("  ⚠ " + item.file.getName() + ": formato de " 
+                                + item.formatBroker + " en el directorio de " + item.brokerName);
+                        }
                     }
-                });
+                    markProcessed();
+                }
                 
-                if (files != null) {
-                    totalFiles += files.length;
-                    System.out.println("  Archivos encontrados: " + files.length);
-                    
-                    for (File file : files) {
-                        try {
-                            processFile(file, brokerId, brokerName);
-                            processed++;
-                            System.out.print(".");
-                            if (processed % 50 == 0) System.out.println();
-                        } catch (Exception e) {
-                            System.err.println("\n  Error en " + file.getName() + ": " + e.getMessage());
+                @Override
+                public void failed(IngestionPipeline.Item item, String stageName, Exception e) {
+                    reportError(item.file, e);
+                }
+            });
+        
+        // Con --bulk los archivos se guardan con escritura diferida: la etapa sólo
+        // los encola y los escritores los agrupan en lotes de bulkSize
+        final WriteBehindQueue writeQueue = bulkSize > 0 ? new WriteBehindQueue(pool)
+            .writers(dbConnections)
+            .batchSize(bulkSize)
+            .capacity(bulkSize * dbConnections * 2) : null;
+        if (writeQueue != null) {
+            System.out.println("Carga masiva: lotes de " + bulkSize + " archivos");
+            final WriteBehindQueue.Writer<IngestionPipeline.Item> archivos = 
+                    new WriteBehindQueue.Writer<IngestionPipeline.Item>() {
+                public Map<IngestionPipeline.Item, Exception> write(Connection c, List<IngestionPipeline.Item> items) 
+                        throws Exception {
+                    return saveBatch(c, items, originals);
+                }
+            };
+            pipeline.persistAsync(new IngestionPipeline.AsyncStage() {
+                public CompletableFuture<?> process(IngestionPipeline.Item item) throws Exception {
+                    // Sin columnas detectadas: se cuenta como procesado sin guardar
+                    if (item.duplicateOf == null && !item.mapping.isValid()) {
+                        return CompletableFuture.completedFuture(item);
+                    }
+                    return writeQueue.submit(archivos, item);
+                }
+            }, 1);
+        } else {
+            pipeline.persist(new IngestionPipeline.Stage() {
+                public boolean process(IngestionPipeline.Item item) throws Exception {
+                    // Sin columnas detectadas: se cuenta como procesado sin guardar
+                    if (item.duplicateOf == null && !item.mapping.isValid()) {
+                        return true;
+                    }
+                    Connection c = pool.getConnection();
+                    try {
+                        int brokerId = brokers.getId(item.brokerName);
+                        if (item.duplicateOf != null) {
+                            saveDuplicate(c, brokerId, item, Integer.parseInt(item.duplicateOf));
+                        } else {
+                            originals.putIfAbsent(item.contentHash, saveParsedFile(c, brokerId, item));
                         }
+                    } finally {
+                        c.close();
                     }
-                    System.out.println();
+                    return true;
                 }
-            }
+            }, dbConnections);
         }
         
-        System.out.println("\n✓ Procesados: " + processed + " de " + totalFiles + " archivos");
+        // El watcher se crea antes de la pasada inicial para no perder archivos que lleguen durante ella
+        BrokerDirectoryWatcher watcher = watch 
+            ? new BrokerDirectoryWatcher(brokersDir, BrokerDirectoryWatcher.DEFAULT_QUIET_MILLIS) : null;
+        
+        try {
+            printResult(pipeline.run(brokersDir));
+            
+            if (watcher != null) {
+                manifest.setFull(false);
+                watchDirectory(brokersDir, watcher, pipeline);
+            }
+        } finally {
+            if (watcher != null) {
+                watcher.close();
+            }
+            if (writeQueue != null) {
+                writeQueue.close();
+                System.out.println(writeQueue.getStats());
+            }
+        }
     }
     
-    private void processFile(File file, int brokerId, String brokerName) throws Exception {
-        // Detectar columnas y colores
-        ColumnDetector.ColumnMapping mapping = detectColumnsFromFile(file, brokerName);
-        
-        if (!mapping.isValid()) {
-            return;
+    /**
+     * Modo daemon: guarda los archivos nuevos o modificados a medida que llegan
+     */
+    private void watchDirectory(File brokersDir, BrokerDirectoryWatcher watcher, 
+                                final IngestionPipeline pipeline) throws InterruptedException {
+        System.out.println("\nVigilando " + brokersDir.getAbsolutePath() + " (Ctrl+C para terminar)");
+        watcher.run(new BrokerDirectoryWatcher.BatchHandler() {
+            public void filesReady(List<File> files) throws Exception {
+                processed.set(0);
+                failed.set(0);
+                printResult(pipeline.run(files));
+            }
+        });
+    }
+    
+    private void printResult(IngestionPipeline.Result result) {
+        System.out.println("\n✓ Procesados: " + processed.get() + " de " + result.discovered + " archivos"
+            + (failed.get() > 0 ? " (" + failed.get() + " con error)" : ""));
+        if (result.unchanged > 0) {
+            System.out.println("  Sin cambios desde la ejecución anterior: " + result.unchanged);
         }
-        
-        // Extraer información del vessel/IMO si existe
-        QuotationInfo quotInfo = extractQuotationInfo(file, brokerName);
-        
+        if (result.duplicates > 0) {
+            System.out.println("  Duplicados de archivos ya guardados: " + result.duplicates);
+        }
+    }
+    
+    /**
+     * Hash de contenido → archivo_id de los originales ya guardados
+     */
+    private ConcurrentMap<String, Integer> loadOriginals() throws SQLException {
+        ConcurrentMap<String, Integer> originals = new ConcurrentHashMap<String, Integer>();
+        Statement st = conn.createStatement();
+        try {
+            ResultSet rs = st.executeQuery(
+                "SELECT content_hash, archivo_id FROM cotizaciones_archivos " +
+                "WHERE content_hash IS NOT NULL AND duplicado_de IS NULL"
+            );
+            while (rs.next()) {
+                originals.putIfAbsent(rs.getString(1), rs.getInt(2));
+            }
+            rs.close();
+        } finally {
+            st.close();
+        }
+        return originals;
+    }
+    
+    /**
+     * Guarda el archivo y sus colores; retorna su archivo_id
+     */
+    private int saveParsedFile(Connection conn, int brokerId, IngestionPipeline.Item item) 
+            throws SQLException {
         // Guardar archivo en BD
-        int archivoId = saveArchivo(brokerId, file.getName(), quotInfo);
+        int archivoId = saveArchivo(conn, brokerId, item.file.getName(), item.contentHash, 
+            null, item.quotationInfo);
         
         // Guardar colores del archivo
-        saveColores(archivoId, mapping);
+        saveColores(conn, archivoId, item.mapping);
+        return archivoId;
     }
     
-    private ColumnDetector.ColumnMapping detectColumnsFromFile(File file, String brokerName) 
-            throws Exception {
-        FileInputStream fis = new FileInputStream(file);
-        Workbook workbook = null;
+    /**
+     * Registro de cotizaciones_archivos de un lote (broker + nombre de
+     * archivo); si el lote trae el mismo archivo dos veces vale el último
+     */
+    private static class ArchivoRow {
+        final int brokerId;
+        final List<IngestionPipeline.Item> items = new ArrayList<IngestionPipeline.Item>();
+        IngestionPipeline.Item item;
+        int archivoId;
         
+        ArchivoRow(int brokerId) {
+            this.brokerId = brokerId;
+        }
+        
+        Integer duplicadoDe() {
+            return item.duplicateOf != null ? Integer.valueOf(item.duplicateOf) : null;
+        }
+    }
+    
+    /**
+     * Guarda un lote en una sola transacción: los registros de todos los
+     * archivos con un upsert de varias filas (upsertArchivos) y sus colores
+     * con un solo reemplazo (replaceColores), y un commit por lote.
+     * Si algo falla se deshace y el lote se guarda archivo por archivo, cada
+     * uno con su savepoint, para que un archivo malo sólo falle él.
+     * Retorna los que fallaron.
+     */
+    private Map<IngestionPipeline.Item, Exception> saveBatch(Connection conn, List<IngestionPipeline.Item> items,
+                                                            ConcurrentMap<String, Integer> originals) 
+            throws SQLException {
+        Map<IngestionPipeline.Item, Exception> failures = new HashMap<IngestionPipeline.Item, Exception>();
+        Map<String, ArchivoRow> rows = new LinkedHashMap<String, ArchivoRow>();
+        
+        for (IngestionPipeline.Item item : items) {
+            int brokerId;
+            try {
+                brokerId = brokers.getId(item.brokerName);
+            } catch (SQLException e) {
+                failures.put(item, e);
+                continue;
+            }
+            String key = archivoKey(brokerId, item.file.getName());
+            ArchivoRow row = rows.get(key);
+            if (row == null) {
+                row = new ArchivoRow(brokerId);
+                rows.put(key, row);
+            }
+            row.item = item;
+            row.items.add(item);
+        }
+        if (rows.isEmpty()) {
+            return failures;
+        }
+        
+        boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
         try {
-            if (file.getName().toLowerCase().endsWith(".xlsx")) {
-                workbook = new XSSFWorkbook(fis);
-            } else {
-                workbook = new HSSFWorkbook(fis);
+            try {
+                upsertArchivos(conn, rows);
+                replaceColores(conn, rows.values());
+            } catch (SQLException e) {
+                conn.rollback();
+                saveEach(conn, rows.values(), failures);
             }
-            
-            Sheet sheet = workbook.getSheetAt(0);
-            return ColumnDetector.detectColumns(sheet, brokerName);
-            
+            conn.commit();
+        } catch (SQLException e) {
+            try {
+                conn.rollback();
+            } catch (SQLException ex) {
+                // Ignorar
+            }
+            throw e;
         } finally {
-            if (workbook != null) {
-                workbook.close();
+            conn.setAutoCommit(autoCommit);
+        }
+        
+        for (ArchivoRow row : rows.values()) {
+            if (row.archivoId > 0 && row.item.duplicateOf == null) {
+                for (IngestionPipeline.Item item : row.items) {
+                    originals.putIfAbsent(item.contentHash, row.archivoId);
+                }
             }
-            fis.close();
         }
+        return failures;
     }
     
-    private QuotationInfo extractQuotationInfo(File file, String brokerName) throws Exception {
-        // Aquí podrías reutilizar la lógica de CotizacionOrganizer
-        // Por ahora solo retornamos info básica
-        QuotationInfo info = new QuotationInfo();
-        info.nombreArchivo = file.getName();
-        return info;
+    private static String archivoKey(int brokerId, String nombreArchivo) {
+        return brokerId + "/" + nombreArchivo;
     }
     
-    private int getOrCreateBroker(String brokerName) throws SQLException {
+    /**
+     * Crea o actualiza los registros de todos los archivos del lote con un
+     * solo INSERT ... ON CONFLICT sobre uk_broker_archivo (broker_id, nombre_archivo)
+     */
+    private void upsertArchivos(Connection conn, Map<String, ArchivoRow> rows) throws SQLException {
+        Map<Integer, QuotationInfo> originalInfo = loadDuplicateInfo(conn, rows.values());
+        
+        int n = rows.size();
+        Integer[] brokerIds = new Integer[n];
+        String[] nombres = new String[n];
+        String[] vessels = new String[n];
+        String[] imos = new String[n];
+        String[] hashes = new String[n];
+        Integer[] duplicados = new Integer[n];
+        int i = 0;
+        for (ArchivoRow row : rows.values()) {
+            QuotationInfo info = row.item.quotationInfo;
+            // Un duplicado sin datos propios toma los del original, como saveDuplicate
+            if (info == null && row.item.duplicateOf != null) {
+                info = originalInfo.get(row.duplicadoDe());
+            }
+            brokerIds[i] = row.brokerId;
+            nombres[i] = row.item.file.getName();
+            vessels[i] = info != null ? info.vesselName : null;
+            imos[i] = info != null ? info.imoNumber : null;
+            hashes[i] = row.item.contentHash;
+            duplicados[i] = row.duplicadoDe();
+            i++;
+        }
+        
         PreparedStatement ps = null;
         ResultSet rs = null;
-        
         try {
-            // Intentar obtener
-            ps = conn.prepareStatement("SELECT broker_id FROM brokers WHERE broker_name = ?");
-            ps.setString(1, brokerName);
-            rs = ps.executeQuery();
-            
-            if (rs.next()) {
-                return rs.getInt("broker_id");
-            }
-            
-            // Crear si no existe
             ps = conn.prepareStatement(
-                "INSERT INTO brokers (broker_name) VALUES (?) RETURNING broker_id"
+                "INSERT INTO cotizaciones_archivos " +
+                "(broker_id, nombre_archivo, vessel_name, imo_number, content_hash, duplicado_de) " +
+                "SELECT * FROM unnest(?, ?, ?, ?, ?, ?) " +
+                "ON CONFLICT (broker_id, nombre_archivo) DO UPDATE " +
+                "SET vessel_name = EXCLUDED.vessel_name, imo_number = EXCLUDED.imo_number, " +
+                "content_hash = EXCLUDED.content_hash, duplicado_de = EXCLUDED.duplicado_de, " +
+                "fecha_procesado = CURRENT_TIMESTAMP " +
+                "RETURNING archivo_id, broker_id, nombre_archivo"
             );
-            ps.setString(1, brokerName);
+            ps.setArray(1, conn.createArrayOf("int4", brokerIds));
+            ps.setArray(2, conn.createArrayOf("text", nombres));
+            ps.setArray(3, conn.createArrayOf("text", vessels));
+            ps.setArray(4, conn.createArrayOf("text", imos));
+            ps.setArray(5, conn.createArrayOf("text", hashes));
+            ps.setArray(6, conn.createArrayOf("int4", duplicados));
             rs = ps.executeQuery();
             
-            if (rs.next()) {
-                return rs.getInt(1);
+            int returned = 0;
+            while (rs.next()) {
+                ArchivoRow row = rows.get(archivoKey(rs.getInt(2), rs.getString(3)));
+                if (row != null) {
+                    row.archivoId = rs.getInt(1);
+                    returned++;
+                }
+            }
+            if (returned != n) {
+                throw new SQLException("El upsert del lote retornó " + returned + " de " + n + " archivos");
+            }
+        } finally {
+            if (rs != null) rs.close();
+            if (ps != null) ps.close();
+        }
+    }
+    
+    /**
+     * Vessel e IMO de los originales de los duplicados que no traen los suyos
+     */
+    private Map<Integer, QuotationInfo> loadDuplicateInfo(Connection conn, Collection<ArchivoRow> rows) 
+            throws SQLException {
+        Set<Integer> ids = new HashSet<Integer>();
+        for (ArchivoRow row : rows) {
+            if (row.item.duplicateOf != null && row.item.quotationInfo == null) {
+                ids.add(row.duplicadoDe());
+            }
+        }
+        Map<Integer, QuotationInfo> infos = new HashMap<Integer, QuotationInfo>();
+        if (ids.isEmpty()) {
+            return infos;
+        }
+        
+        PreparedStatement ps = conn.prepareStatement(
+            "SELECT archivo_id, vessel_name, imo_number FROM cotizaciones_archivos WHERE archivo_id = ANY (?)"
+        );
+        try {
+            ps.setArray(1, conn.createArrayOf("int4", ids.toArray(new Integer[0])));
+            ResultSet rs = ps.executeQuery();
+            while (rs.next()) {
+                QuotationInfo info = new QuotationInfo();
+                info.vesselName = rs.getString(2);
+                info.imoNumber = rs.getString(3);
+                infos.put(rs.getInt(1), info);
+            }
+            rs.close();
+        } finally {
+            ps.close();
+        }
+        return infos;
+    }
+    
+    /**
+     * Reemplaza los colores de los archivos del lote: las filas de los
+     * originales se cargan con un solo COPY en una tabla temporal y pasan a
+     * archivo_colores con un DELETE de todo el lote (los duplicados quedan
+     * sin colores, como en saveArchivo) y un INSERT ... SELECT.
+     * No hace commit: corre en la transacción del lote.
+     */
+    private void replaceColores(Connection conn, Collection<ArchivoRow> rows) throws SQLException {
+        Integer[] ids = new Integer[rows.size()];
+        boolean hasColores = false;
+        int i = 0;
+        for (ArchivoRow row : rows) {
+            ids[i++] = row.archivoId;
+            hasColores |= row.item.duplicateOf == null;
+        }
+        
+        Statement st = conn.createStatement();
+        PreparedStatement ps = null;
+        CopyWriter copy = null;
+        try {
+            if (hasColores) {
+                // Temporal de la sesión (la conexión vuelve al pool con ella); se vacía en cada commit
+                st.execute(
+                    "CREATE TEMP TABLE IF NOT EXISTS stage_archivo_colores ON COMMIT DELETE ROWS AS " +
+                    "SELECT " + COLOR_COLUMNS + " FROM archivo_colores WITH NO DATA"
+                );
+                
+                copy = CopyWriter.open(conn, "stage_archivo_colores", COLOR_COLUMNS);
+                for (ArchivoRow row : rows) {
+                    if (row.item.duplicateOf == null) {
+                        writeColores(copy, row.archivoId, row.item.mapping);
+                    }
+                }
+                copy.finish();
+                copy = null;
             }
             
-            throw new SQLException("No se pudo crear broker");
+            ps = conn.prepareStatement("DELETE FROM archivo_colores WHERE archivo_id = ANY (?)");
+            ps.setArray(1, conn.createArrayOf("int4", ids));
+            ps.executeUpdate();
             
+            if (hasColores) {
+                st.executeUpdate(
+                    "INSERT INTO archivo_colores (" + COLOR_COLUMNS + ") " +
+                    "SELECT " + COLOR_COLUMNS + " FROM stage_archivo_colores"
+                );
+            }
+        } catch (SQLException e) {
+            if (copy != null) {
+                copy.cancel();
+            }
+            throw e;
         } finally {
-            if (rs != null) rs.close();
             if (ps != null) ps.close();
+            st.close();
         }
     }
     
-    private int saveArchivo(int brokerId, String nombreArchivo, QuotationInfo info) 
+    /**
+     * Guarda los archivos del lote uno a uno, cada uno con su savepoint
+     * (sin commit: corre en la transacción del lote)
+     */
+    private void saveEach(Connection conn, Collection<ArchivoRow> rows, 
+                          Map<IngestionPipeline.Item, Exception> failures) throws SQLException {
+        for (ArchivoRow row : rows) {
+            Savepoint savepoint = conn.setSavepoint();
+            try {
+                if (row.item.duplicateOf != null) {
+                    saveDuplicate(conn, row.brokerId, row.item, row.duplicadoDe());
+                } else {
+                    row.archivoId = saveParsedFile(conn, row.brokerId, row.item);
+                }
+                conn.releaseSavepoint(savepoint);
+            } catch (SQLException e) {
+                conn.rollback(savepoint);
+                row.archivoId = 0;
+                for (IngestionPipeline.Item item : row.items) {
+                    failures.put(item, e);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Filas de archivo_colores de un archivo, en el orden de COLOR_COLUMNS
+     */
+    private void writeColores(CopyWriter copy, int archivoId, ColumnDetector.ColumnMapping mapping) 
+            throws SQLException {
+        for (Map.Entry<String, Integer> entry : mapping.columns.entrySet()) {
+            int indiceColumna = entry.getValue();
+            String nombreOriginal = indiceColumna < mapping.columnNames.size() ? 
+                mapping.columnNames.get(indiceColumna) : null;
+            CellStyleInfo styleInfo = mapping.columnStyles.get(indiceColumna);
+            if (styleInfo == null) {
+                styleInfo = CellStyleInfo.NONE;
+            }
+            
+            copy.number(archivoId)
+                .text(entry.getKey())
+                .text(nombreOriginal)
+                .number(indiceColumna)
+                .text(getColumnLetter(indiceColumna))
+                .text(styleInfo.backgroundColor)
+                .text(styleInfo.foregroundColor)
+                .bool(styleInfo.isBold)
+                .bool(styleInfo.isItalic)
+                .bool(styleInfo.hasBorder)
+                .endRow();
+        }
+    }
+    
+    /**
+     * Registra un archivo idéntico a otro ya guardado: fila propia con vessel/IMO
+     * del original y referencia a él, sin colores
+     */
+    private void saveDuplicate(Connection conn, int brokerId, IngestionPipeline.Item item, int originalId) 
             throws SQLException {
+        QuotationInfo info = item.quotationInfo;
+        if (info == null) {
+            info = new QuotationInfo();
+            PreparedStatement ps = conn.prepareStatement(
+                "SELECT vessel_name, imo_number FROM cotizaciones_archivos WHERE archivo_id = ?"
+            );
+            try {
+                ps.setInt(1, originalId);
+                ResultSet rs = ps.executeQuery();
+                if (rs.next()) {
+                    info.vesselName = rs.getString(1);
+                    info.imoNumber = rs.getString(2);
+                }
+                rs.close();
+            } finally {
+                ps.close();
+            }
+        }
+        
+        saveArchivo(conn, brokerId, item.file.getName(), item.contentHash, originalId, info);
+    }
+    
+    /**
+     * Imprime un punto por archivo y un salto de línea cada 50
+     */
+    private void printProgress(int count) {
+        synchronized (progressLock) {
+            System.out.print(".");
+            if (count % 50 == 0) System.out.println();
+        }
+    }
+    
+    /**
+     * Cuenta un archivo terminado; el conteo y el punto se hacen bajo el mismo
+     * lock para que los saltos de línea caigan cada 50 aunque haya varios hilos
+     */
+    private void markProcessed() {
+        synchronized (progressLock) {
+            printProgress(processed.incrementAndGet());
+        }
+    }
+    
+    private void reportError(File file, Exception e) {
+        failed.incrementAndGet();
+        synchronized (progressLock) {
+            System.err.println("\n  Error en " + file.getName() + ": " + e.getMessage());
+        }
+    }
+    
+    private int saveArchivo(Connection conn, int brokerId, String nombreArchivo, String contentHash,
+                            Integer duplicadoDe, QuotationInfo info) throws SQLException {
         PreparedStatement ps = null;
         ResultSet rs = null;
         
@@ -199,21 +728,39 @@ public class ArchivoColorSaver {
             
             if (rs.next()) {
                 int archivoId = rs.getInt("archivo_id");
+                rs.close();
+                ps.close();
                 // Eliminar colores antiguos
-                deleteColores(archivoId);
+                deleteColores(conn, archivoId);
+                
+                ps = conn.prepareStatement(
+                    "UPDATE cotizaciones_archivos " +
+                    "SET vessel_name = ?, imo_number = ?, content_hash = ?, duplicado_de = ?, " +
+                    "fecha_procesado = CURRENT_TIMESTAMP WHERE archivo_id = ?"
+                );
+                ps.setString(1, info.vesselName);
+                ps.setString(2, info.imoNumber);
+                ps.setString(3, contentHash);
+                setInteger(ps, 4, duplicadoDe);
+                ps.setInt(5, archivoId);
+                ps.executeUpdate();
                 return archivoId;
             }
+            rs.close();
+            ps.close();
             
             // Crear nuevo
             ps = conn.prepareStatement(
                 "INSERT INTO cotizaciones_archivos " +
-                "(broker_id, nombre_archivo, vessel_name, imo_number) " +
-                "VALUES (?, ?, ?, ?) RETURNING archivo_id"
+                "(broker_id, nombre_archivo, vessel_name, imo_number, content_hash, duplicado_de) " +
+                "VALUES (?, ?, ?, ?, ?, ?) RETURNING archivo_id"
             );
             ps.setInt(1, brokerId);
             ps.setString(2, nombreArchivo);
             ps.setString(3, info.vesselName);
             ps.setString(4, info.imoNumber);
+            ps.setString(5, contentHash);
+            setInteger(ps, 6, duplicadoDe);
             rs = ps.executeQuery();
             
             if (rs.next()) {
@@ -228,7 +775,15 @@ public class ArchivoColorSaver {
         }
     }
     
-    private void deleteColores(int archivoId) throws SQLException {
+    private static void setInteger(PreparedStatement ps, int index, Integer value) throws SQLException {
+        if (value != null) {
+            ps.setInt(index, value);
+        } else {
+            ps.setNull(index, Types.INTEGER);
+        }
+    }
+    
+    private void deleteColores(Connection conn, int archivoId) throws SQLException {
         PreparedStatement ps = null;
         try {
             ps = conn.prepareStatement("DELETE FROM archivo_colores WHERE archivo_id = ?");
@@ -239,7 +794,7 @@ public class ArchivoColorSaver {
         }
     }
     
-    private void saveColores(int archivoId, ColumnDetector.ColumnMapping mapping) 
+    private void saveColores(Connection conn, int archivoId, ColumnDetector.ColumnMapping mapping) 
             throws SQLException {
         PreparedStatement ps = null;
         
@@ -326,6 +881,8 @@ public class ArchivoColorSaver {
             if (rs != null) rs.close();
             if (stmt != null) stmt.close();
         }
+        
+        System.out.println("\n" + pool.getStats());
     }
     
     public void close() {
@@ -334,11 +891,6 @@ public class ArchivoColorSaver {
         } catch (SQLException e) {
             // Ignorar
         }
-    }
-    
-    private static class QuotationInfo {
-        String nombreArchivo;
-        String vesselName;
-        String imoNumber;
+        pool.close();
     }
 }
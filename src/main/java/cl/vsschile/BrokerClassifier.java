@@ -0,0 +1,293 @@
+package cl.vsschile;
+
+import org.apache.poi.ss.usermodel.*;
+
+import java.io.File;
+import java.sql.*;
+import java.util.*;
+
+/**
+ * Reconoce el broker de una cotización por su contenido, sin depender del
+ * directorio donde está el archivo.
+ *
+ * Cada broker tiene una firma aprendida de los formatos guardados en la base
+ * de datos: los textos de su fila de cabecera (formato_columnas) y las celdas
+ * de título de su metadata ("Document Title", "Company Name"). Todos los
+ * textos de todas las firmas forman un único HeaderMatcher, así que cada
+ * celda de la ventana se recorre una sola vez por fila candidata. La
+ * cabecera se busca hasta HEADER_WINDOW filas antes o después de la fila
+ * guardada, porque un archivo con una fila de título de más o de menos
+ * sigue siendo del mismo broker.
+ *
+ * No se usa la tabla de textos compartidos (sharedStrings / SST) como señal
+ * aparte: los textos de la cabecera ya se leen resueltos a través de ella, y
+ * la tabla completa sólo agrega textos de las filas de datos, que no
+ * distinguen brokers y cuyo tamaño crece con el archivo.
+ *
+ * Sólo mira las primeras getScanRows() filas de la primera hoja, por lo que
+ * la lectura se corta a los pocos KB y puede ejecutarse en cada archivo.
+ */
+public class BrokerClassifier {
+
+    /** Fracción mínima de la firma que debe encontrarse para aceptar un broker */
+    public static final double MIN_SCORE = 0.6;
+
+    /** Campos de metadata que se usan como celdas de título */
+    private static final String[] TITLE_FIELDS = {"Document Title", "Company Name"};
+
+    /** Filas antes y después de la fila de cabecera guardada en que se busca la cabecera */
+    public static final int HEADER_WINDOW = 3;
+
+    /** Columnas revisadas en cada fila de cabecera candidata */
+    private static final int MAX_COLUMNS = 30;
+
+    /**
+     * Firma de un broker
+     */
+    public static class Signature {
+        public final String brokerName;
+        /** Fila de la cabecera (0 = primera) */
+        public final int headerRow;
+        public final List<String> headerTexts = new ArrayList<String>();
+        /** Celdas de título: {fila, columna} y su texto */
+        public final List<int[]> titleCells = new ArrayList<int[]>();
+        public final List<String> titleTexts = new ArrayList<String>();
+
+        // Ids de los textos en el autómata del clasificador
+        int[] headerIds;
+        int[] titleIds;
+
+        public Signature(String brokerName, int headerRow) {
+            this.brokerName = brokerName;
+            this.headerRow = headerRow;
+        }
+
+        public void addHeader(String text) {
+            if (text != null && !text.trim().isEmpty() && !headerTexts.contains(text.trim())) {
+                headerTexts.add(text.trim());
+            }
+        }
+
+        public void addTitle(int row, int column, String text) {
+            if (text != null && !text.trim().isEmpty()) {
+                titleCells.add(new int[] {row, column});
+                titleTexts.add(text.trim());
+            }
+        }
+
+        int size() {
+            return headerTexts.size() + titleTexts.size();
+        }
+    }
+
+    /**
+     * Resultado de la clasificación
+     */
+    public static class Match {
+        public final String brokerName;
+        /** Fracción de la firma encontrada (0 a 1) */
+        public final double score;
+
+        Match(String brokerName, double score) {
+            this.brokerName = brokerName;
+            this.score = score;
+        }
+
+        public String toString() {
+            return String.format("%s (%.0f%%)", brokerName, score * 100);
+        }
+    }
+
+    private final List<Signature> signatures;
+    private final HeaderMatcher matcher;
+    private final int scanRows;
+
+    public BrokerClassifier(List<Signature> signatures) {
+        List<Signature> usable = new ArrayList<Signature>();
+        Map<String, Integer> ids = new LinkedHashMap<String, Integer>();
+        int rows = 1;
+
+        for (Signature signature : signatures) {
+            if (signature.size() == 0) continue;
+
+            signature.headerIds = idsOf(signature.headerTexts, ids);
+            signature.titleIds = idsOf(signature.titleTexts, ids);
+            if (!signature.headerTexts.isEmpty()) {
+                rows = Math.max(rows, signature.headerRow + HEADER_WINDOW + 1);
+            }
+            for (int[] cell : signature.titleCells) {
+                rows = Math.max(rows, cell[0] + 1);
+            }
+            usable.add(signature);
+        }
+
+        this.signatures = Collections.unmodifiableList(usable);
+        this.matcher = new HeaderMatcher(new ArrayList<String>(ids.keySet()));
+        this.scanRows = rows;
+    }
+
+    /**
+     * Aprende las firmas de los formatos activos de la base de datos
+     */
+    public static BrokerClassifier load(Connection conn) throws SQLException {
+        Map<String, Signature> byBroker = new LinkedHashMap<String, Signature>();
+
+        Statement stmt = conn.createStatement();
+        try {
+            ResultSet rs = stmt.executeQuery(
+                "SELECT broker_name, header_row, nombre_columna_original FROM v_columnas_detalladas");
+            while (rs.next()) {
+                String brokerName = rs.getString("broker_name");
+                Signature signature = byBroker.get(brokerName);
+                if (signature == null) {
+                    signature = new Signature(brokerName, rs.getInt("header_row"));
+                    byBroker.put(brokerName, signature);
+                }
+                signature.addHeader(rs.getString("nombre_columna_original"));
+            }
+            rs.close();
+        } finally {
+            stmt.close();
+        }
+
+        // Títulos: sólo para los formatos ya conocidos; sin tabla de metadata se usan sólo las cabeceras
+        PreparedStatement ps = null;
+        try {
+            ps = conn.prepareStatement(
+                "SELECT b.broker_name, bm.fila_origen, bm.columna_origen, bm.campo_valor " +
+                "FROM broker_metadata bm " +
+                "INNER JOIN broker_formatos bf ON bm.formato_id = bf.formato_id " +
+                "INNER JOIN brokers b ON bf.broker_id = b.broker_id " +
+                "WHERE bf.activo = TRUE AND b.activo = TRUE AND bm.campo_nombre IN (?, ?)");
+            ps.setString(1, TITLE_FIELDS[0]);
+            ps.setString(2, TITLE_FIELDS[1]);
+            ResultSet rs = ps.executeQuery();
+            while (rs.next()) {
+                Signature signature = byBroker.get(rs.getString("broker_name"));
+                if (signature != null) {
+                    signature.addTitle(rs.getInt("fila_origen"), rs.getInt("columna_origen"),
+                        rs.getString("campo_valor"));
+                }
+            }
+            rs.close();
+        } catch (SQLException e) {
+            System.err.println("⚠ Firmas sin títulos: " + e.getMessage());
+        } finally {
+            if (ps != null) {
+                ps.close();
+            }
+        }
+
+        return new BrokerClassifier(new ArrayList<Signature>(byBroker.values()));
+    }
+
+    public List<Signature> getSignatures() {
+        return signatures;
+    }
+
+    /**
+     * Filas (desde la primera) que necesita la clasificación
+     */
+    public int getScanRows() {
+        return scanRows;
+    }
+
+    /**
+     * Clasifica un archivo leyendo sólo su ventana de cabecera
+     */
+    public Match classify(File file) throws Exception {
+        Sheet sheet = HeaderWindowReader.readHeaderRows(file, scanRows);
+        try {
+            return classify(sheet);
+        } finally {
+            sheet.getWorkbook().close();
+        }
+    }
+
+    /**
+     * Broker cuya firma mejor calza con la hoja, o null si ninguno llega a MIN_SCORE
+     */
+    public Match classify(Sheet sheet) {
+        if (signatures.isEmpty()) {
+            return null;
+        }
+
+        CellValueDecoder decoder = CellValueDecoder.current();
+        HeaderMatcher.Hits hits = matcher.newHits();
+        // Textos que aparecen como celda completa en cada fila candidata
+        Map<Integer, boolean[]> rowTexts = new HashMap<Integer, boolean[]>();
+
+        Signature best = null;
+        double bestScore = 0;
+
+        for (Signature signature : signatures) {
+            int found = 0;
+
+            // La fila de la ventana que más textos de la cabecera contiene
+            if (signature.headerIds.length > 0) {
+                int first = Math.max(0, signature.headerRow - HEADER_WINDOW);
+                for (int r = first; r <= signature.headerRow + HEADER_WINDOW; r++) {
+                    boolean[] present = rowTexts.get(r);
+                    if (present == null) {
+                        present = textsInRow(sheet.getRow(r), decoder, hits);
+                        rowTexts.put(r, present);
+                    }
+                    int inRow = 0;
+                    for (int id : signature.headerIds) {
+                        if (present[id]) inRow++;
+                    }
+                    found = Math.max(found, inRow);
+                }
+            }
+
+            for (int i = 0; i < signature.titleIds.length; i++) {
+                int[] cell = signature.titleCells.get(i);
+                Row row = sheet.getRow(cell[0]);
+                if (row != null && matcher.scan(decoder.text(row.getCell(cell[1])), hits)
+                        .equals(signature.titleIds[i])) {
+                    found++;
+                }
+            }
+
+            double score = (double) found / signature.size();
+            if (score > bestScore) {
+                bestScore = score;
+                best = signature;
+            }
+        }
+
+        return best != null && bestScore >= MIN_SCORE ? new Match(best.brokerName, bestScore) : null;
+    }
+
+    private boolean[] textsInRow(Row row, CellValueDecoder decoder, HeaderMatcher.Hits hits) {
+        boolean[] present = new boolean[matcher.size()];
+        if (row == null) {
+            return present;
+        }
+        for (int i = 0; i < MAX_COLUMNS; i++) {
+            CharSequence text = decoder.text(row.getCell(i));
+            if (CellValueDecoder.isBlank(text) || !matcher.scan(text, hits).any()) continue;
+
+            for (int id = 0; id < present.length; id++) {
+                if (hits.equals(id)) {
+                    present[id] = true;
+                }
+            }
+        }
+        return present;
+    }
+
+    private static int[] idsOf(List<String> texts, Map<String, Integer> ids) {
+        int[] result = new int[texts.size()];
+        for (int i = 0; i < result.length; i++) {
+            String key = texts.get(i).toUpperCase();
+            Integer id = ids.get(key);
+            if (id == null) {
+                id = ids.size();
+                ids.put(key, id);
+            }
+            result[i] = id;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,215 @@
+package cl.vsschile;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Vigila el directorio de brokers y sus subdirectorios con WatchService y
+ * entrega en lotes los archivos Excel nuevos o modificados.
+ *
+ * Un archivo se entrega cuando pasó el período de calma sin eventos y su
+ * tamaño no cambió entre dos revisiones, para no leer archivos que todavía
+ * se están copiando. Los subdirectorios de brokers creados después del
+ * arranque se registran al aparecer (y sus archivos se entregan).
+ *
+ * Conviene crearlo antes de la pasada inicial sobre el árbol: los eventos de
+ * archivos que llegan durante esa pasada quedan en cola y se entregan después.
+ */
+public class BrokerDirectoryWatcher implements Closeable {
+
+    /** Período de calma por defecto antes de entregar un archivo */
+    public static final long DEFAULT_QUIET_MILLIS = 2000;
+
+    /** Intervalo de revisión de archivos pendientes */
+    private static final long TICK_MILLIS = 500;
+
+    /**
+     * Recibe los archivos listos para procesar
+     */
+    public interface BatchHandler {
+        void filesReady(List<File> files) throws Exception;
+    }
+
+    /**
+     * Archivo con eventos recientes, a la espera de quedar estable
+     */
+    private static class Pending {
+        long lastEvent;
+        long size;
+
+        Pending(long lastEvent, long size) {
+            this.lastEvent = lastEvent;
+            this.size = size;
+        }
+    }
+
+    private final Path brokersDir;
+    private final long quietMillis;
+    private final WatchService watchService;
+    private final Map<WatchKey, Path> watchedDirs = new HashMap<WatchKey, Path>();
+    private final Map<Path, Pending> pending = new LinkedHashMap<Path, Pending>();
+    private volatile boolean closed;
+
+    public BrokerDirectoryWatcher(File brokersDir, long quietMillis) throws IOException {
+        this.brokersDir = brokersDir.toPath().toAbsolutePath();
+        this.quietMillis = quietMillis;
+        this.watchService = FileSystems.getDefault().newWatchService();
+
+        register(this.brokersDir);
+        File[] brokerDirs = brokersDir.listFiles();
+        if (brokerDirs != null) {
+            for (File brokerDir : brokerDirs) {
+                if (brokerDir.isDirectory()) {
+                    register(brokerDir.toPath().toAbsolutePath());
+                }
+            }
+        }
+    }
+
+    /**
+     * Vigila hasta close() o interrupción del hilo, entregando cada lote al handler.
+     * Los errores del handler se informan y la vigilancia continúa.
+     */
+    public void run(BatchHandler handler) throws InterruptedException {
+        while (!closed) {
+            WatchKey key;
+            try {
+                key = watchService.poll(TICK_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (ClosedWatchServiceException e) {
+                return;
+            }
+
+            if (key != null) {
+                handleEvents(key);
+            }
+
+            List<File> ready = collectReady(System.currentTimeMillis());
+            if (!ready.isEmpty()) {
+                try {
+                    handler.filesReady(ready);
+                } catch (InterruptedException e) {
+                    throw e;
+                } catch (Exception e) {
+                    System.err.println("Error procesando lote de " + ready.size() + " archivos: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    public void close() throws IOException {
+        closed = true;
+        watchService.close();
+    }
+
+    private void register(Path dir) throws IOException {
+        WatchKey key = dir.register(watchService,
+            StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        watchedDirs.put(key, dir);
+    }
+
+    private void handleEvents(WatchKey key) {
+        Path dir = watchedDirs.get(key);
+        long now = System.currentTimeMillis();
+
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (dir == null) break;
+
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                // Se perdieron eventos: se revisa el directorio completo (el manifiesto filtra lo que no cambió)
+                if (dir.equals(brokersDir)) {
+                    File[] brokerDirs = dir.toFile().listFiles();
+                    if (brokerDirs != null) {
+                        for (File brokerDir : brokerDirs) {
+                            if (brokerDir.isDirectory()) addAll(brokerDir, now);
+                        }
+                    }
+                } else {
+                    addAll(dir.toFile(), now);
+                }
+                continue;
+            }
+
+            Path child = dir.resolve((Path) event.context());
+
+            if (dir.equals(brokersDir)) {
+                // Nuevo directorio de broker
+                if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(child)) {
+                    try {
+                        register(child);
+                        addAll(child.toFile(), now);
+                    } catch (IOException e) {
+                        System.err.println("No se pudo vigilar " + child + ": " + e.getMessage());
+                    }
+                }
+            } else if (isExcelFile(child)) {
+                touch(child, now);
+            }
+        }
+
+        if (!key.reset()) {
+            // El directorio ya no existe
+            watchedDirs.remove(key);
+        }
+    }
+
+    private void addAll(File brokerDir, long now) {
+        File[] files = brokerDir.listFiles(WorkbookLoader.EXCEL_FILES);
+        if (files != null) {
+            for (File file : files) {
+                touch(file.toPath(), now);
+            }
+        }
+    }
+
+    private void touch(Path file, long now) {
+        Pending entry = pending.get(file);
+        if (entry == null) {
+            pending.put(file, new Pending(now, file.toFile().length()));
+        } else {
+            entry.lastEvent = now;
+            entry.size = file.toFile().length();
+        }
+    }
+
+    /**
+     * Archivos sin eventos durante el período de calma y con tamaño estable
+     */
+    private List<File> collectReady(long now) {
+        List<File> ready = new ArrayList<File>();
+
+        Iterator<Map.Entry<Path, Pending>> it = pending.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Path, Pending> entry = it.next();
+            Pending state = entry.getValue();
+            File file = entry.getKey().toFile();
+
+            if (!file.exists()) {
+                it.remove();
+                continue;
+            }
+            if (now - state.lastEvent < quietMillis) {
+                continue;
+            }
+
+            long size = file.length();
+            if (size != state.size) {
+                // Sigue creciendo aunque no haya llegado evento: se espera otro período
+                state.size = size;
+                state.lastEvent = now;
+                continue;
+            }
+
+            ready.add(file);
+            it.remove();
+        }
+        return ready;
+    }
+
+    private static boolean isExcelFile(Path path) {
+        return WorkbookLoader.EXCEL_FILES.accept(path.getParent().toFile(), path.getFileName().toString());
+    }
+}
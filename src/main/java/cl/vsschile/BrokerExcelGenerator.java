@@ -16,8 +16,7 @@ public class BrokerExcelGenerator {
     
     public BrokerExcelGenerator(String dbHost, int dbPort, String dbName, String dbUser, String dbPassword) 
             throws SQLException {
-        String dbUrl = "jdbc:postgresql://" + dbHost + ":" + dbPort + "/" + dbName;
-        this.conn = DriverManager.getConnection(dbUrl, dbUser, dbPassword);
+        this.conn = ConnectionPool.get(dbHost, dbPort, dbName, dbUser, dbPassword).getConnection();
     }
     
     public static void main(String[] args) {
@@ -0,0 +1,589 @@
+package cl.vsschile;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Perfil de formato de un broker: fila y columnas de la cabecera, reglas de
+ * mapeo de columnas a campos estándar, celdas de metadata y anclas de
+ * vessel / IMO / número de cotización.
+ *
+ * Los perfiles se definen en broker-profiles.properties (o en el archivo de
+ * la propiedad de sistema broker.profiles) y se compilan una vez al primer
+ * uso. Los textos de todas las condiciones y palabras clave, de todos los
+ * perfiles, forman un único autómata (HeaderMatcher): cada celda se recorre
+ * una vez y las condiciones se evalúan sobre los textos encontrados.
+ */
+public class BrokerProfile {
+
+    /** Propiedad de sistema con la ruta de un archivo de perfiles alternativo */
+    public static final String PROFILES_PROPERTY = "broker.profiles";
+
+    /** Perfil usado por los brokers que no calzan con ningún otro */
+    public static final String DEFAULT_PROFILE = "default";
+
+    private static final String RESOURCE = "/broker-profiles.properties";
+
+    /**
+     * Condición sobre el texto de una celda (sin distinguir mayúsculas ni
+     * espacios extremos): alternativas (|) de conjunciones (&) de términos
+     * =igual, ~contiene, !no contiene. Los términos son ids del HeaderMatcher.
+     */
+    public static class Condition {
+        private final char[][] kinds;
+        private final int[][] ids;
+
+        Condition(char[][] kinds, int[][] ids) {
+            this.kinds = kinds;
+            this.ids = ids;
+        }
+
+        public boolean matches(HeaderMatcher.Hits hits) {
+            for (int a = 0; a < kinds.length; a++) {
+                if (matchesAll(a, hits)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean matchesAll(int alternative, HeaderMatcher.Hits hits) {
+            char[] termKinds = kinds[alternative];
+            int[] termIds = ids[alternative];
+            for (int t = 0; t < termKinds.length; t++) {
+                boolean ok;
+                switch (termKinds[t]) {
+                    case '=':
+                        ok = hits.equals(termIds[t]);
+                        break;
+                    case '~':
+                        ok = hits.contains(termIds[t]);
+                        break;
+                    default:
+                        ok = !hits.contains(termIds[t]);
+                }
+                if (!ok) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        static Condition parse(String spec, PatternTable patterns) {
+            String[] alternatives = spec.split("\\|");
+            char[][] kinds = new char[alternatives.length][];
+            int[][] ids = new int[alternatives.length][];
+
+            for (int a = 0; a < alternatives.length; a++) {
+                String[] terms = alternatives[a].split("&");
+                kinds[a] = new char[terms.length];
+                ids[a] = new int[terms.length];
+                for (int t = 0; t < terms.length; t++) {
+                    String term = terms[t].trim();
+                    if (term.length() < 2 || "=~!".indexOf(term.charAt(0)) < 0) {
+                        throw new IllegalArgumentException("Término inválido '" + term + "' en: " + spec);
+                    }
+                    kinds[a][t] = term.charAt(0);
+                    ids[a][t] = patterns.id(term.substring(1).trim());
+                }
+            }
+            return new Condition(kinds, ids);
+        }
+    }
+
+    /**
+     * Textos de las condiciones de todos los perfiles, con su id en el autómata
+     */
+    private static class PatternTable {
+        private final Map<String, Integer> ids = new LinkedHashMap<String, Integer>();
+
+        int id(String text) {
+            String key = text.toUpperCase();
+            Integer id = ids.get(key);
+            if (id == null) {
+                id = ids.size();
+                ids.put(key, id);
+            }
+            return id;
+        }
+
+        HeaderMatcher compile() {
+            return new HeaderMatcher(new ArrayList<String>(ids.keySet()));
+        }
+    }
+
+    /**
+     * Regla de mapeo: la columna cuyo texto cumple la condición es el campo indicado
+     */
+    public static class ColumnRule {
+        public final String field;
+        /** Sólo aplica si el campo todavía no está mapeado */
+        public final boolean ifAbsent;
+        public final Condition condition;
+
+        ColumnRule(String field, boolean ifAbsent, Condition condition) {
+            this.field = field;
+            this.ifAbsent = ifAbsent;
+            this.condition = condition;
+        }
+    }
+
+    /**
+     * Celda de metadata en una posición fija
+     */
+    public static class MetadataCell {
+        public final String section;
+        public final String field;
+        public final int row;
+        public final int column;
+
+        MetadataCell(String section, String field, int row, int column) {
+            this.section = section;
+            this.field = field;
+            this.row = row;
+            this.column = column;
+        }
+    }
+
+    /**
+     * Dónde encontrar un dato de cliente: en una celda fija, a la derecha de
+     * una etiqueta o en la primera celda con valor bajo una etiqueta
+     */
+    public static class Anchor {
+        public static final int CELL = 0;
+        public static final int RIGHT = 1;
+        public static final int BELOW = 2;
+
+        public final int kind;
+        /** Celda fija (CELL) */
+        public final int row;
+        public final int column;
+        /** Etiqueta y filas donde buscarla (RIGHT, BELOW) */
+        public final Condition label;
+        public final int firstRow;
+        public final int lastRow;
+        /** Filas bajo la etiqueta donde buscar el valor (BELOW) */
+        public final int depth;
+
+        Anchor(int kind, int row, int column, Condition label, int firstRow, int lastRow, int depth) {
+            this.kind = kind;
+            this.row = row;
+            this.column = column;
+            this.label = label;
+            this.firstRow = firstRow;
+            this.lastRow = lastRow;
+            this.depth = depth;
+        }
+
+        /**
+         * Filas (desde la primera) que hay que leer para resolverla
+         */
+        int scanRows() {
+            switch (kind) {
+                case CELL:
+                    return row + 1;
+                case BELOW:
+                    return lastRow + 1 + depth;
+                default:
+                    return lastRow + 1;
+            }
+        }
+
+        static Anchor parse(String spec, PatternTable patterns) {
+            String value = spec.trim();
+            if (value.startsWith("cell ")) {
+                int[] cell = parseCell(value.substring(5).trim());
+                return new Anchor(CELL, cell[0], cell[1], null, 0, 0, 0);
+            }
+
+            int kind;
+            if (value.startsWith("right ")) {
+                kind = RIGHT;
+            } else if (value.startsWith("below ")) {
+                kind = BELOW;
+            } else {
+                throw new IllegalArgumentException("Ancla inválida: " + spec);
+            }
+
+            int depth = 0;
+            int depthAt = value.lastIndexOf(" depth ");
+            if (kind == BELOW) {
+                if (depthAt < 0) {
+                    throw new IllegalArgumentException("Falta 'depth' en: " + spec);
+                }
+                depth = Integer.parseInt(value.substring(depthAt + 7).trim());
+                value = value.substring(0, depthAt);
+            }
+
+            int rowsAt = value.lastIndexOf(" rows ");
+            if (rowsAt < 0) {
+                throw new IllegalArgumentException("Falta 'rows' en: " + spec);
+            }
+            String[] range = value.substring(rowsAt + 6).trim().split("-");
+            int firstRow = Integer.parseInt(range[0].trim()) - 1;
+            int lastRow = Integer.parseInt(range[range.length - 1].trim()) - 1;
+            Condition label = Condition.parse(value.substring(6, rowsAt), patterns);
+            return new Anchor(kind, 0, 0, label, firstRow, lastRow, depth);
+        }
+    }
+
+    public final String name;
+    /** Texto que debe contener el nombre del broker (null en el perfil por defecto) */
+    public final String match;
+
+    /** Fila de la cabecera (0 = primera), o -1 para buscarla por palabras clave */
+    public final int headerRow;
+    /** Filas revisadas al buscar la cabecera */
+    public final int headerSearchRows;
+    /** Filas a cada lado de la fila fija donde se busca la cabecera si está desplazada */
+    public final int headerSearchRadius;
+    /** Palabras clave (ids del autómata) que puntúan una fila candidata a cabecera */
+    private final int[] headerKeywords;
+    /** Celdas no vacías mínimas de una fila candidata */
+    public final int headerMinCells;
+    public final int headerColumns;
+    public final boolean headerStyles;
+    /** Un nombre por columna revisada ("" si está vacía) en vez de sólo las celdas con texto */
+    public final boolean positionalNames;
+
+    public final List<ColumnRule> columnRules;
+    /** Campos distintos que pueden mapear las reglas */
+    public final int columnFields;
+    public final List<MetadataCell> metadata;
+    public final Anchor vessel;
+    public final Anchor imo;
+    public final Anchor quotation;
+
+    /** Firmas de cabeceras conocidas (header.signatures) */
+    private final Set<Long> headerSignatures;
+
+    /** Autómata compartido por todos los perfiles */
+    private HeaderMatcher matcher;
+
+    private BrokerProfile(String name, String match, int headerRow, int headerSearchRows, int headerSearchRadius,
+                          Collection<Long> headerSignatures, int[] headerKeywords,
+                          int headerMinCells, int headerColumns, boolean headerStyles, boolean positionalNames,
+                          List<ColumnRule> columnRules, List<MetadataCell> metadata,
+                          Anchor vessel, Anchor imo, Anchor quotation) {
+        this.name = name;
+        this.match = match;
+        this.headerRow = headerRow;
+        this.headerSearchRows = headerSearchRows;
+        this.headerSearchRadius = headerSearchRadius;
+        this.headerSignatures = Collections.unmodifiableSet(new HashSet<Long>(headerSignatures));
+        this.headerKeywords = headerKeywords;
+        this.headerMinCells = headerMinCells;
+        this.headerColumns = headerColumns;
+        this.headerStyles = headerStyles;
+        this.positionalNames = positionalNames;
+        this.columnRules = Collections.unmodifiableList(columnRules);
+        Set<String> fields = new HashSet<String>();
+        for (ColumnRule rule : columnRules) {
+            fields.add(rule.field);
+        }
+        this.columnFields = fields.size();
+        this.metadata = Collections.unmodifiableList(metadata);
+        this.vessel = vessel;
+        this.imo = imo;
+        this.quotation = quotation;
+    }
+
+    /**
+     * Filas que necesita la detección de columnas
+     */
+    public int getHeaderScanRows() {
+        return headerRow >= 0 ? headerRow + 1 + headerSearchRadius : headerSearchRows;
+    }
+
+    /**
+     * Filas que necesita la extracción de metadata
+     */
+    public int getMetadataScanRows() {
+        int rows = 1;
+        for (MetadataCell cell : metadata) {
+            rows = Math.max(rows, cell.row + 1);
+        }
+        return rows;
+    }
+
+    /**
+     * Filas que necesita la extracción de vessel / IMO / cotización
+     */
+    public int getInfoScanRows() {
+        int rows = 1;
+        for (Anchor anchor : new Anchor[] {vessel, imo, quotation}) {
+            if (anchor != null) {
+                rows = Math.max(rows, anchor.scanRows());
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Autómata con los textos de las condiciones; sus Hits son los que
+     * reciben mapColumn(), hasHeaderKeyword() y Condition.matches()
+     */
+    public HeaderMatcher getMatcher() {
+        return matcher;
+    }
+
+    /**
+     * True si la firma corresponde a una cabecera conocida del broker
+     */
+    public boolean isKnownHeader(long signature) {
+        return signature != 0 && headerSignatures.contains(signature);
+    }
+
+    /**
+     * True si la celda contiene alguna de las palabras clave de cabecera
+     */
+    public boolean hasHeaderKeyword(HeaderMatcher.Hits hits) {
+        for (int id : headerKeywords) {
+            if (hits.contains(id)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Campo estándar para la celda de cabecera ya recorrida por el autómata,
+     * o null. Las reglas ifAbsent consideran los campos ya mapeados en columns.
+     */
+    public String mapColumn(HeaderMatcher.Hits hits, Map<String, Integer> columns) {
+        for (ColumnRule rule : columnRules) {
+            if (rule.ifAbsent && columns.containsKey(rule.field)) {
+                continue;
+            }
+            if (rule.condition.matches(hits)) {
+                return rule.field;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Perfil que corresponde al nombre del directorio del broker
+     */
+    public static BrokerProfile forBroker(String brokerName) {
+        return Registry.INSTANCE.find(brokerName);
+    }
+
+    /**
+     * Compila los perfiles definidos en las propiedades; el primero de la
+     * lista es el perfil por defecto
+     */
+    public static List<BrokerProfile> compile(Properties properties) {
+        PatternTable patterns = new PatternTable();
+        List<BrokerProfile> profiles = new ArrayList<BrokerProfile>();
+        BrokerProfile defaultProfile = compile(properties, DEFAULT_PROFILE, null, patterns);
+        profiles.add(defaultProfile);
+
+        String names = properties.getProperty("profiles", "");
+        for (String name : names.split(",")) {
+            name = name.trim();
+            if (!name.isEmpty()) {
+                profiles.add(compile(properties, name, defaultProfile, patterns));
+            }
+        }
+
+        HeaderMatcher matcher = patterns.compile();
+        for (BrokerProfile profile : profiles) {
+            profile.matcher = matcher;
+        }
+        return profiles;
+    }
+
+    private static BrokerProfile compile(Properties properties, String name, BrokerProfile defaults,
+                                         PatternTable patterns) {
+        String prefix = name + ".";
+        try {
+            String match = properties.getProperty(prefix + "match");
+            if (defaults != null && match == null) {
+                throw new IllegalArgumentException("Falta " + prefix + "match");
+            }
+
+            String rowSpec = header(properties, prefix, "row", "auto");
+            int headerRow = rowSpec.equalsIgnoreCase("auto") ? -1 : Integer.parseInt(rowSpec) - 1;
+            int searchRows = Integer.parseInt(header(properties, prefix, "rows", "30"));
+            List<Long> signatures = new ArrayList<Long>();
+            for (String hex : splitList(header(properties, prefix, "signatures", ""))) {
+                signatures.add(Long.parseUnsignedLong(hex, 16));
+            }
+            // Sin firmas la fila esperada nunca calza sola y cada archivo revisaría las
+            // vecinas: el header.search del perfil por defecto sólo aplica con firmas
+            String searchSpec = properties.getProperty(prefix + "header.search");
+            if (searchSpec == null) {
+                searchSpec = signatures.isEmpty() ? "0" : header(properties, prefix, "search", "0");
+            }
+            int searchRadius = Integer.parseInt(searchSpec.trim());
+            String[] keywordTexts = splitList(header(properties, prefix, "keywords", ""));
+            int[] keywords = new int[keywordTexts.length];
+            for (int i = 0; i < keywords.length; i++) {
+                keywords[i] = patterns.id(keywordTexts[i]);
+            }
+            int minCells = Integer.parseInt(header(properties, prefix, "min", "1"));
+            int columns = Integer.parseInt(header(properties, prefix, "columns", "20"));
+            boolean styles = Boolean.parseBoolean(header(properties, prefix, "styles", "false"));
+            boolean positional = header(properties, prefix, "names", "nonblank").equalsIgnoreCase("positional");
+
+            List<ColumnRule> rules = new ArrayList<ColumnRule>();
+            for (String spec : numbered(properties, prefix + "column.")) {
+                int colon = spec.indexOf(':');
+                if (colon < 0) {
+                    throw new IllegalArgumentException("Regla sin ':' : " + spec);
+                }
+                String field = spec.substring(0, colon).trim();
+                boolean ifAbsent = field.startsWith("?");
+                if (ifAbsent) {
+                    field = field.substring(1).trim();
+                }
+                rules.add(new ColumnRule(field, ifAbsent, Condition.parse(spec.substring(colon + 1), patterns)));
+            }
+
+            List<MetadataCell> metadata = new ArrayList<MetadataCell>();
+            for (String spec : numbered(properties, prefix + "metadata.")) {
+                String[] parts = spec.split("\\|");
+                if (parts.length != 3) {
+                    throw new IllegalArgumentException("Metadata inválida: " + spec);
+                }
+                int[] cell = parseCell(parts[2].trim());
+                metadata.add(new MetadataCell(parts[0].trim(), parts[1].trim(), cell[0], cell[1]));
+            }
+
+            Anchor vessel = anchor(properties, prefix + "info.vessel", patterns);
+            Anchor imo = anchor(properties, prefix + "info.imo", patterns);
+            Anchor quotation = anchor(properties, prefix + "info.quotation", patterns);
+
+            // Secciones no definidas: las del perfil por defecto
+            if (defaults != null) {
+                if (rules.isEmpty()) {
+                    rules = new ArrayList<ColumnRule>(defaults.columnRules);
+                }
+                if (metadata.isEmpty()) {
+                    metadata = new ArrayList<MetadataCell>(defaults.metadata);
+                }
+                if (vessel == null && imo == null && quotation == null) {
+                    vessel = defaults.vessel;
+                    imo = defaults.imo;
+                    quotation = defaults.quotation;
+                }
+            }
+
+            return new BrokerProfile(name, match, headerRow, searchRows, searchRadius, signatures, keywords,
+                minCells, columns,
+                styles, positional, rules, metadata, vessel, imo, quotation);
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Perfil de broker '" + name + "' inválido: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Clave header.* del perfil, o la del perfil por defecto
+     */
+    private static String header(Properties properties, String prefix, String key, String fallback) {
+        String value = properties.getProperty(prefix + "header." + key);
+        if (value == null) {
+            value = properties.getProperty(DEFAULT_PROFILE + ".header." + key, fallback);
+        }
+        return value.trim();
+    }
+
+    private static Anchor anchor(Properties properties, String key, PatternTable patterns) {
+        String spec = properties.getProperty(key);
+        return spec != null ? Anchor.parse(spec, patterns) : null;
+    }
+
+    /**
+     * Valores de las claves prefix + número, ordenados por número
+     */
+    private static List<String> numbered(Properties properties, String prefix) {
+        TreeMap<Integer, String> values = new TreeMap<Integer, String>();
+        for (String key : properties.stringPropertyNames()) {
+            if (key.startsWith(prefix)) {
+                values.put(Integer.parseInt(key.substring(prefix.length()).trim()), properties.getProperty(key));
+            }
+        }
+        return new ArrayList<String>(values.values());
+    }
+
+    private static String[] splitList(String value) {
+        List<String> items = new ArrayList<String>();
+        for (String item : value.split(",")) {
+            if (!item.trim().isEmpty()) {
+                items.add(item.trim().toUpperCase());
+            }
+        }
+        return items.toArray(new String[0]);
+    }
+
+    /**
+     * Referencia tipo A1 → {fila, columna} desde 0
+     */
+    static int[] parseCell(String ref) {
+        int i = 0;
+        int column = 0;
+        while (i < ref.length() && Character.isLetter(ref.charAt(i))) {
+            column = column * 26 + (Character.toUpperCase(ref.charAt(i)) - 'A' + 1);
+            i++;
+        }
+        if (i == 0 || i == ref.length()) {
+            throw new IllegalArgumentException("Celda inválida: " + ref);
+        }
+        return new int[] {Integer.parseInt(ref.substring(i)) - 1, column - 1};
+    }
+
+    /**
+     * Perfiles cargados y el perfil resuelto para cada nombre de broker
+     */
+    private static class Registry {
+        static final Registry INSTANCE = new Registry(load());
+
+        private final BrokerProfile defaultProfile;
+        private final List<BrokerProfile> profiles;
+        private final ConcurrentMap<String, BrokerProfile> byBroker = new ConcurrentHashMap<String, BrokerProfile>();
+
+        Registry(List<BrokerProfile> compiled) {
+            this.defaultProfile = compiled.get(0);
+            this.profiles = compiled.subList(1, compiled.size());
+        }
+
+        BrokerProfile find(String brokerName) {
+            BrokerProfile profile = byBroker.get(brokerName);
+            if (profile == null) {
+                profile = defaultProfile;
+                for (BrokerProfile candidate : profiles) {
+                    if (brokerName.contains(candidate.match)) {
+                        profile = candidate;
+                        break;
+                    }
+                }
+                byBroker.putIfAbsent(brokerName, profile);
+            }
+            return profile;
+        }
+
+        private static List<BrokerProfile> load() {
+            Properties properties = new Properties();
+            String path = System.getProperty(PROFILES_PROPERTY);
+            try {
+                InputStream in = path != null
+                    ? new FileInputStream(path) : BrokerProfile.class.getResourceAsStream(RESOURCE);
+                if (in == null) {
+                    throw new IllegalStateException("No se encontró " + RESOURCE + " en el classpath");
+                }
+                try {
+                    properties.load(new InputStreamReader(in, StandardCharsets.UTF_8));
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException("No se pudieron leer los perfiles de broker: " + e.getMessage(), e);
+            }
+            return compile(properties);
+        }
+    }
+}
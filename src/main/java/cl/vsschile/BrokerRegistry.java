@@ -0,0 +1,135 @@
+package cl.vsschile;
+
+import java.sql.*;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * IDs de brokers por nombre, compartidos por todas las herramientas de un pool.
+ *
+ * La tabla brokers se lee completa la primera vez que se pide un ID; desde
+ * ahí los brokers conocidos se resuelven en memoria, sin ir a la base de
+ * datos. Un broker que no está se crea (o se recupera, si otro proceso lo
+ * creó entretanto) con un solo INSERT ... ON CONFLICT (broker_name), que
+ * no compite con otros hilos ni procesos que lo creen al mismo tiempo.
+ */
+public class BrokerRegistry {
+
+    private static final Map<ConnectionPool, BrokerRegistry> SHARED =
+        Collections.synchronizedMap(new WeakHashMap<ConnectionPool, BrokerRegistry>());
+
+    private final ConnectionPool pool;
+    /** Se reemplaza completo en cada lectura de la tabla */
+    private volatile ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+    private volatile boolean loaded;
+
+    private BrokerRegistry(ConnectionPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Registro compartido de los brokers de la base de datos del pool
+     */
+    public static BrokerRegistry forPool(ConnectionPool pool) {
+        synchronized (SHARED) {
+            BrokerRegistry registry = SHARED.get(pool);
+            if (registry == null) {
+                registry = new BrokerRegistry(pool);
+                SHARED.put(pool, registry);
+            }
+            return registry;
+        }
+    }
+
+    /**
+     * ID del broker; lo crea si no existe
+     */
+    public int getId(String brokerName) throws SQLException {
+        ensureLoaded();
+        Integer id = ids.get(brokerName);
+        if (id != null) {
+            return id;
+        }
+        return save(brokerName, null);
+    }
+
+    /**
+     * Crea el broker o, si ya existe, actualiza su descripción (cuando se
+     * indica una); retorna su ID
+     */
+    public int save(String brokerName, String descripcion) throws SQLException {
+        Connection conn = pool.getConnection();
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+
+        try {
+            // El DO UPDATE hace que RETURNING entregue también la fila existente
+            ps = conn.prepareStatement(
+                "INSERT INTO brokers (broker_name, descripcion) VALUES (?, ?) " +
+                "ON CONFLICT (broker_name) DO UPDATE " +
+                "SET descripcion = COALESCE(EXCLUDED.descripcion, brokers.descripcion) " +
+                "RETURNING broker_id"
+            );
+            ps.setString(1, brokerName);
+            ps.setString(2, descripcion);
+            rs = ps.executeQuery();
+
+            if (!rs.next()) {
+                throw new SQLException("No se pudo crear el broker " + brokerName);
+            }
+            int id = rs.getInt(1);
+            ids.put(brokerName, id);
+            return id;
+        } finally {
+            if (rs != null) rs.close();
+            if (ps != null) ps.close();
+            conn.close();
+        }
+    }
+
+    /**
+     * Brokers conocidos (los cargados y los creados desde entonces)
+     */
+    public int size() throws SQLException {
+        ensureLoaded();
+        return ids.size();
+    }
+
+    /**
+     * Vuelve a leer la tabla brokers en la próxima consulta; los brokers
+     * borrados o renombrados en la base de datos dejan de resolverse en memoria
+     */
+    public void invalidate() {
+        loaded = false;
+    }
+
+    private void ensureLoaded() throws SQLException {
+        if (loaded) {
+            return;
+        }
+        synchronized (this) {
+            if (loaded) {
+                return;
+            }
+            Connection conn = pool.getConnection();
+            Statement st = null;
+            ResultSet rs = null;
+            try {
+                st = conn.createStatement();
+                rs = st.executeQuery("SELECT broker_id, broker_name FROM brokers");
+                ConcurrentHashMap<String, Integer> fresh = new ConcurrentHashMap<String, Integer>();
+                while (rs.next()) {
+                    fresh.put(rs.getString(2), rs.getInt(1));
+                }
+                ids = fresh;
+                loaded = true;
+            } finally {
+                if (rs != null) rs.close();
+                if (st != null) st.close();
+                conn.close();
+            }
+        }
+    }
+}
@@ -1,158 +1,213 @@
 package cl.vsschile;
 
+import org.apache.poi.hssf.usermodel.HSSFPalette;
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.hssf.util.HSSFColor;
 import org.apache.poi.ss.usermodel.*;
+import org.apache.poi.xssf.usermodel.XSSFCellStyle;
 import org.apache.poi.xssf.usermodel.XSSFColor;
 import org.apache.poi.xssf.usermodel.XSSFFont;
 
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Map;
+
 /**
- * Información de estilo y color de una celda Excel
+ * Información de estilo y color de una celda Excel.
+ *
+ * Inmutable: las celdas con el mismo estilo comparten la misma instancia.
+ * Cada estilo se extrae una sola vez por libro (caché por índice de estilo
+ * del último libro visto en cada hilo, como CellValueDecoder) y los colores
+ * indexados se resuelven al RGB de la paleta del libro.
  */
-public class CellStyleInfo {
-    
-    public String backgroundColor;
-    public String foregroundColor;
-    public boolean isBold;
-    public boolean isItalic;
-    public boolean hasBorder;
-    
+public final class CellStyleInfo {
+
+    /** Celda sin estilo */
+    public static final CellStyleInfo NONE = new CellStyleInfo(null, null, false, false, false);
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    /** Colores de la paleta estándar por índice, para libros sin paleta propia */
+    private static final String[] DEFAULT_PALETTE = defaultPalette();
+
+    private static final int PALETTE_SIZE = 64;
+
+    private static final ThreadLocal<WorkbookStyles> CURRENT = new ThreadLocal<WorkbookStyles>();
+
+    public final String backgroundColor;
+    public final String foregroundColor;
+    public final boolean isBold;
+    public final boolean isItalic;
+    public final boolean hasBorder;
+
+    private CellStyleInfo(String backgroundColor, String foregroundColor,
+                          boolean isBold, boolean isItalic, boolean hasBorder) {
+        this.backgroundColor = backgroundColor;
+        this.foregroundColor = foregroundColor;
+        this.isBold = isBold;
+        this.isItalic = isItalic;
+        this.hasBorder = hasBorder;
+    }
+
     /**
      * Extrae información de estilo de una celda
      */
     public static CellStyleInfo fromCell(Cell cell) {
-        CellStyleInfo info = new CellStyleInfo();
-        
         if (cell == null) {
-            return info;
+            return NONE;
         }
-        
+
         CellStyle style = cell.getCellStyle();
         if (style == null) {
-            return info;
+            return NONE;
         }
-        
-        // Extraer color de fondo
-        info.backgroundColor = extractBackgroundColor(style, cell.getSheet().getWorkbook());
-        
-        // Extraer color de texto (foreground)
-        info.foregroundColor = extractForegroundColor(style, cell.getSheet().getWorkbook());
-        
-        // Extraer información de fuente
+
         Workbook wb = cell.getSheet().getWorkbook();
-        Font font = wb.getFontAt(style.getFontIndex());
-        if (font != null) {
-            info.isBold = font.getBold();
-            info.isItalic = font.getItalic();
+        WorkbookStyles styles = CURRENT.get();
+        if (styles == null || styles.workbook.get() != wb) {
+            styles = new WorkbookStyles(wb);
+            CURRENT.set(styles);
         }
-        
-        // Verificar bordes (en POI 3.17 los bordes son short)
-        // 0 = sin borde, cualquier otro valor = con borde
-        info.hasBorder = style.getBorderTop() != 0 ||
-                        style.getBorderBottom() != 0 ||
-                        style.getBorderLeft() != 0 ||
-                        style.getBorderRight() != 0;
-        
-        return info;
+        return styles.get(style, wb);
     }
-    
-    private static String extractBackgroundColor(CellStyle style, Workbook wb) {
-        try {
-            // Para XLSX (XSSFWorkbook)
-            if (style instanceof org.apache.poi.xssf.usermodel.XSSFCellStyle) {
-                org.apache.poi.xssf.usermodel.XSSFCellStyle xssfStyle = 
-                    (org.apache.poi.xssf.usermodel.XSSFCellStyle) style;
-                
-                XSSFColor color = xssfStyle.getFillForegroundXSSFColor();
-                if (color != null) {
-                    byte[] rgb = color.getRGB();
-                    if (rgb != null && rgb.length >= 3) {
-                        return String.format("#%02X%02X%02X", 
-                            rgb[0] & 0xFF, rgb[1] & 0xFF, rgb[2] & 0xFF);
+
+    /**
+     * Estilos ya extraídos de un libro y su paleta de colores indexados
+     */
+    private static final class WorkbookStyles {
+        final WeakReference<Workbook> workbook;
+        final String[] palette;
+        CellStyleInfo[] byIndex;
+
+        WorkbookStyles(Workbook wb) {
+            this.workbook = new WeakReference<Workbook>(wb);
+            this.palette = wb instanceof HSSFWorkbook
+                ? palette(((HSSFWorkbook) wb).getCustomPalette())
+                : DEFAULT_PALETTE;
+            this.byIndex = new CellStyleInfo[Math.max(16, wb.getNumCellStyles())];
+        }
+
+        CellStyleInfo get(CellStyle style, Workbook wb) {
+            int index = style.getIndex() & 0xFFFF;
+            if (index >= byIndex.length) {
+                byIndex = Arrays.copyOf(byIndex, Math.max(index + 1, byIndex.length * 2));
+            }
+            CellStyleInfo info = byIndex[index];
+            if (info == null) {
+                info = extract(style, wb);
+                byIndex[index] = info;
+            }
+            return info;
+        }
+
+        private CellStyleInfo extract(CellStyle style, Workbook wb) {
+            String background = null;
+            String foreground = null;
+            boolean bold = false;
+            boolean italic = false;
+
+            try {
+                // Para XLSX el color viene como RGB; si no, como índice de paleta
+                if (style instanceof XSSFCellStyle) {
+                    background = hex(((XSSFCellStyle) style).getFillForegroundXSSFColor());
+                }
+                if (background == null) {
+                    background = indexed(style.getFillForegroundColor());
+                }
+            } catch (Exception e) {
+                // Ignorar errores de extracción de color
+            }
+
+            try {
+                Font font = wb.getFontAt(style.getFontIndex());
+                if (font != null) {
+                    bold = font.getBold();
+                    italic = font.getItalic();
+                    if (font instanceof XSSFFont) {
+                        foreground = hex(((XSSFFont) font).getXSSFColor());
+                    }
+                    if (foreground == null) {
+                        foreground = indexed(font.getColor());
                     }
                 }
+            } catch (Exception e) {
+                // Ignorar errores
             }
-            
-            // Para XLS (HSSFWorkbook) - colores indexados
-            short colorIndex = style.getFillForegroundColor();
-            if (colorIndex != IndexedColors.AUTOMATIC.getIndex()) {
-                return getColorNameFromIndex(colorIndex);
+
+            // Verificar bordes (en POI 3.17 los bordes son short)
+            // 0 = sin borde, cualquier otro valor = con borde
+            boolean border = style.getBorderTop() != 0 ||
+                             style.getBorderBottom() != 0 ||
+                             style.getBorderLeft() != 0 ||
+                             style.getBorderRight() != 0;
+
+            if (background == null && foreground == null && !bold && !italic && !border) {
+                return NONE;
+            }
+            return new CellStyleInfo(background, foreground, bold, italic, border);
+        }
+
+        private String indexed(short index) {
+            if (index == IndexedColors.AUTOMATIC.getIndex() || index < 0 || index >= PALETTE_SIZE) {
+                return null;
             }
-            
-        } catch (Exception e) {
-            // Ignorar errores de extracción de color
+            return palette[index];
         }
-        
-        return null;
     }
-    
-    private static String extractForegroundColor(CellStyle style, Workbook wb) {
-        try {
-            Font font = wb.getFontAt(style.getFontIndex());
-            
-            // Para XLSX
-            if (font instanceof XSSFFont) {
-                XSSFFont xssfFont = (XSSFFont) font;
-                XSSFColor color = xssfFont.getXSSFColor();
-                if (color != null) {
-                    byte[] rgb = color.getRGB();
-                    if (rgb != null && rgb.length >= 3) {
-                        return String.format("#%02X%02X%02X", 
-                            rgb[0] & 0xFF, rgb[1] & 0xFF, rgb[2] & 0xFF);
-                    }
-                }
+
+    /**
+     * Colores de la paleta de un libro .xls (índices 8-63; 0-7 repiten 8-15)
+     */
+    private static String[] palette(HSSFPalette hssfPalette) {
+        String[] colors = new String[PALETTE_SIZE];
+        for (int index = 8; index < PALETTE_SIZE; index++) {
+            HSSFColor color = hssfPalette.getColor(index);
+            colors[index] = color != null ? hex(color.getTriplet()) : DEFAULT_PALETTE[index];
+        }
+        for (int index = 0; index < 8; index++) {
+            colors[index] = colors[index + 8];
+        }
+        return colors;
+    }
+
+    private static String[] defaultPalette() {
+        String[] colors = new String[PALETTE_SIZE];
+        for (Map.Entry<Integer, HSSFColor> entry : HSSFColor.getIndexHash().entrySet()) {
+            int index = entry.getKey();
+            if (index >= 0 && index < PALETTE_SIZE) {
+                colors[index] = hex(entry.getValue().getTriplet());
             }
-            
-            // Para XLS - colores indexados
-            short colorIndex = font.getColor();
-            if (colorIndex != IndexedColors.AUTOMATIC.getIndex()) {
-                return getColorNameFromIndex(colorIndex);
+        }
+        for (int index = 0; index < 8; index++) {
+            if (colors[index] == null) {
+                colors[index] = colors[index + 8];
             }
-            
-        } catch (Exception e) {
-            // Ignorar errores
         }
-        
-        return null;
+        return colors;
     }
-    
-    private static String getColorNameFromIndex(short index) {
-        // Mapeo de colores comunes indexados
-        if (index == IndexedColors.BLACK.getIndex()) return "#000000";
-        if (index == IndexedColors.WHITE.getIndex()) return "#FFFFFF";
-        if (index == IndexedColors.RED.getIndex()) return "#FF0000";
-        if (index == IndexedColors.GREEN.getIndex()) return "#00FF00";
-        if (index == IndexedColors.BLUE.getIndex()) return "#0000FF";
-        if (index == IndexedColors.YELLOW.getIndex()) return "#FFFF00";
-        if (index == IndexedColors.PINK.getIndex()) return "#FF00FF";
-        if (index == IndexedColors.TURQUOISE.getIndex()) return "#00FFFF";
-        if (index == IndexedColors.DARK_RED.getIndex()) return "#800000";
-        if (index == IndexedColors.GREY_25_PERCENT.getIndex()) return "#C0C0C0";
-        if (index == IndexedColors.GREY_50_PERCENT.getIndex()) return "#808080";
-        if (index == IndexedColors.LIGHT_BLUE.getIndex()) return "#ADD8E6";
-        if (index == IndexedColors.LIGHT_GREEN.getIndex()) return "#90EE90";
-        if (index == IndexedColors.LIGHT_ORANGE.getIndex()) return "#FFD700";
-        if (index == IndexedColors.LIGHT_YELLOW.getIndex()) return "#FFFFE0";
-        if (index == IndexedColors.ORANGE.getIndex()) return "#FFA500";
-        if (index == IndexedColors.BROWN.getIndex()) return "#A52A2A";
-        if (index == IndexedColors.LIME.getIndex()) return "#00FF00";
-        if (index == IndexedColors.LAVENDER.getIndex()) return "#E6E6FA";
-        if (index == IndexedColors.TAN.getIndex()) return "#D2B48C";
-        if (index == IndexedColors.LIGHT_CORNFLOWER_BLUE.getIndex()) return "#6495ED";
-        if (index == IndexedColors.PALE_BLUE.getIndex()) return "#AFEEEE";
-        if (index == IndexedColors.ROSE.getIndex()) return "#FF007F";
-        if (index == IndexedColors.VIOLET.getIndex()) return "#EE82EE";
-        if (index == IndexedColors.GOLD.getIndex()) return "#FFD700";
-        if (index == IndexedColors.SEA_GREEN.getIndex()) return "#2E8B57";
-        if (index == IndexedColors.DARK_BLUE.getIndex()) return "#00008B";
-        if (index == IndexedColors.DARK_GREEN.getIndex()) return "#006400";
-        if (index == IndexedColors.DARK_YELLOW.getIndex()) return "#808000";
-        if (index == IndexedColors.BRIGHT_GREEN.getIndex()) return "#00FF00";
-        if (index == IndexedColors.MAROON.getIndex()) return "#800000";
-        if (index == IndexedColors.INDIGO.getIndex()) return "#4B0082";
-        
-        // Por defecto, retornar el índice
-        return "INDEX_" + index;
+
+    private static String hex(XSSFColor color) {
+        if (color == null) {
+            return null;
+        }
+        byte[] rgb = color.getRGB();
+        if (rgb == null || rgb.length < 3) {
+            return null;
+        }
+        return hex(rgb[0] & 0xFF, rgb[1] & 0xFF, rgb[2] & 0xFF);
     }
-    
+
+    private static String hex(short[] triplet) {
+        return hex(triplet[0] & 0xFF, triplet[1] & 0xFF, triplet[2] & 0xFF);
+    }
+
+    /** #RRGGBB */
+    private static String hex(int r, int g, int b) {
+        char[] chars = {'#',
+            HEX[r >>> 4], HEX[r & 0xF], HEX[g >>> 4], HEX[g & 0xF], HEX[b >>> 4], HEX[b & 0xF]};
+        return new String(chars);
+    }
+
     public String toString() {
         StringBuilder sb = new StringBuilder();
         if (backgroundColor != null) {
@@ -166,9 +221,9 @@ public class CellStyleInfo {
         if (hasBorder) sb.append("Border");
         return sb.toString().trim();
     }
-    
+
     public boolean hasStyle() {
-        return backgroundColor != null || foregroundColor != null || 
+        return backgroundColor != null || foregroundColor != null ||
                isBold || isItalic || hasBorder;
     }
 }
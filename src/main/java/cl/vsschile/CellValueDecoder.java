@@ -0,0 +1,251 @@
+package cl.vsschile;
+
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.ss.usermodel.*;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+
+/**
+ * Decodificador único de valores de celda.
+ *
+ * Resuelve el tipo efectivo de la celda (las fórmulas toman el tipo de su
+ * último resultado calculado) y entrega el valor con accesores tipados
+ * (double, long, día epoch) sin pasar por cadenas intermedias. Cuando se
+ * necesita texto, los números, fechas y booleanos se escriben en un buffer
+ * reutilizable; el CharSequence retornado sólo es válido hasta la siguiente
+ * llamada sobre el mismo decodificador.
+ *
+ * Formato de texto común: números enteros sin decimales ("12"), números con
+ * decimales en su representación más corta ("12.5"), fechas ISO
+ * ("2024-03-01" o "2024-03-01 14:30:00"), booleanos "true"/"false".
+ *
+ * No es thread-safe: usar current() para obtener el del hilo actual.
+ */
+public final class CellValueDecoder {
+
+    /** Tipos efectivos de celda */
+    public static final int BLANK = 0;
+    public static final int NUMERIC = 1;
+    public static final int TEXT = 2;
+    public static final int BOOLEAN = 3;
+    public static final int DATE = 4;
+    public static final int ERROR = 5;
+
+    /** Días entre el origen de Excel (1900/1904) y 1970-01-01 */
+    private static final long EPOCH_OFFSET_1900 = 25569;
+    private static final long EPOCH_OFFSET_1904 = 24107;
+    private static final int SECONDS_PER_DAY = 86400;
+
+    private static final ThreadLocal<CellValueDecoder> CURRENT = new ThreadLocal<CellValueDecoder>() {
+        @Override
+        protected CellValueDecoder initialValue() {
+            return new CellValueDecoder();
+        }
+    };
+
+    private final StringBuilder buffer = new StringBuilder(64);
+
+    /**
+     * Decodificador del hilo actual
+     */
+    public static CellValueDecoder current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Tipo efectivo de la celda (BLANK si es null)
+     */
+    public int typeOf(Cell cell) {
+        if (cell == null) return BLANK;
+
+        int type = cell.getCellType();
+        if (type == Cell.CELL_TYPE_FORMULA) {
+            type = cell.getCachedFormulaResultType();
+        }
+
+        switch (type) {
+            case Cell.CELL_TYPE_NUMERIC:
+                return DateUtil.isCellDateFormatted(cell) ? DATE : NUMERIC;
+            case Cell.CELL_TYPE_STRING:
+                return TEXT;
+            case Cell.CELL_TYPE_BOOLEAN:
+                return BOOLEAN;
+            case Cell.CELL_TYPE_ERROR:
+                return ERROR;
+            default:
+                return BLANK;
+        }
+    }
+
+    /**
+     * Valor numérico (también para fechas: número de serie Excel), NaN si no es numérico
+     */
+    public double doubleValue(Cell cell) {
+        int type = typeOf(cell);
+        if (type == NUMERIC || type == DATE) {
+            return cell.getNumericCellValue();
+        }
+        return Double.NaN;
+    }
+
+    /**
+     * Valor numérico truncado a entero, 0 si no es numérico
+     */
+    public long longValue(Cell cell) {
+        double value = doubleValue(cell);
+        return Double.isNaN(value) ? 0L : (long) value;
+    }
+
+    /**
+     * Días desde 1970-01-01 para una celda con fecha, Long.MIN_VALUE si no es fecha
+     */
+    public long epochDay(Cell cell) {
+        if (typeOf(cell) != DATE) {
+            return Long.MIN_VALUE;
+        }
+        return toEpochDay(cell.getNumericCellValue(), isDate1904(cell));
+    }
+
+    /**
+     * Texto de la celda, o null si está vacía o es un error.
+     * Para celdas de texto retorna el String de la celda; para los demás tipos,
+     * el buffer interno (válido hasta la siguiente llamada).
+     */
+    public CharSequence text(Cell cell) {
+        switch (typeOf(cell)) {
+            case TEXT:
+                return cell.getStringCellValue();
+            case NUMERIC:
+                buffer.setLength(0);
+                appendNumber(buffer, cell.getNumericCellValue());
+                return buffer;
+            case DATE:
+                buffer.setLength(0);
+                appendDate(buffer, cell.getNumericCellValue(), isDate1904(cell));
+                return buffer;
+            case BOOLEAN:
+                return cell.getBooleanCellValue() ? "true" : "false";
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Texto de la celda como String (null si está vacía)
+     */
+    public String stringValue(Cell cell) {
+        CharSequence text = text(cell);
+        return text != null ? text.toString() : null;
+    }
+
+    /**
+     * Texto de la celda sin espacios al inicio ni al final (null si está vacía)
+     */
+    public String trimmedValue(Cell cell) {
+        CharSequence text = text(cell);
+        return text != null ? text.toString().trim() : null;
+    }
+
+    /**
+     * True si la celda no existe, está vacía o sólo contiene espacios
+     */
+    public boolean isBlank(Cell cell) {
+        return isBlank(text(cell));
+    }
+
+    /**
+     * True si el texto es null o sólo contiene espacios
+     */
+    public static boolean isBlank(CharSequence text) {
+        if (text == null) return true;
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) > ' ') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Equivalente a text.toUpperCase().contains(upperKeyword) sin crear cadenas.
+     * La palabra clave debe venir en mayúsculas.
+     */
+    public static boolean containsIgnoreCase(CharSequence text, String upperKeyword) {
+        int last = text.length() - upperKeyword.length();
+        for (int start = 0; start <= last; start++) {
+            int k = 0;
+            while (k < upperKeyword.length()
+                    && Character.toUpperCase(text.charAt(start + k)) == upperKeyword.charAt(k)) {
+                k++;
+            }
+            if (k == upperKeyword.length()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void appendNumber(StringBuilder sb, double value) {
+        if (value == (long) value) {
+            sb.append((long) value);
+        } else {
+            sb.append(value);
+        }
+    }
+
+    private static void appendDate(StringBuilder sb, double serial, boolean date1904) {
+        long epochDay = toEpochDay(serial, date1904);
+
+        // Conversión de día epoch a fecha civil (algoritmo de H. Hinnant)
+        long z = epochDay + 719468;
+        long era = (z >= 0 ? z : z - 146096) / 146097;
+        long doe = z - era * 146097;
+        long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+        long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+        long mp = (5 * doy + 2) / 153;
+        long day = doy - (153 * mp + 2) / 5 + 1;
+        long month = mp < 10 ? mp + 3 : mp - 9;
+        long year = yoe + era * 400 + (month <= 2 ? 1 : 0);
+
+        sb.append(year).append('-');
+        appendTwoDigits(sb, (int) month);
+        sb.append('-');
+        appendTwoDigits(sb, (int) day);
+
+        int seconds = (int) Math.round((serial - Math.floor(serial)) * SECONDS_PER_DAY);
+        if (seconds > 0 && seconds < SECONDS_PER_DAY) {
+            sb.append(' ');
+            appendTwoDigits(sb, seconds / 3600);
+            sb.append(':');
+            appendTwoDigits(sb, (seconds / 60) % 60);
+            sb.append(':');
+            appendTwoDigits(sb, seconds % 60);
+        }
+    }
+
+    private static void appendTwoDigits(StringBuilder sb, int value) {
+        sb.append((char) ('0' + value / 10)).append((char) ('0' + value % 10));
+    }
+
+    private static long toEpochDay(double serial, boolean date1904) {
+        long whole = (long) Math.floor(serial);
+        if (date1904) {
+            return whole - EPOCH_OFFSET_1904;
+        }
+        // Excel considera 1900 bisiesto: los seriales anteriores al 01/03/1900 van un día atrasados
+        if (whole < 61) {
+            whole++;
+        }
+        return whole - EPOCH_OFFSET_1900;
+    }
+
+    private static boolean isDate1904(Cell cell) {
+        Workbook wb = cell.getSheet().getWorkbook();
+        if (wb instanceof XSSFWorkbook) {
+            return ((XSSFWorkbook) wb).isDate1904();
+        }
+        if (wb instanceof HSSFWorkbook) {
+            return ((HSSFWorkbook) wb).getInternalWorkbook().isUsing1904DateWindowing();
+        }
+        return false;
+    }
+}
@@ -0,0 +1,304 @@
+package cl.vsschile;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Índice de las cotizaciones organizadas en un árbol de salida: un registro
+ * por cotización con cliente, broker, vessel, IMO, número de cotización,
+ * archivo de origen, archivo de salida y fecha de proceso.
+ *
+ * Se guarda en un solo archivo por árbol de salida, una línea por registro
+ * con campos separados por tabulador. Durante la ejecución un único writer
+ * con buffer agrega los registros; al cargar, el último registro de cada
+ * archivo de origen reemplaza a los anteriores y close() reescribe el archivo
+ * si quedaron registros reemplazados.
+ *
+ * Las búsquedas por cliente, vessel o IMO usan mapas en memoria.
+ */
+public class ClientIndex implements Closeable {
+
+    private static final String HEADER =
+        "# cliente\tbroker\tvessel\timo\tcotizacion\torigen\tsalida\tduplicado_de\tprocesado";
+
+    /**
+     * Una cotización organizada
+     */
+    public static class Record {
+        public final String clientKey;
+        public final String broker;
+        public final String vesselName;
+        public final String imoNumber;
+        public final String quotationNumber;
+        /** Ruta absoluta del archivo entregado por el broker */
+        public final String sourcePath;
+        /** Ruta del archivo organizado, relativa al directorio de salida */
+        public final String outputPath;
+        /** Salida del original si es una copia idéntica de otra cotización, o null */
+        public final String duplicateOf;
+        /** Momento del proceso (milisegundos desde epoch) */
+        public final long processedAt;
+
+        public Record(String clientKey, String broker, String vesselName, String imoNumber,
+                      String quotationNumber, String sourcePath, String outputPath,
+                      String duplicateOf, long processedAt) {
+            this.clientKey = clientKey;
+            this.broker = broker;
+            this.vesselName = vesselName;
+            this.imoNumber = imoNumber;
+            this.quotationNumber = quotationNumber;
+            this.sourcePath = sourcePath;
+            this.outputPath = outputPath;
+            this.duplicateOf = duplicateOf;
+            this.processedAt = processedAt;
+        }
+    }
+
+    private final File indexFile;
+
+    // Registros vigentes (el último por archivo de origen) y sus búsquedas
+    private final Map<String, Record> bySource = new LinkedHashMap<String, Record>();
+    private final Map<String, List<Record>> byClient = new HashMap<String, List<Record>>();
+    private final Map<String, List<Record>> byVessel = new HashMap<String, List<Record>>();
+    private final Map<String, List<Record>> byImo = new HashMap<String, List<Record>>();
+    private final Map<String, Record> byOutput = new HashMap<String, Record>();
+
+    /** Líneas del archivo reemplazadas por otras posteriores */
+    private int superseded;
+    private BufferedWriter writer;
+
+    private ClientIndex(File indexFile) {
+        this.indexFile = indexFile;
+    }
+
+    /**
+     * Carga el índice (vacío si el archivo todavía no existe)
+     */
+    public static ClientIndex load(File indexFile) throws IOException {
+        ClientIndex index = new ClientIndex(indexFile);
+
+        if (indexFile.exists()) {
+            BufferedReader reader = Files.newBufferedReader(indexFile.toPath(), StandardCharsets.UTF_8);
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.isEmpty() || line.startsWith("#")) continue;
+
+                    Record record = parse(line);
+                    if (record != null) {
+                        index.put(record);
+                    } else {
+                        // Línea dañada: se descarta al compactar
+                        index.superseded++;
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Agrega un registro (reemplaza al anterior del mismo archivo de origen)
+     */
+    public synchronized void add(Record record) throws IOException {
+        if (writer == null) {
+            boolean exists = indexFile.exists();
+            writer = Files.newBufferedWriter(indexFile.toPath(), StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            if (!exists) {
+                writer.write(HEADER);
+                writer.newLine();
+            }
+        }
+        writer.write(format(record));
+        writer.newLine();
+        put(record);
+    }
+
+    /**
+     * Cotizaciones de un cliente (clave de QuotationInfo.getClientKey())
+     */
+    public synchronized List<Record> findByClient(String clientKey) {
+        return copyOf(byClient.get(clientKey));
+    }
+
+    /**
+     * Cotizaciones de un vessel, sin distinguir mayúsculas ni espacios extra
+     */
+    public synchronized List<Record> findByVessel(String vesselName) {
+        return copyOf(byVessel.get(vesselKey(vesselName)));
+    }
+
+    /**
+     * Cotizaciones de un IMO (sólo se comparan los dígitos)
+     */
+    public synchronized List<Record> findByImo(String imoNumber) {
+        return copyOf(byImo.get(imoKey(imoNumber)));
+    }
+
+    /**
+     * Registro del original guardado en esa salida (relativa al directorio de salida), o null
+     */
+    public synchronized Record findByOutput(String outputPath) {
+        return byOutput.get(outputPath);
+    }
+
+    public synchronized int size() {
+        return bySource.size();
+    }
+
+    /**
+     * Escribe a disco los registros agregados
+     */
+    public synchronized void flush() throws IOException {
+        if (writer != null) {
+            writer.flush();
+        }
+    }
+
+    /**
+     * Cierra el writer y compacta el archivo si hay registros reemplazados
+     */
+    public synchronized void close() throws IOException {
+        if (writer != null) {
+            writer.close();
+            writer = null;
+        }
+        if (superseded > 0) {
+            compact();
+        }
+    }
+
+    private void compact() throws IOException {
+        File tmp = new File(indexFile.getPath() + ".tmp");
+        BufferedWriter out = Files.newBufferedWriter(tmp.toPath(), StandardCharsets.UTF_8);
+        try {
+            out.write(HEADER);
+            out.newLine();
+            for (Record record : bySource.values()) {
+                out.write(format(record));
+                out.newLine();
+            }
+        } finally {
+            out.close();
+        }
+
+        Files.move(tmp.toPath(), indexFile.toPath(),
+            StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        superseded = 0;
+    }
+
+    private void put(Record record) {
+        Record previous = bySource.remove(record.sourcePath);
+        if (previous != null) {
+            superseded++;
+            remove(byClient, previous.clientKey, previous);
+            remove(byVessel, vesselKey(previous.vesselName), previous);
+            remove(byImo, imoKey(previous.imoNumber), previous);
+            if (byOutput.get(previous.outputPath) == previous) {
+                byOutput.remove(previous.outputPath);
+            }
+        }
+
+        bySource.put(record.sourcePath, record);
+        add(byClient, record.clientKey, record);
+        add(byVessel, vesselKey(record.vesselName), record);
+        add(byImo, imoKey(record.imoNumber), record);
+        if (record.duplicateOf == null) {
+            byOutput.put(record.outputPath, record);
+        }
+    }
+
+    private static void add(Map<String, List<Record>> map, String key, Record record) {
+        if (key == null) return;
+        List<Record> records = map.get(key);
+        if (records == null) {
+            records = new ArrayList<Record>(2);
+            map.put(key, records);
+        }
+        records.add(record);
+    }
+
+    private static void remove(Map<String, List<Record>> map, String key, Record record) {
+        if (key == null) return;
+        List<Record> records = map.get(key);
+        if (records != null) {
+            records.remove(record);
+            if (records.isEmpty()) {
+                map.remove(key);
+            }
+        }
+    }
+
+    private static List<Record> copyOf(List<Record> records) {
+        if (records == null) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(new ArrayList<Record>(records));
+    }
+
+    private static String vesselKey(String vesselName) {
+        if (vesselName == null || vesselName.trim().isEmpty()) {
+            return null;
+        }
+        return vesselName.trim().replaceAll("\\s+", " ").toUpperCase();
+    }
+
+    private static String imoKey(String imoNumber) {
+        if (imoNumber == null) {
+            return null;
+        }
+        String digits = imoNumber.replaceAll("[^0-9]", "");
+        return digits.isEmpty() ? null : digits;
+    }
+
+    private static String format(Record record) {
+        StringBuilder line = new StringBuilder(160);
+        field(line, record.clientKey).append('\t');
+        field(line, record.broker).append('\t');
+        field(line, record.vesselName).append('\t');
+        field(line, record.imoNumber).append('\t');
+        field(line, record.quotationNumber).append('\t');
+        field(line, record.sourcePath).append('\t');
+        field(line, record.outputPath).append('\t');
+        field(line, record.duplicateOf).append('\t');
+        line.append(record.processedAt);
+        return line.toString();
+    }
+
+    /**
+     * Campo vacío = null; tabuladores y saltos de línea se reemplazan por espacios
+     */
+    private static StringBuilder field(StringBuilder line, String value) {
+        if (value != null) {
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                line.append(c == '\t' || c == '\n' || c == '\r' ? ' ' : c);
+            }
+        }
+        return line;
+    }
+
+    private static Record parse(String line) {
+        String[] parts = line.split("\t", -1);
+        if (parts.length != 9) {
+            return null;
+        }
+        try {
+            return new Record(value(parts[0]), value(parts[1]), value(parts[2]), value(parts[3]),
+                value(parts[4]), parts[5], parts[6], value(parts[7]), Long.parseLong(parts[8]));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static String value(String field) {
+        return field.isEmpty() ? null : field;
+    }
+}
@@ -1,10 +1,14 @@
 package cl.vsschile;
 
 import org.apache.poi.ss.usermodel.*;
+
+import java.io.File;
 import java.util.*;
 
 /**
- * Detecta y mapea las columnas de cotizaciones según el formato del broker
+ * Detecta y mapea las columnas de cotizaciones según el formato del broker.
+ * La fila de cabecera y las reglas de mapeo vienen del perfil del broker
+ * (BrokerProfile, broker-profiles.properties).
  */
 public class ColumnDetector {
     
@@ -14,6 +18,8 @@ public class ColumnDetector {
     public static class ColumnMapping {
         public String brokerName;
         public int headerRow = -1;
+        /** Firma de la fila de cabecera (perfiles con fila fija; ver header.signatures) */
+        public long headerSignature;
         public Map<String, Integer> columns = new HashMap<String, Integer>();
         public List<String> columnNames = new ArrayList<String>();
         public Map<Integer, CellStyleInfo> columnStyles = new HashMap<Integer, CellStyleInfo>();
@@ -26,6 +32,9 @@ public class ColumnDetector {
             StringBuilder sb = new StringBuilder();
             sb.append("Broker: ").append(brokerName).append("\n");
             sb.append("Header Row: ").append(headerRow + 1).append("\n");
+            if (headerSignature != 0) {
+                sb.append("Firma de cabecera: ").append(String.format("%016x", headerSignature)).append("\n");
+            }
             sb.append("Columnas detectadas:\n");
             for (Map.Entry<String, Integer> entry : columns.entrySet()) {
                 sb.append("  - ").append(entry.getKey())
@@ -39,474 +48,284 @@ public class ColumnDetector {
      * Detecta las columnas del formato de cotización
      */
     public static ColumnMapping detectColumns(Sheet sheet, String brokerName) {
-        ColumnMapping mapping = new ColumnMapping();
-        mapping.brokerName = brokerName;
-        
-        if (brokerName.contains("MCTC")) {
-            detectMCTCColumns(sheet, mapping);
-        } else if (brokerName.contains("OCEANIC")) {
-            detectOceanicColumns(sheet, mapping);
-        } else if (brokerName.contains("CMA")) {
-            detectCMAColumns(sheet, mapping);
-        } else if (brokerName.contains("GARRETS")) {
-            detectGarretsColumns(sheet, mapping);
-        } else if (brokerName.contains("PROCURESHIP")) {
-            detectProcureshipColumns(sheet, mapping);
-        } else if (brokerName.contains("BSM")) {
-            detectBSMColumns(sheet, mapping);
-        } else {
-            detectGenericColumns(sheet, mapping);
-        }
-        
-        return mapping;
+        ColumnVisitor visitor = new ColumnVisitor(brokerName);
+        new HeaderRegionScanner(BrokerProfile.forBroker(brokerName).getMatcher()).add(visitor).scan(sheet);
+        return visitor.getMapping();
     }
-    
+
     /**
-     * MCTC MARINE LTD
-     * Header en fila 10: AA, MCTC'S REF NO, FOOD CATEGORIES, ITEM, ITEM DESCRIPTION,
-     *                    UNIT OF MEASURE, QUANTITY ORDER, PRICE, SUPPLIER COMMENTS, 
-     *                    VESSEL COMMENTS, TOTAL
+     * Detecta las columnas directamente desde el archivo.
+     * Sólo lee las filas de la ventana de cabecera del broker (SAX para .xlsx/.xlsm,
+     * registros HSSF para .xls); el resto de la hoja (líneas de ítems) no se carga.
      */
-    private static void detectMCTCColumns(Sheet sheet, ColumnMapping mapping) {
-        Row row = sheet.getRow(9); // Fila 10 (índice 9)
-        if (row != null) {
-            mapping.headerRow = 9;
-            
-            for (int i = 0; i < 15; i++) {
-                Cell cell = row.getCell(i);
-                if (cell != null) {
-                    String value = getCellValueAsString(cell);
-                    if (value != null) {
-                        String normalized = value.toUpperCase().trim();
-                        
-                        // Capturar estilo de la celda
-                        CellStyleInfo styleInfo = CellStyleInfo.fromCell(cell);
-                        mapping.columnStyles.put(i, styleInfo);
-                        
-                        // Mapear columnas conocidas
-                        if (normalized.contains("REF NO") || normalized.contains("MCTC")) {
-                            mapping.columns.put("ITEM_CODE", i);
-                        } else if (normalized.equals("FOOD CATEGORIES") || normalized.contains("CATEGORIES")) {
-                            mapping.columns.put("CATEGORY", i);
-                        } else if (normalized.equals("ITEM") && !normalized.contains("DESCRIPTION")) {
-                            mapping.columns.put("ITEM_NAME", i);
-                        } else if (normalized.contains("ITEM DESCRIPTION") || normalized.equals("ITEM DESCRIPTION")) {
-                            mapping.columns.put("DESCRIPTION", i);
-                        } else if (normalized.contains("UNIT OF MEASURE") || normalized.equals("UNIT OF MEASURE")) {
-                            mapping.columns.put("UOM", i);
-                        } else if (normalized.contains("QUANTITY ORDER") || normalized.contains("QUANTITY")) {
-                            mapping.columns.put("QUANTITY", i);
-                        } else if (normalized.equals("PRICE")) {
-                            mapping.columns.put("UNIT_PRICE", i);
-                        } else if (normalized.contains("SUPPLIER COMMENTS")) {
-                            mapping.columns.put("SUPPLIER_COMMENTS", i);
-                        } else if (normalized.equals("TOTAL")) {
-                            mapping.columns.put("TOTAL", i);
-                        }
-                        
-                        mapping.columnNames.add(value);
-                    }
-                }
-            }
+    public static ColumnMapping detectColumns(File file, String brokerName) throws Exception {
+        Sheet sheet = HeaderWindowReader.readHeaderRows(file, getHeaderScanRows(brokerName));
+        try {
+            return detectColumns(sheet, brokerName);
+        } finally {
+            sheet.getWorkbook().close();
         }
     }
-    
+
     /**
-     * OCEANIC CATERING LTD
-     * Header en fila 13: Category, Item - Description, OCL Code, VSC Code, 
-     *                    Expiry Date, Requested Quantity, OCL Uom, Supplier Code,
-     *                    Case, Case Size, Package, Package Size, Metric, Brand, Unit Cost
+     * Cantidad de filas (desde la primera) que la detección necesita leer
+     * para el broker indicado
      */
-    private static void detectOceanicColumns(Sheet sheet, ColumnMapping mapping) {
-        Row row = sheet.getRow(12); // Fila 13 (índice 12)
-        if (row != null) {
-            mapping.headerRow = 12;
-            
-            for (int i = 0; i < 20; i++) {
-                Cell cell = row.getCell(i);
-                if (cell != null) {
-                    String value = getCellValueAsString(cell);
-                    if (value != null && !value.trim().isEmpty()) {
-                        String normalized = value.toUpperCase().trim();
-                        
-                        if (normalized.equals("CATEGORY")) {
-                            mapping.columns.put("CATEGORY", i);
-                        } else if (normalized.contains("ITEM") && normalized.contains("DESCRIPTION")) {
-                            mapping.columns.put("ITEM_NAME", i);
-                        } else if (normalized.contains("OCL CODE")) {
-                            mapping.columns.put("OCL_CODE", i);
-                        } else if (normalized.contains("VSC CODE")) {
-                            mapping.columns.put("VSC_CODE", i);
-                        } else if (normalized.contains("EXPIRY DATE")) {
-                            mapping.columns.put("EXPIRY_DATE", i);
-                        } else if (normalized.contains("REQUESTED QUANTITY")) {
-                            mapping.columns.put("QUANTITY", i);
-                        } else if (normalized.contains("OCL UOM")) {
-                            mapping.columns.put("UOM", i);
-                        } else if (normalized.contains("SUPPLIER CODE")) {
-                            mapping.columns.put("SUPPLIER_CODE", i);
-                        } else if (normalized.equals("CASE")) {
-                            mapping.columns.put("CASE", i);
-                        } else if (normalized.equals("CASE SIZE")) {
-                            mapping.columns.put("CASE_SIZE", i);
-                        } else if (normalized.equals("PACKAGE")) {
-                            mapping.columns.put("PACKAGE", i);
-                        } else if (normalized.equals("PACKAGE SIZE")) {
-                            mapping.columns.put("PACKAGE_SIZE", i);
-                        } else if (normalized.equals("METRIC")) {
-                            mapping.columns.put("METRIC", i);
-                        } else if (normalized.equals("BRAND")) {
-                            mapping.columns.put("BRAND", i);
-                        } else if (normalized.contains("UNIT COST")) {
-                            mapping.columns.put("UNIT_PRICE", i);
-                        }
-                        
-                        mapping.columnNames.add(value);
-                    }
-                }
-            }
-        }
+    public static int getHeaderScanRows(String brokerName) {
+        return BrokerProfile.forBroker(brokerName).getHeaderScanRows();
     }
-    
+
     /**
-     * CMA CGM
-     * Header en fila 19: No, Item Code, Description, Brand, Weight, Unit, 
-     *                    Package, Quantity, Unit Price, Discount %, VAT %, Total Price
+     * Extractor de columnas para HeaderRegionScanner.
+     *
+     * Con cabecera "auto" puntúa cada fila candidata por sus palabras clave y
+     * la mapea en la misma visita; al terminar la fila se queda con ella si
+     * supera a la mejor hasta ahora.
+     *
+     * Con fila de cabecera fija mapea esa fila y calcula la firma (hash del
+     * conjunto de textos normalizados) de las filas a header.search de
+     * distancia. Si la firma de la fila esperada es una conocida del perfil la
+     * detección termina ahí, sin mapear otras filas. Si no, busca desde la
+     * fila esperada hacia afuera la primera con firma conocida; sin ninguna,
+     * se queda con la más cercana que mapea más campos (al menos la mitad de
+     * los del perfil, para no tomar una fila suelta). Esa fila no se agrega a
+     * las firmas conocidas: el resultado no depende del orden de los archivos.
+     * Así un archivo con filas extra sobre la cabecera se sigue reconociendo
+     * sin recurrir a la búsqueda genérica.
      */
-    private static void detectCMAColumns(Sheet sheet, ColumnMapping mapping) {
-        Row row = sheet.getRow(18); // Fila 19 (índice 18)
-        if (row != null) {
-            mapping.headerRow = 18;
-            
-            for (int i = 0; i < 20; i++) {
-                Cell cell = row.getCell(i);
-                if (cell != null) {
-                    String value = getCellValueAsString(cell);
-                    if (value != null && !value.trim().isEmpty()) {
-                        String normalized = value.toUpperCase().trim();
-                        
-                        if (normalized.equals("NO")) {
-                            mapping.columns.put("LINE_NO", i);
-                        } else if (normalized.contains("ITEM CODE")) {
-                            mapping.columns.put("ITEM_CODE", i);
-                        } else if (normalized.equals("DESCRIPTION")) {
-                            mapping.columns.put("ITEM_NAME", i);
-                        } else if (normalized.equals("BRAND")) {
-                            mapping.columns.put("BRAND", i);
-                        } else if (normalized.equals("WEIGHT")) {
-                            mapping.columns.put("WEIGHT", i);
-                        } else if (normalized.equals("UNIT")) {
-                            mapping.columns.put("UOM", i);
-                        } else if (normalized.equals("PACKAGE")) {
-                            mapping.columns.put("PACKAGE", i);
-                        } else if (normalized.equals("QUANTITY")) {
-                            mapping.columns.put("QUANTITY", i);
-                        } else if (normalized.contains("UNIT PRICE")) {
-                            mapping.columns.put("UNIT_PRICE", i);
-                        } else if (normalized.contains("DISCOUNT")) {
-                            mapping.columns.put("DISCOUNT", i);
-                        } else if (normalized.contains("VAT")) {
-                            mapping.columns.put("VAT", i);
-                        } else if (normalized.contains("TOTAL PRICE")) {
-                            mapping.columns.put("TOTAL", i);
-                        }
-                        
-                        mapping.columnNames.add(value);
-                    }
+    public static class ColumnVisitor implements HeaderRegionScanner.Visitor {
+        private final BrokerProfile profile;
+        private final ColumnMapping mapping = new ColumnMapping();
+        private int maxScore;
+
+        // Cabecera fija: filas candidatas alrededor de la esperada
+        private final int firstCandidate;
+        private final int[] searchOrder;
+        private final long[] signatures;
+        private final Row[] candidates;
+        private boolean located;
+        private HeaderMatcher.Hits hits;
+
+        // Fila en curso
+        private Map<String, Integer> columns = new HashMap<String, Integer>();
+        private String[] names;
+        private Map<Integer, CellStyleInfo> styles = new HashMap<Integer, CellStyleInfo>();
+        private int score;
+        private int nonEmptyCount;
+        private long signature;
+
+        public ColumnVisitor(String brokerName) {
+            this.profile = BrokerProfile.forBroker(brokerName);
+            this.mapping.brokerName = brokerName;
+            this.names = new String[profile.headerColumns];
+
+            int expected = profile.headerRow;
+            int radius = expected >= 0 ? profile.headerSearchRadius : -1;
+            this.firstCandidate = Math.max(0, expected - radius);
+            this.signatures = new long[Math.max(0, expected + radius - firstCandidate + 1)];
+            this.candidates = new Row[signatures.length];
+
+            // Esperada, siguiente, anterior, dos después, dos antes...
+            List<Integer> order = new ArrayList<Integer>();
+            for (int d = 0; d <= radius; d++) {
+                order.add(expected + d);
+                if (d > 0 && expected - d >= 0) {
+                    order.add(expected - d);
                 }
             }
+            this.searchOrder = new int[order.size()];
+            for (int i = 0; i < searchOrder.length; i++) {
+                searchOrder[i] = order.get(i);
+            }
         }
-    }
-    
-    /**
-     * GARRETS INTERNATIONAL LTD
-     * Header en fila 25: No., Part#, Vessel, Description, Quality, Unit, 
-     *                    Quantity, Unit Price, Disc.%, Del. Days
-     */
-    private static void detectGarretsColumns(Sheet sheet, ColumnMapping mapping) {
-        Row row = sheet.getRow(24); // Fila 25 (índice 24)
-        if (row != null) {
-            mapping.headerRow = 24;
-            
-            for (int i = 0; i < 20; i++) {
-                Cell cell = row.getCell(i);
-                if (cell != null) {
-                    String value = getCellValueAsString(cell);
-                    if (value != null && !value.trim().isEmpty()) {
-                        String normalized = value.toUpperCase().trim();
-                        
-                        if (normalized.equals("NO.") || normalized.equals("NO")) {
-                            mapping.columns.put("LINE_NO", i);
-                        } else if (normalized.contains("PART")) {
-                            mapping.columns.put("ITEM_CODE", i);
-                        } else if (normalized.equals("VESSEL")) {
-                            mapping.columns.put("VESSEL", i);
-                        } else if (normalized.equals("DESCRIPTION")) {
-                            mapping.columns.put("ITEM_NAME", i);
-                        } else if (normalized.equals("QUALITY")) {
-                            mapping.columns.put("QUALITY", i);
-                        } else if (normalized.equals("UNIT")) {
-                            mapping.columns.put("UOM", i);
-                        } else if (normalized.equals("QUANTITY")) {
-                            mapping.columns.put("QUANTITY", i);
-                        } else if (normalized.contains("UNIT PRICE")) {
-                            mapping.columns.put("UNIT_PRICE", i);
-                        } else if (normalized.contains("DISC")) {
-                            mapping.columns.put("DISCOUNT", i);
-                        } else if (normalized.contains("DEL") && normalized.contains("DAYS")) {
-                            mapping.columns.put("DELIVERY_DAYS", i);
-                        }
-                        
-                        mapping.columnNames.add(value);
-                    }
-                }
+
+        public ColumnMapping getMapping() {
+            return mapping;
+        }
+
+        public int getScanRows() {
+            return profile.getHeaderScanRows();
+        }
+
+        public void visit(HeaderRegionScanner.CellEvent event) {
+            if (event.column >= profile.headerColumns) return;
+            if (profile.headerRow >= 0) {
+                if (located || event.row < firstCandidate || event.row >= firstCandidate + candidates.length) return;
+                if (event.isBlank()) return;
+
+                signature += tokenHash(event.text());
+                // Las demás candidatas sólo se mapean si la fila esperada no calza
+                if (event.row != profile.headerRow) return;
+            } else if (event.isBlank()) {
+                return;
             }
+            addCell(event.column, event.cell, event.text(), event.hits());
         }
-    }
-    
-    /**
-     * PROCURESHIP
-     * Header en fila 14: No., Description, Item Office Notes, Vessel Notes, 
-     *                    Item Code / Part No., Reference No., Drawing No., 
-     *                    Quantity Requested, UoM, Quantity Offered, UoM, 
-     *                    Unit Cost, Disc. %, Line Cost
-     */
-    private static void detectProcureshipColumns(Sheet sheet, ColumnMapping mapping) {
-        Row row = sheet.getRow(13); // Fila 14 (índice 13)
-        if (row != null) {
-            mapping.headerRow = 13;
-            
-            for (int i = 0; i < 20; i++) {
-                Cell cell = row.getCell(i);
-                if (cell != null) {
-                    String value = getCellValueAsString(cell);
-                    if (value != null && !value.trim().isEmpty()) {
-                        String normalized = value.toUpperCase().trim();
-                        
-                        if (normalized.equals("NO.") || normalized.equals("NO")) {
-                            mapping.columns.put("LINE_NO", i);
-                        } else if (normalized.equals("DESCRIPTION")) {
-                            mapping.columns.put("ITEM_NAME", i);
-                        } else if (normalized.contains("ITEM OFFICE NOTES")) {
-                            mapping.columns.put("OFFICE_NOTES", i);
-                        } else if (normalized.contains("VESSEL NOTES")) {
-                            mapping.columns.put("VESSEL_NOTES", i);
-                        } else if (normalized.contains("ITEM CODE") || normalized.contains("PART NO")) {
-                            mapping.columns.put("ITEM_CODE", i);
-                        } else if (normalized.contains("REFERENCE NO")) {
-                            mapping.columns.put("REFERENCE_NO", i);
-                        } else if (normalized.contains("DRAWING NO")) {
-                            mapping.columns.put("DRAWING_NO", i);
-                        } else if (normalized.contains("QUANTITY REQUESTED")) {
-                            mapping.columns.put("QUANTITY_REQUESTED", i);
-                        } else if (normalized.equals("UOM") && !mapping.columns.containsKey("UOM")) {
-                            mapping.columns.put("UOM", i);
-                        } else if (normalized.contains("QUANTITY OFFERED")) {
-                            mapping.columns.put("QUANTITY_OFFERED", i);
-                        } else if (normalized.equals("UOM") && mapping.columns.containsKey("UOM")) {
-                            mapping.columns.put("UOM_OFFERED", i);
-                        } else if (normalized.contains("UNIT COST")) {
-                            mapping.columns.put("UNIT_PRICE", i);
-                        } else if (normalized.contains("DISC")) {
-                            mapping.columns.put("DISCOUNT", i);
-                        } else if (normalized.contains("LINE COST")) {
-                            mapping.columns.put("TOTAL", i);
-                        }
-                        
-                        mapping.columnNames.add(value);
+
+        public void endRow(int rowIndex, Row row) {
+            if (profile.headerRow >= 0) {
+                int i = rowIndex - firstCandidate;
+                if (!located && i >= 0 && i < candidates.length) {
+                    signatures[i] = signature;
+                    candidates[i] = row;
+                    if (rowIndex == profile.headerRow && row != null) {
+                        accept(rowIndex);
+                        located = profile.headerSearchRadius == 0 || profile.isKnownHeader(signature);
+                    }
+                    if (!located && i == candidates.length - 1) {
+                        locate();
+                        located = true;
                     }
                 }
+            } else if (nonEmptyCount >= profile.headerMinCells && score > maxScore) {
+                // La fila debe tener un mínimo de celdas no vacías
+                maxScore = score;
+                accept(rowIndex);
             }
+            reset();
         }
-    }
-    
-    /**
-     * BSM CATERING
-     * Header en fila 19: No, Product Code, Description, Part Number, Brand,
-     *                    Weight, Unit, Package, Contract Price, Quantity,
-     *                    Unit Price ( USD ), Discount %, VAT %, Total Price,
-     *                    MD, sDoC, Vendor Remarks
-     */
-    private static void detectBSMColumns(Sheet sheet, ColumnMapping mapping) {
-        Row row = sheet.getRow(18); // Fila 19 (índice 18)
-        if (row != null) {
-            mapping.headerRow = 18;
-            
-            // Primero llenar columnNames con todos los valores
-            for (int i = 0; i < 25; i++) {
-                Cell cell = row.getCell(i);
-                String value = getCellValueAsString(cell);
-                if (value != null && !value.trim().isEmpty()) {
-                    mapping.columnNames.add(value);
-                } else {
-                    mapping.columnNames.add("");
+
+        /**
+         * La fila esperada no tiene una firma conocida: primera candidata con
+         * firma conocida hacia afuera, o la que mapea más campos
+         */
+        private void locate() {
+            for (int rowIndex : searchOrder) {
+                int i = rowIndex - firstCandidate;
+                if (candidates[i] != null && profile.isKnownHeader(signatures[i])) {
+                    if (rowIndex != mapping.headerRow) {
+                        mapRow(rowIndex);
+                    }
+                    return;
                 }
             }
-            
-            // Luego mapear columnas
-            for (int i = 0; i < 25; i++) {
-                Cell cell = row.getCell(i);
-                if (cell != null) {
-                    String value = getCellValueAsString(cell);
-                    if (value != null && !value.trim().isEmpty()) {
-                        String normalized = value.toUpperCase().trim();
-                        
-                        // Capturar estilo de la celda
-                        CellStyleInfo styleInfo = CellStyleInfo.fromCell(cell);
-                        mapping.columnStyles.put(i, styleInfo);
-                        
-                        // Mapear columnas conocidas
-                        if (normalized.equals("NO")) {
-                            mapping.columns.put("LINE_NO", i);
-                        } else if (normalized.contains("PRODUCT CODE")) {
-                            mapping.columns.put("PRODUCT_CODE", i);
-                        } else if (normalized.equals("DESCRIPTION")) {
-                            mapping.columns.put("ITEM_NAME", i);
-                        } else if (normalized.contains("PART NUMBER")) {
-                            mapping.columns.put("ITEM_CODE", i);
-                        } else if (normalized.equals("BRAND")) {
-                            mapping.columns.put("BRAND", i);
-                        } else if (normalized.equals("WEIGHT")) {
-                            mapping.columns.put("WEIGHT", i);
-                        } else if (normalized.equals("UNIT")) {
-                            mapping.columns.put("UOM", i);
-                        } else if (normalized.equals("PACKAGE")) {
-                            mapping.columns.put("PACKAGE", i);
-                        } else if (normalized.contains("CONTRACT PRICE")) {
-                            mapping.columns.put("CONTRACT_PRICE", i);
-                        } else if (normalized.equals("QUANTITY")) {
-                            mapping.columns.put("QUANTITY", i);
-                        } else if (normalized.contains("UNIT PRICE")) {
-                            mapping.columns.put("UNIT_PRICE", i);
-                        } else if (normalized.contains("DISCOUNT")) {
-                            mapping.columns.put("DISCOUNT", i);
-                        } else if (normalized.contains("VAT")) {
-                            mapping.columns.put("VAT", i);
-                        } else if (normalized.contains("TOTAL PRICE")) {
-                            mapping.columns.put("TOTAL", i);
-                        } else if (normalized.equals("MD")) {
-                            mapping.columns.put("MD", i);
-                        } else if (normalized.contains("SDOC")) {
-                            mapping.columns.put("SDOC", i);
-                        } else if (normalized.contains("VENDOR REMARKS")) {
-                            mapping.columns.put("VENDOR_REMARKS", i);
-                        }
-                    }
+
+            int minFields = (profile.columnFields + 1) / 2;
+            int best = -1;
+            int bestFields = mapping.headerRow >= 0 ? mapping.columns.size() : 0;
+            for (int rowIndex : searchOrder) {
+                int i = rowIndex - firstCandidate;
+                if (candidates[i] == null || rowIndex == mapping.headerRow) continue;
+
+                int fields = countFields(candidates[i]);
+                if (fields >= minFields && fields > bestFields) {
+                    best = rowIndex;
+                    bestFields = fields;
                 }
             }
+            // Sin una fila que se parezca a la cabecera queda la esperada, como sin búsqueda
+            if (best >= 0) {
+                mapRow(best);
+            }
         }
-    }
-    
-    /**
-     * Detección genérica de columnas
-     * Busca la fila con más headers típicos de cotizaciones
-     */
-    private static void detectGenericColumns(Sheet sheet, ColumnMapping mapping) {
-        int maxScore = 0;
-        int bestRow = -1;
-        
-        // Palabras clave para identificar headers
-        String[] keywords = {
-            "DESCRIPTION", "ITEM", "QUANTITY", "PRICE", "UNIT", "TOTAL",
-            "QTY", "UOM", "AMOUNT", "CODE", "PART"
-        };
-        
-        // Buscar en las primeras 30 filas
-        for (int rowIdx = 0; rowIdx < 30; rowIdx++) {
-            Row row = sheet.getRow(rowIdx);
-            if (row == null) continue;
-            
-            int score = 0;
-            int nonEmptyCount = 0;
-            
-            for (int i = 0; i < 20; i++) {
-                Cell cell = row.getCell(i);
-                if (cell != null) {
-                    String value = getCellValueAsString(cell);
-                    if (value != null && !value.trim().isEmpty()) {
-                        nonEmptyCount++;
-                        String normalized = value.toUpperCase().trim();
-                        
-                        for (String keyword : keywords) {
-                            if (normalized.contains(keyword)) {
-                                score += 2;
-                                break;
-                            }
-                        }
-                    }
-                }
+
+        private int countFields(Row row) {
+            reset();
+            walk(row);
+            int fields = columns.size();
+            reset();
+            return fields;
+        }
+
+        private void mapRow(int rowIndex) {
+            reset();
+            walk(candidates[rowIndex - firstCandidate]);
+            signature = signatures[rowIndex - firstCandidate];
+            accept(rowIndex);
+        }
+
+        /** Mapea una fila candidata ya visitada (sólo fuera del calce exacto) */
+        private void walk(Row row) {
+            CellValueDecoder decoder = CellValueDecoder.current();
+            if (hits == null) {
+                hits = profile.getMatcher().newHits();
             }
-            
-            // La fila debe tener al menos 4 celdas no vacías
-            if (nonEmptyCount >= 4 && score > maxScore) {
-                maxScore = score;
-                bestRow = rowIdx;
+            for (Cell cell : row) {
+                int column = cell.getColumnIndex();
+                if (column >= profile.headerColumns) continue;
+
+                CharSequence text = decoder.text(cell);
+                if (CellValueDecoder.isBlank(text)) continue;
+                addCell(column, cell, text, profile.getMatcher().scan(text, hits));
             }
         }
-        
-        if (bestRow >= 0) {
-            mapping.headerRow = bestRow;
-            Row row = sheet.getRow(bestRow);
-            
-            for (int i = 0; i < 20; i++) {
-                Cell cell = row.getCell(i);
-                if (cell != null) {
-                    String value = getCellValueAsString(cell);
-                    if (value != null && !value.trim().isEmpty()) {
-                        String normalized = value.toUpperCase().trim();
-                        
-                        // Mapeo genérico
-                        if (normalized.contains("ITEM") && normalized.contains("CODE")) {
-                            mapping.columns.put("ITEM_CODE", i);
-                        } else if (normalized.contains("DESCRIPTION") || 
-                                   (normalized.contains("ITEM") && !normalized.contains("CODE"))) {
-                            mapping.columns.put("ITEM_NAME", i);
-                        } else if (normalized.contains("QUANTITY") || normalized.equals("QTY")) {
-                            mapping.columns.put("QUANTITY", i);
-                        } else if (normalized.contains("UNIT") && normalized.contains("PRICE")) {
-                            mapping.columns.put("UNIT_PRICE", i);
-                        } else if (normalized.equals("PRICE")) {
-                            mapping.columns.put("UNIT_PRICE", i);
-                        } else if (normalized.equals("UOM") || normalized.equals("UNIT")) {
-                            mapping.columns.put("UOM", i);
-                        } else if (normalized.contains("TOTAL") || normalized.contains("AMOUNT")) {
-                            mapping.columns.put("TOTAL", i);
-                        } else if (normalized.contains("BRAND")) {
-                            mapping.columns.put("BRAND", i);
-                        } else if (normalized.contains("CATEGORY")) {
-                            mapping.columns.put("CATEGORY", i);
-                        }
-                        
-                        mapping.columnNames.add(value);
-                    }
+
+        private void addCell(int column, Cell cell, CharSequence text, HeaderMatcher.Hits hits) {
+            nonEmptyCount++;
+            if (profile.headerRow < 0 && profile.hasHeaderKeyword(hits)) {
+                score += 2;
+            }
+
+            String field = profile.mapColumn(hits, columns);
+            if (field != null) {
+                columns.put(field, column);
+            }
+            names[column] = text.toString();
+            if (profile.headerStyles) {
+                styles.put(column, CellStyleInfo.fromCell(cell));
+            }
+        }
+
+        private void accept(int rowIndex) {
+            mapping.headerRow = rowIndex;
+            mapping.headerSignature = signature;
+            mapping.columns = columns;
+            mapping.columnStyles = styles;
+            mapping.columnNames = new ArrayList<String>();
+            for (String name : names) {
+                if (name != null) {
+                    mapping.columnNames.add(name);
+                } else if (profile.positionalNames) {
+                    mapping.columnNames.add("");
                 }
             }
+            columns = new HashMap<String, Integer>();
+            styles = new HashMap<Integer, CellStyleInfo>();
+        }
+
+        private void reset() {
+            if (!columns.isEmpty()) {
+                columns = new HashMap<String, Integer>();
+            }
+            if (!styles.isEmpty()) {
+                styles = new HashMap<Integer, CellStyleInfo>();
+            }
+            Arrays.fill(names, null);
+            score = 0;
+            nonEmptyCount = 0;
+            signature = 0;
         }
     }
-    
-    private static String getCellValueAsString(Cell cell) {
-        if (cell == null) return null;
-        
-        switch (cell.getCellType()) {
-            case Cell.CELL_TYPE_STRING:
-                return cell.getStringCellValue();
-            case Cell.CELL_TYPE_NUMERIC:
-                if (DateUtil.isCellDateFormatted(cell)) {
-                    return cell.getDateCellValue().toString();
-                } else {
-                    return String.valueOf(cell.getNumericCellValue());
-                }
-            case Cell.CELL_TYPE_BOOLEAN:
-                return String.valueOf(cell.getBooleanCellValue());
-            case Cell.CELL_TYPE_FORMULA:
-                // Intentar obtener valor calculado
-                try {
-                    return cell.getStringCellValue();
-                } catch (Exception e) {
-                    return cell.getCellFormula();
-                }
-            default:
-                return null;
+
+    /**
+     * Hash de un texto de cabecera: mayúsculas, sin espacios extremos y con
+     * los espacios internos reducidos a uno. La firma de una fila es la suma
+     * de los de sus celdas, independiente del orden de las columnas.
+     */
+    static long tokenHash(CharSequence text) {
+        int start = 0;
+        int end = text.length();
+        while (start < end && text.charAt(start) <= ' ') start++;
+        while (end > start && text.charAt(end - 1) <= ' ') end--;
+
+        long h = 0xcbf29ce484222325L;
+        boolean space = false;
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (c <= ' ') {
+                space = true;
+                continue;
+            }
+            if (space) {
+                h = (h ^ ' ') * 0x100000001b3L;
+                space = false;
+            }
+            h = (h ^ Character.toUpperCase(c)) * 0x100000001b3L;
         }
+
+        // Mezcla final para que la suma de varias celdas no colisione fácilmente
+        h = (h ^ (h >>> 33)) * 0xff51afd7ed558ccdL;
+        h = (h ^ (h >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return h ^ (h >>> 33);
     }
 }
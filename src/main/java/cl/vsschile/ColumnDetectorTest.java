@@ -1,8 +1,6 @@
 package cl.vsschile;
 
 import org.apache.poi.ss.usermodel.*;
-import org.apache.poi.xssf.usermodel.XSSFWorkbook;
-import org.apache.poi.hssf.usermodel.HSSFWorkbook;
 
 import java.io.*;
 
@@ -11,6 +9,9 @@ import java.io.*;
  */
 public class ColumnDetectorTest {
     
+    /** Filas leídas bajo la ventana de cabecera para mostrar datos de ejemplo */
+    private static final int SAMPLE_SCAN_ROWS = 50;
+    
     public static void main(String[] args) {
         if (args.length < 1) {
             System.out.println("Uso: java ColumnDetectorTest <directorio-brokers>");
@@ -48,12 +49,7 @@ public class ColumnDetectorTest {
     private static void processBrokerDirectory(File brokerDir) {
         String brokerName = brokerDir.getName();
         
-        File[] files = brokerDir.listFiles(new FilenameFilter() {
-            public boolean accept(File dir, String name) {
-                String lower = name.toLowerCase();
-                return lower.endsWith(".xlsx") || lower.endsWith(".xls") || lower.endsWith(".xlsm");
-            }
-        });
+        File[] files = brokerDir.listFiles(WorkbookLoader.EXCEL_FILES);
         
         if (files == null || files.length == 0) {
             return;
@@ -67,13 +63,20 @@ public class ColumnDetectorTest {
         System.out.println("  Archivo: " + sampleFile.getName());
         System.out.println("╚════════════════════════════════════════════════════════════╝");
         
+        WorkbookSession session = null;
         try {
-            ColumnDetector.ColumnMapping mapping = detectColumnsFromFile(sampleFile, brokerName);
+            // Una sola lectura: cabecera del broker más algunas filas para los datos de ejemplo
+            session = WorkbookSession.openHeader(sampleFile, 
+                ColumnDetector.getHeaderScanRows(brokerName) + SAMPLE_SCAN_ROWS);
+            ColumnDetector.ColumnMapping mapping = session.detectColumns(brokerName);
             
             if (mapping.isValid()) {
                 System.out.println("\n✓ Columnas detectadas exitosamente");
                 System.out.println("  Fila de headers: " + (mapping.headerRow + 1));
                 System.out.println("  Total columnas mapeadas: " + mapping.columns.size());
+                if (mapping.headerSignature != 0) {
+                    System.out.println("  Firma de cabecera: " + String.format("%016x", mapping.headerSignature));
+                }
                 System.out.println("\nMapeo de columnas:");
                 
                 // Ordenar por índice de columna
@@ -97,7 +100,7 @@ public class ColumnDetectorTest {
                 }
                 
                 // Mostrar datos de ejemplo
-                showSampleData(sampleFile, mapping);
+                showSampleData(session.getSheet(), mapping);
                 
             } else {
                 System.out.println("\n✗ No se pudieron detectar columnas");
@@ -106,125 +109,57 @@ public class ColumnDetectorTest {
         } catch (Exception e) {
             System.err.println("\n✗ Error al procesar: " + e.getMessage());
             e.printStackTrace();
+        } finally {
+            if (session != null) {
+                try {
+                    session.close();
+                } catch (IOException e) {
+                    // Ignorar
+                }
+            }
         }
         
         System.out.println("\n");
     }
     
-    private static ColumnDetector.ColumnMapping detectColumnsFromFile(File file, String brokerName) 
-            throws Exception {
-        FileInputStream fis = new FileInputStream(file);
-        Workbook workbook = null;
+    private static void showSampleData(Sheet sheet, ColumnDetector.ColumnMapping mapping) {
+        System.out.println("\nDatos de ejemplo (primeras 3 filas):");
+        System.out.println("─────────────────────────────────────");
         
-        try {
-            String fileName = file.getName().toLowerCase();
-            if (fileName.endsWith(".xlsx") || fileName.endsWith(".xlsm")) {
-                workbook = new XSSFWorkbook(fis);
-            } else {
-                workbook = new HSSFWorkbook(fis);
-            }
+        // Mostrar hasta 3 filas de datos
+        int dataRowsShown = 0;
+        for (int i = mapping.headerRow + 1; i < sheet.getLastRowNum() && dataRowsShown < 3; i++) {
+            Row row = sheet.getRow(i);
+            if (row == null) continue;
             
-            Sheet sheet = workbook.getSheetAt(0);
-            return ColumnDetector.detectColumns(sheet, brokerName);
-            
-        } finally {
-            if (workbook != null) {
-                workbook.close();
-            }
-            fis.close();
-        }
-    }
-    
-    private static void showSampleData(File file, ColumnDetector.ColumnMapping mapping) 
-            throws Exception {
-        FileInputStream fis = new FileInputStream(file);
-        Workbook workbook = null;
-        
-        try {
-            String fileName = file.getName().toLowerCase();
-            if (fileName.endsWith(".xlsx") || fileName.endsWith(".xlsm")) {
-                workbook = new XSSFWorkbook(fis);
-            } else {
-                workbook = new HSSFWorkbook(fis);
+            // Verificar si la fila tiene datos
+            boolean hasData = false;
+            Integer itemCol = mapping.columns.get("ITEM_NAME");
+            if (itemCol != null) {
+                Cell cell = row.getCell(itemCol);
+                if (!CellValueDecoder.current().isBlank(cell)) {
+                    hasData = true;
+                }
             }
             
-            Sheet sheet = workbook.getSheetAt(0);
-            System.out.println("\nDatos de ejemplo (primeras 3 filas):");
-            System.out.println("─────────────────────────────────────");
+            if (!hasData) continue;
             
-            // Mostrar hasta 3 filas de datos
-            int dataRowsShown = 0;
-            for (int i = mapping.headerRow + 1; i < sheet.getLastRowNum() && dataRowsShown < 3; i++) {
-                Row row = sheet.getRow(i);
-                if (row == null) continue;
-                
-                // Verificar si la fila tiene datos
-                boolean hasData = false;
-                Integer itemCol = mapping.columns.get("ITEM_NAME");
-                if (itemCol != null) {
-                    Cell cell = row.getCell(itemCol);
-                    if (cell != null && getCellValueAsString(cell) != null) {
-                        hasData = true;
-                    }
-                }
-                
-                if (!hasData) continue;
-                
-                System.out.println("\nFila " + (i + 1) + ":");
-                
-                // Mostrar campos principales
-                String[] mainFields = {"ITEM_NAME", "ITEM_CODE", "QUANTITY", "UOM", "UNIT_PRICE", "TOTAL"};
-                for (String field : mainFields) {
-                    Integer colIdx = mapping.columns.get(field);
-                    if (colIdx != null) {
-                        Cell cell = row.getCell(colIdx);
-                        String value = getCellValueAsString(cell);
-                        if (value != null && !value.trim().isEmpty()) {
-                            System.out.println("  " + field + ": " + value);
-                        }
+            System.out.println("\nFila " + (i + 1) + ":");
+            
+            // Mostrar campos principales
+            String[] mainFields = {"ITEM_NAME", "ITEM_CODE", "QUANTITY", "UOM", "UNIT_PRICE", "TOTAL"};
+            for (String field : mainFields) {
+                Integer colIdx = mapping.columns.get(field);
+                if (colIdx != null) {
+                    Cell cell = row.getCell(colIdx);
+                    String value = CellValueDecoder.current().trimmedValue(cell);
+                    if (value != null && !value.trim().isEmpty()) {
+                        System.out.println("  " + field + ": " + value);
                     }
                 }
-                
-                dataRowsShown++;
             }
             
-        } finally {
-            if (workbook != null) {
-                workbook.close();
-            }
-            fis.close();
-        }
-    }
-    
-    private static String getCellValueAsString(Cell cell) {
-        if (cell == null) return null;
-        
-        switch (cell.getCellType()) {
-            case Cell.CELL_TYPE_STRING:
-                return cell.getStringCellValue().trim();
-            case Cell.CELL_TYPE_NUMERIC:
-                if (DateUtil.isCellDateFormatted(cell)) {
-                    return cell.getDateCellValue().toString();
-                } else {
-                    double numValue = cell.getNumericCellValue();
-                    if (numValue == (long) numValue) {
-                        return String.valueOf((long) numValue);
-                    } else {
-                        return String.valueOf(numValue);
-                    }
-                }
-            case Cell.CELL_TYPE_BOOLEAN:
-                return String.valueOf(cell.getBooleanCellValue());
-            case Cell.CELL_TYPE_FORMULA:
-                try {
-                    return cell.getStringCellValue().trim();
-                } catch (Exception e) {
-                    return "[Formula: " + cell.getCellFormula() + "]";
-                }
-            case Cell.CELL_TYPE_BLANK:
-                return null;
-            default:
-                return null;
+            dataRowsShown++;
         }
     }
     
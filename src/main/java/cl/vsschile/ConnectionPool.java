@@ -0,0 +1,480 @@
+package cl.vsschile;
+
+import javax.sql.DataSource;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Pool de conexiones JDBC compartido por todas las herramientas.
+ *
+ * Abrir una conexión a PostgreSQL (TCP, TLS, autenticación) cuesta más que
+ * las consultas que sirve; el pool las reutiliza. getConnection() entrega una
+ * conexión del pool y su close() la devuelve en vez de cerrarla.
+ *
+ * - Tamaño máximo: getConnection() espera hasta maxWait si todas están en uso.
+ * - Tamaño mínimo: un hilo de mantenimiento repone las conexiones inactivas.
+ * - Validación: una conexión que no se probó en los últimos
+ *   validationInterval se prueba (isValid) antes de entregarla; las que
+ *   fallan se descartan. Usarla no cuenta como prueba: un error en una
+ *   sentencia puede haber dejado la conexión física caída.
+ * - Desalojo: las inactivas por más de idleTimeout se cierran, sin bajar
+ *   del mínimo.
+ * - Métricas: getStats().
+ *
+ * Una conexión devuelta con una transacción abierta se revierte y vuelve a
+ * autocommit; una que falló con un error de conexión (SQLState 08) se descarta.
+ */
+public class ConnectionPool implements DataSource {
+
+    public static final int DEFAULT_MIN_SIZE = 1;
+    public static final int DEFAULT_MAX_SIZE = 8;
+    public static final long DEFAULT_MAX_WAIT_MILLIS = 30000;
+    public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 10 * 60 * 1000;
+    public static final long DEFAULT_VALIDATION_INTERVAL_MILLIS = 5000;
+
+    /** Segundos de espera de isValid() */
+    private static final int VALIDATION_TIMEOUT_SECONDS = 3;
+
+    /** Pools por URL y usuario, para que las herramientas del mismo proceso compartan conexiones */
+    private static final ConcurrentMap<String, ConnectionPool> SHARED = new ConcurrentHashMap<String, ConnectionPool>();
+
+    /**
+     * Métricas del pool en un instante
+     */
+    public static class Stats {
+        /** Conexiones físicas abiertas */
+        public int total;
+        public int idle;
+        public int active;
+        /** Hilos esperando una conexión */
+        public int waiting;
+        public long created;
+        public long destroyed;
+        public long borrowed;
+        /** Entregas que debieron esperar a que se liberara una conexión */
+        public long waited;
+        public long timeouts;
+        /** Conexiones descartadas por fallar la validación o un error de conexión */
+        public long invalid;
+
+        public String toString() {
+            return String.format("Conexiones: %d abiertas (%d en uso, %d libres, %d esperando); " +
+                "%d entregas, %d con espera, %d tiempos agotados; %d creadas, %d cerradas, %d inválidas",
+                total, active, idle, waiting, borrowed, waited, timeouts, created, destroyed, invalid);
+        }
+    }
+
+    /**
+     * Cupos de conexiones en uso; reducible para achicar el pool en caliente
+     */
+    private static final class Slots extends Semaphore {
+        private static final long serialVersionUID = 1L;
+
+        Slots(int permits) {
+            super(permits, true);
+        }
+
+        void reduce(int permits) {
+            reducePermits(permits);
+        }
+    }
+
+    /**
+     * Conexión física y su estado en el pool
+     */
+    private static final class PooledConnection {
+        final Connection physical;
+        /** Última devolución al pool (desalojo por inactividad) */
+        volatile long lastUsed = System.currentTimeMillis();
+        /** Creación o última validación exitosa */
+        volatile long lastValidated = lastUsed;
+        volatile boolean broken;
+
+        PooledConnection(Connection physical) {
+            this.physical = physical;
+        }
+    }
+
+    private final String url;
+    private final String user;
+    private final String password;
+
+    private int minSize = DEFAULT_MIN_SIZE;
+    private int maxSize = DEFAULT_MAX_SIZE;
+    private long maxWaitMillis = DEFAULT_MAX_WAIT_MILLIS;
+    private long idleTimeoutMillis = DEFAULT_IDLE_TIMEOUT_MILLIS;
+    private long validationIntervalMillis = DEFAULT_VALIDATION_INTERVAL_MILLIS;
+
+    /** Inactivas; la más recién usada al frente, la más antigua al final */
+    private final LinkedBlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<PooledConnection>();
+    private final Slots permits = new Slots(DEFAULT_MAX_SIZE);
+    private final AtomicInteger total = new AtomicInteger();
+
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong destroyed = new AtomicLong();
+    private final AtomicLong borrowed = new AtomicLong();
+    private final AtomicLong waited = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong invalid = new AtomicLong();
+
+    private ScheduledExecutorService maintenance;
+    private volatile boolean closed;
+
+    private PrintWriter logWriter;
+    private int loginTimeout;
+
+    public ConnectionPool(String url, String user, String password) {
+        this.url = url;
+        this.user = user;
+        this.password = password;
+    }
+
+    /**
+     * Pool compartido para la base de datos indicada (se crea la primera vez)
+     */
+    public static ConnectionPool get(String host, int port, String database, String user, String password) {
+        String url = "jdbc:postgresql://" + host + ":" + port + "/" + database;
+        String key = url + "|" + user;
+        ConnectionPool pool = SHARED.get(key);
+        if (pool == null || pool.closed) {
+            synchronized (SHARED) {
+                pool = SHARED.get(key);
+                if (pool == null || pool.closed) {
+                    pool = new ConnectionPool(url, user, password);
+                    SHARED.put(key, pool);
+                }
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * Conexiones que el pool mantiene abiertas aunque estén inactivas
+     */
+    public ConnectionPool minSize(int minSize) {
+        this.minSize = minSize;
+        return this;
+    }
+
+    /**
+     * Conexiones simultáneas como máximo. Al achicarlo, las conexiones en uso
+     * sobre el nuevo máximo siguen hasta que se devuelven.
+     */
+    public synchronized ConnectionPool maxSize(int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("El pool necesita al menos una conexión");
+        }
+        if (maxSize > this.maxSize) {
+            permits.release(maxSize - this.maxSize);
+        } else if (maxSize < this.maxSize) {
+            permits.reduce(this.maxSize - maxSize);
+        }
+        this.maxSize = maxSize;
+        return this;
+    }
+
+    /**
+     * Asegura al menos maxSize conexiones simultáneas (para herramientas que comparten el pool)
+     */
+    public synchronized ConnectionPool ensureMaxSize(int maxSize) {
+        return maxSize > this.maxSize ? maxSize(maxSize) : this;
+    }
+
+    public ConnectionPool maxWait(long millis) {
+        this.maxWaitMillis = millis;
+        return this;
+    }
+
+    public ConnectionPool idleTimeout(long millis) {
+        this.idleTimeoutMillis = millis;
+        return this;
+    }
+
+    public ConnectionPool validationInterval(long millis) {
+        this.validationIntervalMillis = millis;
+        return this;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public Connection getConnection() throws SQLException {
+        if (closed) {
+            throw new SQLException("El pool de conexiones está cerrado");
+        }
+        startMaintenance();
+
+        if (!permits.tryAcquire()) {
+            waited.incrementAndGet();
+            boolean acquired;
+            try {
+                acquired = permits.tryAcquire(maxWaitMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrumpido esperando una conexión");
+            }
+            if (!acquired) {
+                timeouts.incrementAndGet();
+                throw new SQLException("Tiempo de espera agotado: las " + maxSize
+                    + " conexiones del pool están en uso");
+            }
+        }
+
+        try {
+            PooledConnection pooled = take();
+            borrowed.incrementAndGet();
+            return proxy(pooled);
+        } catch (SQLException e) {
+            permits.release();
+            throw e;
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Una conexión inactiva válida, o una nueva
+     */
+    private PooledConnection take() throws SQLException {
+        PooledConnection pooled;
+        while ((pooled = idle.pollFirst()) != null) {
+            if (System.currentTimeMillis() - pooled.lastValidated < validationIntervalMillis || isValid(pooled)) {
+                return pooled;
+            }
+            invalid.incrementAndGet();
+            destroy(pooled);
+        }
+        return create();
+    }
+
+    private PooledConnection create() throws SQLException {
+        Connection physical = DriverManager.getConnection(url, user, password);
+        total.incrementAndGet();
+        created.incrementAndGet();
+        return new PooledConnection(physical);
+    }
+
+    private boolean isValid(PooledConnection pooled) {
+        try {
+            if (pooled.physical.isValid(VALIDATION_TIMEOUT_SECONDS)) {
+                pooled.lastValidated = System.currentTimeMillis();
+                return true;
+            }
+            return false;
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private void destroy(PooledConnection pooled) {
+        total.decrementAndGet();
+        destroyed.incrementAndGet();
+        try {
+            pooled.physical.close();
+        } catch (SQLException e) {
+            // Ignorar
+        }
+    }
+
+    /**
+     * Devuelve la conexión al pool, dejándola en autocommit y sin transacción abierta
+     */
+    private void release(PooledConnection pooled) {
+        try {
+            if (!pooled.broken && !closed) {
+                try {
+                    if (!pooled.physical.getAutoCommit()) {
+                        pooled.physical.rollback();
+                        pooled.physical.setAutoCommit(true);
+                    }
+                    pooled.physical.clearWarnings();
+                } catch (SQLException e) {
+                    pooled.broken = true;
+                }
+            }
+            if (pooled.broken || closed) {
+                if (pooled.broken) {
+                    invalid.incrementAndGet();
+                }
+                destroy(pooled);
+            } else {
+                pooled.lastUsed = System.currentTimeMillis();
+                idle.offerFirst(pooled);
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Conexión que delega en la física salvo close(), que la devuelve al pool
+     */
+    private Connection proxy(final PooledConnection pooled) {
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+            new Class<?>[] {Connection.class}, new InvocationHandler() {
+                private boolean released;
+
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    String name = method.getName();
+                    synchronized (this) {
+                        if (name.equals("close")) {
+                            if (!released) {
+                                released = true;
+                                release(pooled);
+                            }
+                            return null;
+                        }
+                        if (name.equals("isClosed")) {
+                            return released || pooled.physical.isClosed();
+                        }
+                        if (released) {
+                            if (name.equals("equals")) return proxy == args[0];
+                            if (name.equals("hashCode")) return System.identityHashCode(proxy);
+                            if (name.equals("toString")) return "Conexión devuelta al pool";
+                            throw new SQLException("La conexión ya fue devuelta al pool");
+                        }
+                    }
+                    if (name.equals("equals")) return proxy == args[0];
+                    if (name.equals("hashCode")) return System.identityHashCode(proxy);
+                    if (name.equals("unwrap") && ((Class<?>) args[0]).isInstance(proxy)) return proxy;
+                    if (name.equals("isWrapperFor") && ((Class<?>) args[0]).isInstance(proxy)) return true;
+
+                    try {
+                        return method.invoke(pooled.physical, args);
+                    } catch (InvocationTargetException e) {
+                        Throwable cause = e.getCause();
+                        if (cause instanceof SQLException) {
+                            String state = ((SQLException) cause).getSQLState();
+                            if (state != null && state.startsWith("08")) {
+                                pooled.broken = true;
+                            }
+                        }
+                        throw cause;
+                    }
+                }
+            });
+    }
+
+    /**
+     * Desaloja las conexiones inactivas por más de idleTimeout y repone el mínimo
+     */
+    void maintain() {
+        long now = System.currentTimeMillis();
+        PooledConnection oldest;
+        while (total.get() > minSize && (oldest = idle.peekLast()) != null
+                && now - oldest.lastUsed > idleTimeoutMillis) {
+            if (idle.removeLastOccurrence(oldest)) {
+                destroy(oldest);
+            }
+        }
+
+        while (!closed && total.get() < minSize) {
+            try {
+                PooledConnection pooled = create();
+                if (closed) {
+                    destroy(pooled);
+                } else {
+                    idle.offerLast(pooled);
+                }
+            } catch (SQLException e) {
+                // La base de datos no responde: se reintenta en la próxima pasada
+                break;
+            }
+        }
+    }
+
+    private synchronized void startMaintenance() {
+        if (maintenance != null || closed) {
+            return;
+        }
+        maintenance = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "connection-pool");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        long period = Math.max(1000, Math.min(idleTimeoutMillis / 2, 60000));
+        maintenance.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                maintain();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    public Stats getStats() {
+        Stats stats = new Stats();
+        stats.total = total.get();
+        stats.idle = idle.size();
+        stats.active = Math.max(0, stats.total - stats.idle);
+        stats.waiting = permits.getQueueLength();
+        stats.created = created.get();
+        stats.destroyed = destroyed.get();
+        stats.borrowed = borrowed.get();
+        stats.waited = waited.get();
+        stats.timeouts = timeouts.get();
+        stats.invalid = invalid.get();
+        return stats;
+    }
+
+    /**
+     * Cierra las conexiones inactivas; las que están en uso se cierran al devolverse
+     */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            if (maintenance != null) {
+                maintenance.shutdownNow();
+            }
+        }
+        PooledConnection pooled;
+        while ((pooled = idle.pollFirst()) != null) {
+            destroy(pooled);
+        }
+    }
+
+    public Connection getConnection(String username, String password) throws SQLException {
+        throw new SQLFeatureNotSupportedException("El pool usa un solo usuario: " + user);
+    }
+
+    public PrintWriter getLogWriter() {
+        return logWriter;
+    }
+
+    public void setLogWriter(PrintWriter out) {
+        this.logWriter = out;
+    }
+
+    public void setLoginTimeout(int seconds) {
+        this.loginTimeout = seconds;
+    }
+
+    public int getLoginTimeout() {
+        return loginTimeout;
+    }
+
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) {
+            return iface.cast(this);
+        }
+        throw new SQLException("No es un " + iface.getName());
+    }
+
+    public boolean isWrapperFor(Class<?> iface) {
+        return iface.isInstance(this);
+    }
+}
@@ -0,0 +1,127 @@
+package cl.vsschile;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Índice persistente de contenidos ya guardados: hash SHA-256 → ruta (relativa
+ * al directorio base) del archivo original guardado con ese contenido.
+ *
+ * Las copias posteriores del mismo contenido se registran como referencia al
+ * original en vez de guardarse de nuevo. Si el original ya no existe, el hash
+ * sale del índice y el siguiente archivo con ese contenido pasa a ser el original.
+ *
+ * Formato del archivo: una línea por entrada, hash y ruta separados por tabulador.
+ */
+public class ContentStore implements IngestionPipeline.ContentIndex {
+
+    private static final String HEADER = "# sha256\truta";
+
+    private final File indexFile;
+    private final File baseDir;
+    private final ConcurrentMap<String, String> entries;
+
+    private ContentStore(File indexFile, File baseDir, ConcurrentMap<String, String> entries) {
+        this.indexFile = indexFile;
+        this.baseDir = baseDir;
+        this.entries = entries;
+    }
+
+    /**
+     * Carga el índice (vacío si el archivo todavía no existe)
+     */
+    public static ContentStore load(File indexFile, File baseDir) throws IOException {
+        ConcurrentMap<String, String> entries = new ConcurrentHashMap<String, String>();
+
+        if (indexFile.exists()) {
+            BufferedReader reader = Files.newBufferedReader(indexFile.toPath(), StandardCharsets.UTF_8);
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.isEmpty() || line.startsWith("#")) continue;
+
+                    int tab = line.indexOf('\t');
+                    if (tab > 0) {
+                        entries.put(line.substring(0, tab), line.substring(tab + 1));
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+
+        return new ContentStore(indexFile, baseDir, entries);
+    }
+
+    /**
+     * Índice vacío que al guardarse reemplaza al existente (re-proceso completo)
+     */
+    public static ContentStore empty(File indexFile, File baseDir) {
+        return new ContentStore(indexFile, baseDir, new ConcurrentHashMap<String, String>());
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public String lookup(String contentHash) {
+        String path = entries.get(contentHash);
+        if (path != null && !resolve(path).exists()) {
+            entries.remove(contentHash, path);
+            return null;
+        }
+        return path;
+    }
+
+    /**
+     * Registra el archivo guardado como original de su contenido. Si otro
+     * archivo ya estaba registrado con ese hash se mantiene el primero.
+     */
+    public void register(String contentHash, File storedFile) {
+        entries.putIfAbsent(contentHash, keyOf(storedFile));
+    }
+
+    /**
+     * Archivo al que apunta una referencia devuelta por lookup()
+     */
+    public File resolve(String path) {
+        return new File(baseDir, path.replace('/', File.separatorChar));
+    }
+
+    /**
+     * Escribe el índice (archivo temporal + reemplazo atómico)
+     */
+    public void save() throws IOException {
+        List<String> hashes = new ArrayList<String>(entries.keySet());
+        Collections.sort(hashes);
+
+        File tmp = new File(indexFile.getPath() + ".tmp");
+        BufferedWriter writer = Files.newBufferedWriter(tmp.toPath(), StandardCharsets.UTF_8);
+        try {
+            writer.write(HEADER);
+            writer.newLine();
+            for (String hash : hashes) {
+                String path = entries.get(hash);
+                if (path == null) continue;
+                writer.write(hash + "\t" + path);
+                writer.newLine();
+            }
+        } finally {
+            writer.close();
+        }
+
+        Files.move(tmp.toPath(), indexFile.toPath(),
+            StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private String keyOf(File file) {
+        String path = baseDir.toPath().toAbsolutePath().normalize()
+            .relativize(file.toPath().toAbsolutePath().normalize()).toString();
+        return path.replace(File.separatorChar, '/');
+    }
+}
@@ -0,0 +1,137 @@
+package cl.vsschile;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.PGCopyOutputStream;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Carga masiva con COPY ... FROM STDIN (CSV) del driver de PostgreSQL.
+ *
+ * Las filas se acumulan en un buffer y viajan al servidor en bloques dentro
+ * de una sola operación COPY, en vez de un INSERT (y un round trip) por fila.
+ *
+ * Escape CSV: los textos van siempre entre comillas, con las comillas
+ * internas dobladas, así que comas, comillas, saltos de línea y barras en
+ * los nombres de columna de los brokers llegan tal cual. null se escribe
+ * como campo vacío sin comillas, que COPY lee como NULL (distinto de "",
+ * texto vacío). El carácter NUL, que PostgreSQL no admite en textos, se omite.
+ *
+ * Uso: open(), un text/number/bool por campo y endRow() por fila, y
+ * finish(); ante un error, cancel() deja la conexión utilizable.
+ */
+public class CopyWriter {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final PGCopyOutputStream stream;
+    private final Writer out;
+    private boolean firstField = true;
+
+    private CopyWriter(PGCopyOutputStream stream) {
+        this.stream = stream;
+        this.out = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8), BUFFER_SIZE);
+    }
+
+    /**
+     * Inicia COPY table (columns) FROM STDIN; la conexión queda ocupada hasta finish() o cancel()
+     */
+    public static CopyWriter open(Connection conn, String table, String columns) throws SQLException {
+        PGConnection pgConnection = conn.unwrap(PGConnection.class);
+        return new CopyWriter(new PGCopyOutputStream(pgConnection,
+            "COPY " + table + " (" + columns + ") FROM STDIN WITH (FORMAT csv)", BUFFER_SIZE));
+    }
+
+    public CopyWriter text(String value) throws SQLException {
+        try {
+            separator();
+            if (value != null) {
+                out.write('"');
+                for (int i = 0; i < value.length(); i++) {
+                    char c = value.charAt(i);
+                    if (c == '"') {
+                        out.write("\"\"");
+                    } else if (c != '\0') {
+                        out.write(c);
+                    }
+                }
+                out.write('"');
+            }
+            return this;
+        } catch (IOException e) {
+            throw failed(e);
+        }
+    }
+
+    public CopyWriter number(long value) throws SQLException {
+        try {
+            separator();
+            out.write(Long.toString(value));
+            return this;
+        } catch (IOException e) {
+            throw failed(e);
+        }
+    }
+
+    public CopyWriter bool(boolean value) throws SQLException {
+        try {
+            separator();
+            out.write(value ? 't' : 'f');
+            return this;
+        } catch (IOException e) {
+            throw failed(e);
+        }
+    }
+
+    public void endRow() throws SQLException {
+        try {
+            out.write('\n');
+            firstField = true;
+        } catch (IOException e) {
+            throw failed(e);
+        }
+    }
+
+    /**
+     * Envía lo pendiente y termina el COPY; retorna las filas cargadas
+     */
+    public long finish() throws SQLException {
+        try {
+            out.flush();
+        } catch (IOException e) {
+            throw failed(e);
+        }
+        return stream.endCopy();
+    }
+
+    /**
+     * Aborta el COPY (las filas enviadas se descartan)
+     */
+    public void cancel() {
+        try {
+            if (stream.isActive()) {
+                stream.cancelCopy();
+            }
+        } catch (SQLException e) {
+            // Ignorar
+        }
+    }
+
+    private void separator() throws IOException {
+        if (firstField) {
+            firstField = false;
+        } else {
+            out.write(',');
+        }
+    }
+
+    private SQLException failed(IOException e) {
+        return new SQLException("Error enviando datos de COPY: " + e.getMessage(), e);
+    }
+}
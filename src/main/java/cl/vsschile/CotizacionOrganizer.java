@@ -1,30 +1,140 @@
 package cl.vsschile;
 
 import org.apache.poi.ss.usermodel.*;
-import org.apache.poi.xssf.usermodel.XSSFWorkbook;
-import org.apache.poi.hssf.usermodel.HSSFWorkbook;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
 import java.util.*;
 
 /**
  * Organiza cotizaciones de diferentes brokers por cliente/vessel
+ *
+ * Es una configuración de IngestionPipeline (extraer vessel/IMO y organizar).
+ * En modo paralelo (--parallel) cada etapa usa tantos hilos como núcleos.
+ * Con --watch, después de la pasada inicial queda vigilando los directorios
+ * de brokers y organiza los archivos a medida que llegan.
+ *
+ * --mode=copy|hardlink|symlink elige cómo se materializa cada cotización en la
+ * carpeta del cliente (ver OutputMode). --layout=flat|sharded elige la
+ * distribución de las carpetas de cliente al crear el árbol de salida (ver
+ * OutputLayout); un árbol existente conserva la suya.
+ *
+ * Un mismo archivo enviado por varios brokers o varias veces se organiza una
+ * sola vez: el índice de contenidos (ContentStore, por hash SHA-256) recuerda
+ * dónde quedó el original y los duplicados sólo se registran como referencia.
+ *
+ * Cada cotización organizada (o duplicado) queda registrada en el índice de
+ * clientes (ClientIndex) del directorio de salida, que permite buscar las
+ * cotizaciones de un vessel, IMO o cliente sin recorrer las carpetas.
  */
 public class CotizacionOrganizer {
     
+    /**
+     * Forma de dejar la cotización en la carpeta del cliente
+     */
+    public enum OutputMode {
+        /** Copia completa, hecha por el kernel (FileChannel.transferTo) */
+        COPY,
+        /** Enlace duro: sin espacio extra; requiere el mismo sistema de archivos (si no, se copia) */
+        HARDLINK,
+        /** Enlace simbólico a la ruta absoluta del original */
+        SYMLINK
+    }
+    
     private static final String OUTPUT_DIR = "cotizaciones-por-cliente";
     
+    /** Manifiesto de archivos ya organizados, dentro del directorio de salida */
+    private static final String MANIFEST_FILE = ".manifest.tsv";
+    
+    /** Índice de contenidos ya organizados, dentro del directorio de salida */
+    private static final String CONTENT_INDEX_FILE = ".contenidos.tsv";
+    
+    /** Índice de cotizaciones por cliente, dentro del directorio de salida */
+    public static final String CLIENT_INDEX_FILE = "indice-clientes.tsv";
+    
+    /** Hilos de procesamiento; 1 = secuencial */
+    private final int parallelism;
+    
+    /** Re-procesar todo, ignorando el manifiesto */
+    private boolean full;
+    
+    /** Seguir vigilando los directorios después de la pasada inicial */
+    private boolean watch;
+    
+    private OutputMode outputMode = OutputMode.COPY;
+    
+    /** Distribución pedida para un árbol nuevo; null = la del árbol existente (o plana) */
+    private OutputLayout requestedLayout;
+    
+    private OutputLayout layout = OutputLayout.FLAT;
+    
+    /** Se avisa una sola vez cuando los enlaces duros no son posibles */
+    private volatile boolean hardLinkFallbackReported;
+    
+    public CotizacionOrganizer() {
+        this(1);
+    }
+    
+    public CotizacionOrganizer(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+    }
+    
     public static void main(String[] args) {
         if (args.length < 1) {
-            System.out.println("Uso: java CotizacionOrganizer <directorio-brokers>");
+            System.out.println("Uso: java CotizacionOrganizer <directorio-brokers> [--parallel[=N]] [--full] [--watch] [--mode=copy|hardlink|symlink] [--layout=flat|sharded]");
             return;
         }
         
         String brokersDir = args[0];
-        CotizacionOrganizer organizer = new CotizacionOrganizer();
+        int parallelism = 1;
+        boolean full = false;
+        boolean watch = false;
+        OutputMode mode = OutputMode.COPY;
+        OutputLayout layout = null;
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals("--full")) {
+                full = true;
+            } else if (args[i].equals("--watch")) {
+                watch = true;
+            } else if (args[i].startsWith("--mode=")) {
+                mode = OutputMode.valueOf(args[i].substring("--mode=".length()).toUpperCase());
+            } else if (args[i].startsWith("--layout=")) {
+                layout = OutputLayout.valueOf(args[i].substring("--layout=".length()).toUpperCase());
+            } else if (args[i].equals("--parallel")) {
+                parallelism = Runtime.getRuntime().availableProcessors();
+            } else if (args[i].startsWith("--parallel=")) {
+                parallelism = Integer.parseInt(args[i].substring("--parallel=".length()));
+            }
+        }
+        
+        CotizacionOrganizer organizer = new CotizacionOrganizer(parallelism);
+        organizer.setFull(full);
+        organizer.setWatch(watch);
+        organizer.setOutputMode(mode);
+        organizer.setOutputLayout(layout);
         organizer.processBrokersDirectory(brokersDir);
     }
     
+    public void setFull(boolean full) {
+        this.full = full;
+    }
+    
+    public void setWatch(boolean watch) {
+        this.watch = watch;
+    }
+    
+    public void setOutputMode(OutputMode outputMode) {
+        this.outputMode = outputMode;
+    }
+    
+    /**
+     * Distribución para un directorio de salida nuevo (null = plana o la existente)
+     */
+    public void setOutputLayout(OutputLayout layout) {
+        this.requestedLayout = layout;
+    }
+    
     public void processBrokersDirectory(String brokersPath) {
         File brokersDir = new File(brokersPath);
         
@@ -35,381 +145,270 @@ public class CotizacionOrganizer {
         
         // Crear directorio de salida
         File outputDir = new File(brokersDir.getParent(), OUTPUT_DIR);
-        if (!outputDir.exists()) {
-            outputDir.mkdirs();
-        }
-        
-        System.out.println("Procesando cotizaciones...\n");
-        
-        // Procesar cada broker
-        File[] brokerDirs = brokersDir.listFiles();
-        if (brokerDirs == null) return;
-        
-        for (File brokerDir : brokerDirs) {
-            if (brokerDir.isDirectory()) {
-                processBroker(brokerDir, outputDir);
-            }
-        }
-        
-        System.out.println("\nProceso completado. Archivos organizados en: " + outputDir.getAbsolutePath());
-    }
-    
-    private void processBroker(File brokerDir, File outputDir) {
-        String brokerName = brokerDir.getName();
-        System.out.println("Procesando broker: " + brokerName);
-        
-        File[] files = brokerDir.listFiles(new FilenameFilter() {
-            public boolean accept(File dir, String name) {
-                String lower = name.toLowerCase();
-                return lower.endsWith(".xlsx") || lower.endsWith(".xls");
-            }
-        });
-        
-        if (files == null || files.length == 0) {
-            System.out.println("  - No hay archivos Excel");
+        try {
+            Files.createDirectories(outputDir.toPath());
+        } catch (IOException e) {
+            System.err.println("Error: No se pudo crear el directorio de salida: " + e.getMessage());
             return;
         }
         
-        for (File file : files) {
-            try {
-                processQuotation(file, brokerName, outputDir);
-            } catch (Exception e) {
-                System.err.println("  Error procesando " + file.getName() + ": " + e.getMessage());
-            }
-        }
-    }
-    
-    private void processQuotation(File file, String brokerName, File outputDir) throws Exception {
-        QuotationInfo info = extractQuotationInfo(file, brokerName);
-        
-        if (info.vesselName != null || info.imoNumber != null) {
-            copyToClientDirectory(file, info, outputDir);
-            System.out.println("  ✓ " + file.getName() + " -> Cliente: " + info.getClientKey());
-        } else {
-            System.out.println("  ⚠ " + file.getName() + " (no se encontró información de cliente)");
-        }
-    }
-    
-    private QuotationInfo extractQuotationInfo(File file, String brokerName) throws Exception {
-        FileInputStream fis = new FileInputStream(file);
-        Workbook workbook = null;
-        
+        // Sólo se organizan archivos nuevos o modificados desde la última ejecución
+        ProcessingManifest manifest;
+        final ContentStore contentStore;
+        final ClientIndex clientIndex;
         try {
-            if (file.getName().toLowerCase().endsWith(".xlsx")) {
-                workbook = new XSSFWorkbook(fis);
-            } else {
-                workbook = new HSSFWorkbook(fis);
-            }
+            manifest = ProcessingManifest.load(new File(outputDir, MANIFEST_FILE), brokersDir);
+            manifest.setFull(full);
+            File indexFile = new File(outputDir, CONTENT_INDEX_FILE);
+            contentStore = full ? ContentStore.empty(indexFile, outputDir) : ContentStore.load(indexFile, outputDir);
+            clientIndex = ClientIndex.load(new File(outputDir, CLIENT_INDEX_FILE));
             
-            Sheet sheet = workbook.getSheetAt(0);
-            QuotationInfo info = new QuotationInfo();
-            info.broker = brokerName;
-            info.originalFileName = file.getName();
-            
-            // Detectar formato y extraer información
-            if (brokerName.contains("MCTC")) {
-                extractMCTCInfo(sheet, info);
-            } else if (brokerName.contains("OCEANIC")) {
-                extractOceanicInfo(sheet, info);
-            } else if (brokerName.contains("CMA")) {
-                extractCMAInfo(sheet, info);
-            } else if (brokerName.contains("GARRETS")) {
-                extractGarretsInfo(sheet, info);
-            } else if (brokerName.contains("PROCURESHIP")) {
-                extractProcureshipInfo(sheet, info);
-            } else {
-                // Formato genérico
-                extractGenericInfo(sheet, info);
-            }
-            
-            return info;
-            
-        } finally {
-            if (workbook != null) {
-                workbook.close();
-            }
-            fis.close();
-        }
-    }
-    
-    private void extractMCTCInfo(Sheet sheet, QuotationInfo info) {
-        // MCTC: VESSEL'S NAME en fila 2, IMO NUMBER en fila 3
-        Row row2 = sheet.getRow(1);
-        if (row2 != null) {
-            Cell cell = row2.getCell(4);
-            if (cell != null) {
-                info.vesselName = getCellValueAsString(cell);
+            // La distribución se fija al crear el árbol: mezclar dos dejaría clientes sin ubicar
+            layout = OutputLayout.read(outputDir);
+            if (requestedLayout != null && requestedLayout != layout) {
+                if (clientIndex.size() > 0) {
+                    System.err.println("Error: El directorio de salida ya usa la distribución " 
+                        + layout.name().toLowerCase());
+                    return;
+                }
+                layout = requestedLayout;
             }
+            layout.write(outputDir);
+        } catch (IOException e) {
+            System.err.println("Error: No se pudo leer el manifiesto: " + e.getMessage());
+            return;
         }
         
-        Row row3 = sheet.getRow(2);
-        if (row3 != null) {
-            Cell cell = row3.getCell(4);
-            if (cell != null) {
-                info.imoNumber = getCellValueAsString(cell);
+        // El watcher se crea antes de la pasada inicial para no perder archivos que lleguen durante ella
+        BrokerDirectoryWatcher watcher = null;
+        if (watch) {
+            try {
+                watcher = new BrokerDirectoryWatcher(brokersDir, BrokerDirectoryWatcher.DEFAULT_QUIET_MILLIS);
+            } catch (IOException e) {
+                System.err.println("Error: No se pudo vigilar el directorio: " + e.getMessage());
+                return;
             }
         }
         
-        // Número de cotización en fila 8
-        Row row8 = sheet.getRow(7);
-        if (row8 != null) {
-            Cell cell = row8.getCell(3);
-            if (cell != null) {
-                info.quotationNumber = getCellValueAsString(cell);
-            }
-        }
-    }
-    
-    private void extractOceanicInfo(Sheet sheet, QuotationInfo info) {
-        // Buscar "Vessel" en las primeras 15 filas
-        for (int i = 0; i < 15; i++) {
-            Row row = sheet.getRow(i);
-            if (row == null) continue;
-            
-            for (Cell cell : row) {
-                String value = getCellValueAsString(cell);
-                if (value != null && value.equalsIgnoreCase("Vessel")) {
-                    Cell nextCell = row.getCell(cell.getColumnIndex() + 1);
-                    if (nextCell != null) {
-                        info.vesselName = getCellValueAsString(nextCell);
-                    }
-                } else if (value != null && value.contains("Quotation Request #")) {
-                    Cell nextCell = row.getCell(cell.getColumnIndex() + 1);
-                    if (nextCell != null) {
-                        info.quotationNumber = getCellValueAsString(nextCell);
+        System.out.println("Procesando cotizaciones...\n");
+        
+        final File clientsDir = outputDir;
+        IngestionPipeline pipeline = new IngestionPipeline()
+            .extractQuotationInfo()
+            .manifest(manifest)
+            .contentIndex(contentStore)
+            .readWorkers(parallelism)
+            .detectWorkers(parallelism)
+            .organize(new IngestionPipeline.Stage() {
+                public boolean process(IngestionPipeline.Item item) throws Exception {
+                    if (item.duplicateOf != null) {
+                        return referenceDuplicate(item, clientIndex);
                     }
+                    return organizeQuotation(item, clientsDir, contentStore, clientIndex);
                 }
-            }
-        }
-    }
-    
-    private void extractCMAInfo(Sheet sheet, QuotationInfo info) {
-        // CMA: buscar "Vessel" en las primeras filas
-        for (int i = 0; i < 10; i++) {
-            Row row = sheet.getRow(i);
-            if (row == null) continue;
-            
-            for (Cell cell : row) {
-                String value = getCellValueAsString(cell);
-                if (value != null) {
-                    if (value.trim().equalsIgnoreCase("Vessel")) {
-                        Cell nextCell = row.getCell(cell.getColumnIndex() + 1);
-                        if (nextCell != null) {
-                            info.vesselName = getCellValueAsString(nextCell);
-                        }
+            }, parallelism)
+            .listener(new IngestionPipeline.Listener() {
+                @Override
+                public void brokerDiscovered(String brokerName, int fileCount) {
+                    System.out.println("Procesando broker: " + brokerName);
+                    if (fileCount == 0) {
+                        System.out.println("  - No hay archivos Excel");
                     }
                 }
-            }
-        }
-    }
-    
-    private void extractGarretsInfo(Sheet sheet, QuotationInfo info) {
-        // RFQ number en fila 7
-        Row row7 = sheet.getRow(6);
-        if (row7 != null) {
-            Cell cell = row7.getCell(8);
-            if (cell != null) {
-                info.quotationNumber = getCellValueAsString(cell);
-            }
-        }
+                
+                @Override
+                public void failed(IngestionPipeline.Item item, String stageName, Exception e) {
+                    System.err.println("  Error procesando " + item.brokerName + "/" + item.file.getName() 
+                        + ": " + e.getMessage());
+                }
+            });
         
-        // Buscar columna "Vessel" en headers
-        for (int i = 20; i < 30; i++) {
-            Row row = sheet.getRow(i);
-            if (row == null) continue;
+        try {
+            IngestionPipeline.Result result = pipeline.run(brokersDir);
+            contentStore.save();
             
-            for (Cell cell : row) {
-                String value = getCellValueAsString(cell);
-                if (value != null && value.equalsIgnoreCase("Vessel")) {
-                    // Encontrar primera fila con datos
-                    for (int j = i + 1; j < i + 10; j++) {
-                        Row dataRow = sheet.getRow(j);
-                        if (dataRow != null) {
-                            Cell vesselCell = dataRow.getCell(cell.getColumnIndex());
-                            if (vesselCell != null) {
-                                String vessel = getCellValueAsString(vesselCell);
-                                if (vessel != null && !vessel.trim().isEmpty()) {
-                                    info.vesselName = vessel;
-                                    return;
-                                }
-                            }
-                        }
-                    }
-                }
+            if (result.unchanged > 0) {
+                System.out.println("\nSin cambios desde la ejecución anterior: " + result.unchanged + " archivos");
             }
-        }
-    }
-    
-    private void extractProcureshipInfo(Sheet sheet, QuotationInfo info) {
-        // Procureship: RFQ en fila 5, Vessel e IMO en columnas de la derecha
-        Row row5 = sheet.getRow(4);
-        if (row5 != null) {
-            for (Cell cell : row5) {
-                String value = getCellValueAsString(cell);
-                if (value != null && value.contains("Requisition No.")) {
-                    Cell nextCell = row5.getCell(cell.getColumnIndex() + 1);
-                    if (nextCell != null) {
-                        info.quotationNumber = getCellValueAsString(nextCell);
-                    }
-                }
+            if (result.duplicates > 0) {
+                System.out.println("Duplicados de contenido ya organizado: " + result.duplicates + " archivos");
             }
-        }
-        
-        // Buscar Vessel e IMO en filas 6-7
-        for (int i = 5; i < 8; i++) {
-            Row row = sheet.getRow(i);
-            if (row == null) continue;
+            System.out.println("\nProceso completado. Archivos organizados en: " + outputDir.getAbsolutePath());
             
-            for (Cell cell : row) {
-                String value = getCellValueAsString(cell);
-                if (value != null) {
-                    if (value.trim().equals("Vessel:")) {
-                        Cell nextCell = row.getCell(cell.getColumnIndex() + 1);
-                        if (nextCell != null) {
-                            info.vesselName = getCellValueAsString(nextCell);
-                        }
-                    } else if (value.trim().equals("IMO:")) {
-                        Cell nextCell = row.getCell(cell.getColumnIndex() + 1);
-                        if (nextCell != null) {
-                            info.imoNumber = getCellValueAsString(nextCell);
-                        }
-                    }
+            if (watcher != null) {
+                manifest.setFull(false);
+                watchDirectory(brokersDir, watcher, pipeline, contentStore, clientIndex);
+            }
+        } catch (IOException e) {
+            System.err.println("Error: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.err.println("Proceso interrumpido");
+        } finally {
+            if (watcher != null) {
+                try {
+                    watcher.close();
+                } catch (IOException e) {
+                    // Ignorar
                 }
             }
+            try {
+                clientIndex.close();
+            } catch (IOException e) {
+                System.err.println("Error: No se pudo guardar el índice de clientes: " + e.getMessage());
+            }
         }
     }
     
-    private void extractGenericInfo(Sheet sheet, QuotationInfo info) {
-        // Búsqueda genérica de campos comunes
-        for (int i = 0; i < 30; i++) {
-            Row row = sheet.getRow(i);
-            if (row == null) continue;
-            
-            for (Cell cell : row) {
-                String value = getCellValueAsString(cell);
-                if (value == null) continue;
-                
-                String lower = value.toLowerCase().trim();
-                
-                if ((lower.equals("vessel") || lower.equals("vessel name") || 
-                     lower.equals("vessel's name") || lower.contains("buque")) && 
-                    info.vesselName == null) {
-                    Cell nextCell = row.getCell(cell.getColumnIndex() + 1);
-                    if (nextCell != null) {
-                        info.vesselName = getCellValueAsString(nextCell);
-                    }
-                } else if ((lower.equals("imo") || lower.equals("imo number") || 
-                           lower.contains("imo no")) && info.imoNumber == null) {
-                    Cell nextCell = row.getCell(cell.getColumnIndex() + 1);
-                    if (nextCell != null) {
-                        info.imoNumber = getCellValueAsString(nextCell);
-                    }
-                }
+    /**
+     * Modo daemon: organiza los archivos nuevos o modificados a medida que llegan
+     */
+    private void watchDirectory(File brokersDir, BrokerDirectoryWatcher watcher, 
+                                final IngestionPipeline pipeline, final ContentStore contentStore,
+                                final ClientIndex clientIndex) throws InterruptedException {
+        System.out.println("\nVigilando " + brokersDir.getAbsolutePath() + " (Ctrl+C para terminar)");
+        watcher.run(new BrokerDirectoryWatcher.BatchHandler() {
+            public void filesReady(List<File> files) throws Exception {
+                pipeline.run(files);
+                contentStore.save();
+                clientIndex.flush();
             }
-        }
+        });
     }
     
-    private String getCellValueAsString(Cell cell) {
-        if (cell == null) return null;
+    /**
+     * Etapa organizar: copia la cotización a la carpeta de su cliente
+     */
+    private boolean organizeQuotation(IngestionPipeline.Item item, File outputDir, ContentStore contentStore,
+                                      ClientIndex clientIndex) throws IOException {
+        QuotationInfo info = item.quotationInfo;
         
-        switch (cell.getCellType()) {
-            case Cell.CELL_TYPE_STRING:
-                return cell.getStringCellValue().trim();
-            case Cell.CELL_TYPE_NUMERIC:
-                if (DateUtil.isCellDateFormatted(cell)) {
-                    return cell.getDateCellValue().toString();
-                } else {
-                    return String.valueOf((long) cell.getNumericCellValue());
-                }
-            case Cell.CELL_TYPE_BOOLEAN:
-                return String.valueOf(cell.getBooleanCellValue());
-            case Cell.CELL_TYPE_FORMULA:
-                return cell.getCellFormula();
-            default:
-                return null;
+        if (info.vesselName != null || info.imoNumber != null) {
+            String clientKey = info.getClientKey();
+            File destFile = copyToClientDirectory(item.file, info, clientKey, outputDir);
+            contentStore.register(item.contentHash, destFile);
+            clientIndex.add(new ClientIndex.Record(clientKey, info.broker, info.vesselName, info.imoNumber,
+                info.quotationNumber, item.file.getAbsolutePath(), 
+                layout.clientPath(clientKey) + "/" + destFile.getName(),
+                null, System.currentTimeMillis()));
+            System.out.println("  ✓ " + item.file.getName() + " -> Cliente: " + info.getClientKey());
+            return true;
+        } else {
+            System.out.println("  ⚠ " + item.file.getName() + " (no se encontró información de cliente)");
+            return false;
         }
     }
     
-    private void copyToClientDirectory(File sourceFile, QuotationInfo info, File outputDir) throws IOException {
-        String clientDirName = info.getClientKey();
-        File clientDir = new File(outputDir, clientDirName);
+    /**
+     * Etapa organizar para un duplicado: no se copia, se registra en el índice
+     * con los datos de cliente del original
+     */
+    private boolean referenceDuplicate(IngestionPipeline.Item item, ClientIndex clientIndex) throws IOException {
+        String originalPath = item.duplicateOf;
+        ClientIndex.Record original = clientIndex.findByOutput(originalPath);
         
-        if (!clientDir.exists()) {
-            clientDir.mkdirs();
+        ClientIndex.Record record;
+        if (original != null) {
+            record = new ClientIndex.Record(original.clientKey, item.brokerName, original.vesselName,
+                original.imoNumber, original.quotationNumber, item.file.getAbsolutePath(), originalPath,
+                originalPath, System.currentTimeMillis());
+        } else {
+            // Original organizado sin registro en el índice: el cliente es su carpeta
+            String clientDirPath = originalPath.substring(0, Math.max(0, originalPath.lastIndexOf('/')));
+            String clientKey = clientDirPath.substring(clientDirPath.lastIndexOf('/') + 1);
+            record = new ClientIndex.Record(clientKey, item.brokerName, null, null, null,
+                item.file.getAbsolutePath(), originalPath, originalPath, System.currentTimeMillis());
         }
+        clientIndex.add(record);
         
-        // Crear nombre de archivo con broker
-        String newFileName = info.broker + "_" + sourceFile.getName();
-        File destFile = new File(clientDir, newFileName);
-        
-        // Copiar archivo
-        copyFile(sourceFile, destFile);
-        
-        // Crear archivo de metadata
-        createMetadataFile(clientDir, info);
+        System.out.println("  = " + item.file.getName() + " -> duplicado de " + originalPath);
+        return true;
     }
     
-    private void copyFile(File source, File dest) throws IOException {
-        FileInputStream fis = new FileInputStream(source);
-        FileOutputStream fos = new FileOutputStream(dest);
+    private File copyToClientDirectory(File sourceFile, QuotationInfo info, String clientKey, File outputDir) 
+            throws IOException {
+        File clientDir = layout.clientDir(outputDir, clientKey);
         
-        byte[] buffer = new byte[8192];
-        int length;
+        // No falla si otro hilo acaba de crear el mismo directorio
+        Files.createDirectories(clientDir.toPath());
         
-        while ((length = fis.read(buffer)) > 0) {
-            fos.write(buffer, 0, length);
-        }
+        // Crear nombre de archivo con broker
+        String newFileName = info.broker + "_" + sourceFile.getName();
+        File destFile = new File(clientDir, newFileName);
         
-        fis.close();
-        fos.close();
+        // Copiar archivo
+        writeOutput(sourceFile, destFile);
+        return destFile;
     }
     
-    private void createMetadataFile(File clientDir, QuotationInfo info) throws IOException {
-        File metadataFile = new File(clientDir, "metadata.txt");
-        FileWriter writer = new FileWriter(metadataFile, true);
+    /**
+     * Deja el archivo en destino según el modo de salida, reemplazando lo que hubiera
+     */
+    private void writeOutput(File source, File dest) throws IOException {
+        Path sourcePath = source.toPath().toAbsolutePath();
+        Path destPath = dest.toPath();
         
-        writer.write("=====================================\n");
-        writer.write("Archivo: " + info.originalFileName + "\n");
-        writer.write("Broker: " + info.broker + "\n");
-        if (info.vesselName != null) {
-            writer.write("Vessel: " + info.vesselName + "\n");
-        }
-        if (info.imoNumber != null) {
-            writer.write("IMO: " + info.imoNumber + "\n");
-        }
-        if (info.quotationNumber != null) {
-            writer.write("Cotización: " + info.quotationNumber + "\n");
+        switch (outputMode) {
+            case HARDLINK:
+                if (Files.exists(destPath) && Files.isSameFile(sourcePath, destPath)) {
+                    return;
+                }
+                Files.deleteIfExists(destPath);
+                try {
+                    Files.createLink(destPath, sourcePath);
+                    return;
+                } catch (IOException e) {
+                    // Distinto sistema de archivos o sin soporte de enlaces: se copia
+                    if (!hardLinkFallbackReported) {
+                        hardLinkFallbackReported = true;
+                        System.err.println("  Aviso: no se pudo crear enlace duro (" + e.getMessage() 
+                            + "); se copiarán los archivos");
+                    }
+                }
+                copyFile(source, dest);
+                return;
+            case SYMLINK:
+                Files.deleteIfExists(destPath);
+                Files.createSymbolicLink(destPath, sourcePath);
+                return;
+            default:
+                copyFile(source, dest);
         }
-        writer.write("Fecha procesado: " + new Date() + "\n");
-        writer.write("\n");
-        
-        writer.close();
     }
     
     /**
-     * Clase para almacenar información de cotización
+     * Copia con transferTo: el kernel mueve los datos sin pasar por un buffer de usuario
      */
-    private static class QuotationInfo {
-        String broker;
-        String vesselName;
-        String imoNumber;
-        String quotationNumber;
-        String originalFileName;
-        
-        String getClientKey() {
-            if (imoNumber != null && !imoNumber.trim().isEmpty()) {
-                return "IMO_" + imoNumber.trim().replaceAll("[^0-9]", "");
-            } else if (vesselName != null && !vesselName.trim().isEmpty()) {
-                return vesselName.trim()
-                    .replaceAll("[^a-zA-Z0-9\\s]", "")
-                    .replaceAll("\\s+", "_")
-                    .toUpperCase();
-            } else if (quotationNumber != null && !quotationNumber.trim().isEmpty()) {
-                return "QUOTE_" + quotationNumber.trim()
-                    .replaceAll("[^a-zA-Z0-9]", "_");
-            } else {
-                return "UNKNOWN_" + System.currentTimeMillis();
+    private void copyFile(File source, File dest) throws IOException {
+        FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+        try {
+            // Si el destino es un enlace de una ejecución anterior se reemplaza, no se escribe a través de él
+            Files.deleteIfExists(dest.toPath());
+            FileChannel out = FileChannel.open(dest.toPath(), 
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            boolean copied = false;
+            try {
+                long size = in.size();
+                long position = 0;
+                while (position < size) {
+                    long transferred = in.transferTo(position, size - position, out);
+                    if (transferred <= 0) {
+                        // El origen se truncó o se reescribió durante la copia: no insistir
+                        throw new IOException("El archivo cambió durante la copia: " + source.getName()
+                            + " (" + position + " de " + size + " bytes, ahora " + in.size() + ")");
+                    }
+                    position += transferred;
+                }
+                copied = true;
+            } finally {
+                out.close();
+                if (!copied) {
+                    // Sin copia parcial en el destino
+                    Files.deleteIfExists(dest.toPath());
+                }
             }
+        } finally {
+            in.close();
         }
     }
 }
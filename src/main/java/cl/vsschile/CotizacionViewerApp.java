@@ -15,17 +15,16 @@ import javafx.scene.text.Font;
 import javafx.scene.text.FontWeight;
 
 import org.apache.poi.ss.usermodel.*;
-import org.apache.poi.xssf.usermodel.XSSFWorkbook;
-import org.apache.poi.hssf.usermodel.HSSFWorkbook;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.sql.*;
 import java.util.*;
 
 /**
  * Aplicación JavaFX para cargar cotizaciones y visualizarlas
- * con el formato original del broker (colores, estilos)
+ * con el formato original del broker (colores, estilos).
+ * Al seleccionar un archivo, el broker se reconoce por su contenido
+ * (BrokerClassifier) y queda preseleccionado.
  */
 public class CotizacionViewerApp extends Application {
     
@@ -36,8 +35,9 @@ public class CotizacionViewerApp extends Application {
     private TableView<RowData> tableView;
     private File selectedFile;
     
-    private Connection conn;
+    private ConnectionPool pool;
     private Map<String, BrokerFormat> brokerFormats;
+    private BrokerClassifier classifier;
     
     public static void main(String[] args) {
         launch(args);
@@ -141,8 +141,8 @@ public class CotizacionViewerApp extends Application {
     
     private void connectDatabase() {
         try {
-            String dbUrl = "jdbc:postgresql://localhost:5432/sistema_cotizacion_2025";
-            conn = DriverManager.getConnection(dbUrl, "postgres", "");
+            pool = ConnectionPool.get("localhost", 5432, "sistema_cotizacion_2025", "postgres", "");
+            pool.getConnection().close();
             System.out.println("✓ Conectado a PostgreSQL");
         } catch (SQLException e) {
             showError("Error conectando a base de datos", e.getMessage());
@@ -153,7 +153,9 @@ public class CotizacionViewerApp extends Application {
         brokerFormats = new HashMap<String, BrokerFormat>();
         List<String> brokerNames = new ArrayList<String>();
         
+        Connection conn = null;
         try {
+            conn = pool.getConnection();
             Statement stmt = conn.createStatement();
             ResultSet rs = stmt.executeQuery(
                 "SELECT broker_name, formato_id, header_row FROM v_formatos_activos ORDER BY broker_name"
@@ -176,8 +178,12 @@ public class CotizacionViewerApp extends Application {
             brokerComboBox.setItems(FXCollections.observableArrayList(brokerNames));
             System.out.println("✓ Cargados " + brokerNames.size() + " brokers");
             
+            classifier = BrokerClassifier.load(conn);
+            
         } catch (SQLException e) {
             showError("Error cargando brokers", e.getMessage());
+        } finally {
+            closeQuietly(conn);
         }
     }
     
@@ -185,7 +191,7 @@ public class CotizacionViewerApp extends Application {
         FileChooser fileChooser = new FileChooser();
         fileChooser.setTitle("Seleccionar Cotización Excel");
         fileChooser.getExtensionFilters().addAll(
-            new FileChooser.ExtensionFilter("Archivos Excel", "*.xlsx", "*.xls"),
+            new FileChooser.ExtensionFilter("Archivos Excel", "*.xlsx", "*.xls", "*.xlsm"),
             new FileChooser.ExtensionFilter("Todos los archivos", "*.*")
         );
         
@@ -194,10 +200,30 @@ public class CotizacionViewerApp extends Application {
         if (selectedFile != null) {
             fileLabel.setText(selectedFile.getName());
             fileLabel.setStyle("-fx-text-fill: green; -fx-font-weight: bold;");
+            selectDetectedBroker();
             updateViewButton();
         }
     }
     
+    /**
+     * Preselecciona el broker reconocido por el contenido del archivo
+     */
+    private void selectDetectedBroker() {
+        if (classifier == null) {
+            return;
+        }
+        try {
+            BrokerClassifier.Match match = classifier.classify(selectedFile);
+            if (match != null && brokerFormats.containsKey(match.brokerName)) {
+                brokerComboBox.setValue(match.brokerName);
+                fileLabel.setText(selectedFile.getName() + "  (broker detectado: " + match + ")");
+            }
+        } catch (Exception e) {
+            // Sin detección: el broker se elige a mano
+            System.err.println("⚠ No se pudo reconocer el broker: " + e.getMessage());
+        }
+    }
+    
     private void updateViewButton() {
         viewButton.setDisable(
             brokerComboBox.getValue() == null || selectedFile == null
@@ -240,6 +266,15 @@ public class CotizacionViewerApp extends Application {
     private void loadBrokerColumns(BrokerFormat format) throws SQLException {
         format.columns = new ArrayList<ColumnFormat>();
         
+        Connection conn = pool.getConnection();
+        try {
+            loadBrokerColumns(conn, format);
+        } finally {
+            conn.close();
+        }
+    }
+    
+    private void loadBrokerColumns(Connection conn, BrokerFormat format) throws SQLException {
         PreparedStatement ps = conn.prepareStatement(
             "SELECT * FROM v_columnas_detalladas WHERE broker_name = ? ORDER BY indice_columna"
         );
@@ -262,17 +297,8 @@ public class CotizacionViewerApp extends Application {
     }
     
     private Workbook loadWorkbook(File file) throws Exception {
-        FileInputStream fis = new FileInputStream(file);
-        Workbook workbook;
-        
-        if (file.getName().endsWith(".xlsx")) {
-            workbook = new XSSFWorkbook(fis);
-        } else {
-            workbook = new HSSFWorkbook(fis);
-        }
-        
-        fis.close();
-        return workbook;
+        // Sólo lectura y respaldado por el archivo; el formato se detecta por contenido
+        return WorkbookLoader.open(file);
     }
     
     private void createTableColumns(BrokerFormat format) {
@@ -346,6 +372,7 @@ public class CotizacionViewerApp extends Application {
     
     private ObservableList<RowData> loadExcelData(Sheet sheet, BrokerFormat format) {
         ObservableList<RowData> data = FXCollections.observableArrayList();
+        CellValueDecoder decoder = CellValueDecoder.current();
         
         // Leer desde la fila después del header
         int startRow = format.headerRow + 1;
@@ -358,12 +385,14 @@ public class CotizacionViewerApp extends Application {
             RowData rowData = new RowData(format.columns.size());
             boolean hasData = false;
             
-            for (ColumnFormat colFormat : format.columns) {
-                org.apache.poi.ss.usermodel.Cell cell = row.getCell(colFormat.indiceColumna);
-                String value = getCellValue(cell);
-                rowData.setValue(format.columns.indexOf(colFormat), value);
+            for (int c = 0; c < format.columns.size(); c++) {
+                org.apache.poi.ss.usermodel.Cell cell = row.getCell(format.columns.get(c).indiceColumna);
+                CharSequence value = decoder.text(cell);
                 
-                if (value != null && !value.trim().isEmpty()) {
+                if (CellValueDecoder.isBlank(value)) {
+                    rowData.setValue(c, "");
+                } else {
+                    rowData.setValue(c, value.toString());
                     hasData = true;
                 }
             }
@@ -376,38 +405,6 @@ public class CotizacionViewerApp extends Application {
         return data;
     }
     
-    private String getCellValue(org.apache.poi.ss.usermodel.Cell cell) {
-        if (cell == null) {
-            return "";
-        }
-        
-        switch (cell.getCellType()) {
-            case org.apache.poi.ss.usermodel.Cell.CELL_TYPE_STRING:
-                return cell.getStringCellValue();
-            case org.apache.poi.ss.usermodel.Cell.CELL_TYPE_NUMERIC:
-                if (DateUtil.isCellDateFormatted(cell)) {
-                    return cell.getDateCellValue().toString();
-                } else {
-                    double numValue = cell.getNumericCellValue();
-                    if (numValue == (long) numValue) {
-                        return String.format("%d", (long) numValue);
-                    } else {
-                        return String.format("%.2f", numValue);
-                    }
-                }
-            case org.apache.poi.ss.usermodel.Cell.CELL_TYPE_BOOLEAN:
-                return String.valueOf(cell.getBooleanCellValue());
-            case org.apache.poi.ss.usermodel.Cell.CELL_TYPE_FORMULA:
-                try {
-                    return String.valueOf(cell.getNumericCellValue());
-                } catch (Exception e) {
-                    return cell.getStringCellValue();
-                }
-            default:
-                return "";
-        }
-    }
-    
     private void showError(String title, String message) {
         Alert alert = new Alert(Alert.AlertType.ERROR);
         alert.setTitle(title);
@@ -424,8 +421,7 @@ public class CotizacionViewerApp extends Application {
         alert.showAndWait();
     }
     
-    @Override
-    public void stop() {
+    private void closeQuietly(Connection conn) {
         try {
             if (conn != null) conn.close();
         } catch (SQLException e) {
@@ -433,6 +429,13 @@ public class CotizacionViewerApp extends Application {
         }
     }
     
+    @Override
+    public void stop() {
+        if (pool != null) {
+            pool.close();
+        }
+    }
+    
     // Clases auxiliares
     private static class BrokerFormat {
         String brokerName;
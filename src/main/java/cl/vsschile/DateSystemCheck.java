@@ -0,0 +1,118 @@
+package cl.vsschile;
+
+import org.apache.poi.hssf.record.DateWindow1904Record;
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.ss.usermodel.*;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.openxmlformats.schemas.spreadsheetml.x2006.main.CTWorkbook;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+
+/**
+ * Utilidad para verificar que las fechas de libros con sistema 1900 y 1904
+ * se decodifican igual desde la ventana de cabecera (WorkbookSession.openHeader)
+ * que desde el libro completo.
+ *
+ * Genera un .xlsx y un .xls por sistema de fechas en un directorio temporal;
+ * termina con código 1 si alguna fecha no coincide.
+ */
+public class DateSystemCheck {
+
+    /** Serial Excel de prueba y el día que representa en cada sistema */
+    private static final double SERIAL = 40000;
+    private static final String EXPECTED_1900 = "2009-07-06";
+    private static final String EXPECTED_1904 = "2013-07-07";
+
+    public static void main(String[] args) throws Exception {
+        System.out.println("==============================================");
+        System.out.println("  FECHAS 1900/1904 EN LA VENTANA DE CABECERA");
+        System.out.println("==============================================\n");
+
+        File dir = File.createTempFile("fechas", "");
+        dir.delete();
+        dir.mkdirs();
+
+        int failures = 0;
+        try {
+            failures += check(dir, "xlsx", false, EXPECTED_1900);
+            failures += check(dir, "xlsx", true, EXPECTED_1904);
+            failures += check(dir, "xls", false, EXPECTED_1900);
+            failures += check(dir, "xls", true, EXPECTED_1904);
+        } finally {
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            dir.delete();
+        }
+
+        System.out.println(failures == 0 ? "\n✓ Todas las fechas coinciden" : "\n✗ Fechas con error: " + failures);
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
+
+    private static int check(File dir, String extension, boolean date1904, String expected) throws Exception {
+        File file = new File(dir, "fecha-" + (date1904 ? "1904" : "1900") + "." + extension);
+        write(file, extension.equals("xlsx"), date1904);
+
+        String full;
+        WorkbookSession session = WorkbookSession.open(file);
+        try {
+            full = dateOf(session.getSheet());
+        } finally {
+            session.close();
+        }
+
+        String header;
+        session = WorkbookSession.openHeader(file, 1);
+        try {
+            header = dateOf(session.getSheet());
+        } finally {
+            session.close();
+        }
+
+        boolean ok = expected.equals(full) && expected.equals(header);
+        System.out.println((ok ? "  ✓ " : "  ✗ ") + file.getName() + ": libro completo " + full
+            + ", cabecera " + header + " (esperado " + expected + ")");
+        return ok ? 0 : 1;
+    }
+
+    private static String dateOf(Sheet sheet) {
+        long epochDay = CellValueDecoder.current().epochDay(sheet.getRow(0).getCell(0));
+        return epochDay == Long.MIN_VALUE ? "sin fecha" : java.time.LocalDate.ofEpochDay(epochDay).toString();
+    }
+
+    private static void write(File file, boolean xlsx, boolean date1904) throws Exception {
+        Workbook workbook = xlsx ? new XSSFWorkbook() : new HSSFWorkbook();
+        try {
+            if (date1904 && xlsx) {
+                CTWorkbook ct = ((XSSFWorkbook) workbook).getCTWorkbook();
+                (ct.isSetWorkbookPr() ? ct.getWorkbookPr() : ct.addNewWorkbookPr()).setDate1904(true);
+            } else if (date1904) {
+                DateWindow1904Record window = (DateWindow1904Record) ((HSSFWorkbook) workbook)
+                    .getInternalWorkbook().findFirstRecordBySid(DateWindow1904Record.sid);
+                window.setWindowing((short) 1);
+            }
+
+            CellStyle style = workbook.createCellStyle();
+            style.setDataFormat(workbook.createDataFormat().getFormat("dd/mm/yyyy"));
+            Cell cell = workbook.createSheet().createRow(0).createCell(0);
+            cell.setCellStyle(style);
+            cell.setCellValue(SERIAL);
+
+            OutputStream out = new FileOutputStream(file);
+            try {
+                workbook.write(out);
+            } finally {
+                out.close();
+            }
+        } finally {
+            workbook.close();
+        }
+    }
+}
@@ -2,20 +2,33 @@ package cl.vsschile;
 
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Gestor de base de datos para almacenar formatos de cotizaciones por broker
  */
 public class FormatoDatabaseManager {
     
-    private String dbUrl;
-    private String dbUser;
-    private String dbPassword;
+    /** Columnas de formato_columnas que se cargan con COPY */
+    private static final String COLUMNA_COLUMNS = 
+        "formato_id, campo_estandar, nombre_columna_original, indice_columna, letra_columna, " +
+        "color_fondo, color_texto, es_negrita, es_cursiva, tiene_borde";
+    
+    /** Columnas de broker_metadata que se cargan con COPY */
+    private static final String METADATA_COLUMNS = 
+        "formato_id, seccion, campo_nombre, campo_valor, fila_origen, columna_origen, letra_columna";
+    
+    private final ConnectionPool pool;
+    private final BrokerRegistry brokers;
+    private volatile WriteBehindQueue writeQueue;
     
     public FormatoDatabaseManager(String host, int port, String database, String user, String password) {
-        this.dbUrl = "jdbc:postgresql://" + host + ":" + port + "/" + database;
-        this.dbUser = user;
-        this.dbPassword = password;
+        this(ConnectionPool.get(host, port, database, user, password));
+    }
+    
+    public FormatoDatabaseManager(ConnectionPool pool) {
+        this.pool = pool;
+        this.brokers = BrokerRegistry.forPool(pool);
     }
     
     public FormatoDatabaseManager() {
@@ -24,10 +37,18 @@ public class FormatoDatabaseManager {
     }
     
     /**
-     * Obtiene una conexión a la base de datos
+     * Obtiene una conexión del pool; cerrarla la devuelve al pool
      */
     public Connection getConnection() throws SQLException {
-        return DriverManager.getConnection(dbUrl, dbUser, dbPassword);
+        return pool.getConnection();
+    }
+    
+    public ConnectionPool getPool() {
+        return pool;
+    }
+    
+    public BrokerRegistry getBrokers() {
+        return brokers;
     }
     
     /**
@@ -50,41 +71,239 @@ public class FormatoDatabaseManager {
      * Guarda o actualiza un broker en la base de datos
      */
     public int saveBroker(String brokerName, String descripcion) throws SQLException {
-        Connection conn = null;
-        PreparedStatement ps = null;
-        ResultSet rs = null;
+        return brokers.save(brokerName, descripcion);
+    }
+    
+    /**
+     * Formato detectado (con su metadata) a guardar por la escritura
+     * diferida; formatoId queda con el ID guardado
+     */
+    public static class FormatoWrite {
+        public final ColumnDetector.ColumnMapping mapping;
+        public final String archivoEjemplo;
+        public final List<BrokerMetadataExtractor.MetadataField> metadata;
+        public int formatoId = -1;
         
-        try {
-            conn = getConnection();
-            
-            // Verificar si ya existe
-            ps = conn.prepareStatement(
-                "SELECT broker_id FROM brokers WHERE broker_name = ?"
-            );
-            ps.setString(1, brokerName);
-            rs = ps.getResultSet();
+        public FormatoWrite(ColumnDetector.ColumnMapping mapping, String archivoEjemplo,
+                            List<BrokerMetadataExtractor.MetadataField> metadata) {
+            this.mapping = mapping;
+            this.archivoEjemplo = archivoEjemplo;
+            this.metadata = metadata;
+        }
+    }
+    
+    /**
+     * Encola el formato y su metadata para la escritura diferida y retorna
+     * sin esperar a la BD (salvo que la cola esté llena). El futuro se
+     * completa con formatoId ya asignado.
+     */
+    public CompletableFuture<FormatoWrite> submitFormato(ColumnDetector.ColumnMapping mapping, String archivoEjemplo,
+                                                         List<BrokerMetadataExtractor.MetadataField> metadata) 
+            throws InterruptedException {
+        return getWriteQueue().submit(formatoWriter, new FormatoWrite(mapping, archivoEjemplo, metadata));
+    }
+    
+    /**
+     * Espera a que los formatos encolados queden guardados
+     */
+    public void flushWrites() throws InterruptedException {
+        WriteBehindQueue queue = writeQueue;
+        if (queue != null) {
+            queue.flush();
+        }
+    }
+    
+    /**
+     * Guarda lo encolado y detiene la escritura diferida
+     */
+    public void closeWrites() throws InterruptedException {
+        WriteBehindQueue queue;
+        synchronized (this) {
+            queue = writeQueue;
+            writeQueue = null;
+        }
+        if (queue != null) {
+            queue.close();
+        }
+    }
+    
+    private synchronized WriteBehindQueue getWriteQueue() {
+        if (writeQueue == null) {
+            writeQueue = new WriteBehindQueue(pool);
+        }
+        return writeQueue;
+    }
+    
+    /**
+     * Guarda un grupo de formatos en una transacción: cada broker_formatos
+     * con su savepoint (uno que falla no arrastra a los demás) y luego las
+     * columnas y la metadata de todo el grupo con un solo reemplazo
+     * (replaceDetalles). Si el reemplazo falla se deshace y el grupo se
+     * guarda formato por formato, cada uno con su savepoint.
+     */
+    private final WriteBehindQueue.Writer<FormatoWrite> formatoWriter = new WriteBehindQueue.Writer<FormatoWrite>() {
+        public Map<FormatoWrite, Exception> write(Connection conn, List<FormatoWrite> formatos) 
+                throws SQLException {
+            Map<FormatoWrite, Exception> failures = new HashMap<FormatoWrite, Exception>();
             
-            if (rs.next()) {
-                return rs.getInt("broker_id");
+            // Brokers fuera de la transacción (el registro usa su propia conexión)
+            Map<FormatoWrite, Integer> brokerIds = new LinkedHashMap<FormatoWrite, Integer>();
+            for (FormatoWrite formato : formatos) {
+                try {
+                    brokerIds.put(formato, brokers.getId(formato.mapping.brokerName));
+                } catch (SQLException e) {
+                    failures.put(formato, e);
+                }
+            }
+            if (brokerIds.isEmpty()) {
+                return failures;
             }
             
-            // Insertar nuevo broker
-            ps = conn.prepareStatement(
-                "INSERT INTO brokers (broker_name, descripcion) VALUES (?, ?) RETURNING broker_id"
+            conn.setAutoCommit(false);
+            try {
+                Map<FormatoWrite, Exception> groupFailures = new HashMap<FormatoWrite, Exception>();
+                try {
+                    writeGroup(conn, brokerIds, groupFailures);
+                    failures.putAll(groupFailures);
+                } catch (SQLException e) {
+                    conn.rollback();
+                    writeEach(conn, brokerIds, failures);
+                }
+                conn.commit();
+            } catch (SQLException e) {
+                try {
+                    conn.rollback();
+                } catch (SQLException ex) {
+                    // Ignorar
+                }
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+            return failures;
+        }
+    };
+    
+    /**
+     * broker_formatos de cada formato con su savepoint y un solo reemplazo
+     * de columnas y metadata para los que quedaron guardados
+     */
+    private void writeGroup(Connection conn, Map<FormatoWrite, Integer> brokerIds, 
+                            Map<FormatoWrite, Exception> failures) throws SQLException {
+        // Por formato_id, lo último del grupo: es lo que habría quedado guardándolos de a uno
+        Map<Integer, ColumnDetector.ColumnMapping> columnas = new LinkedHashMap<Integer, ColumnDetector.ColumnMapping>();
+        Map<Integer, List<BrokerMetadataExtractor.MetadataField>> metadata = 
+            new LinkedHashMap<Integer, List<BrokerMetadataExtractor.MetadataField>>();
+        for (Map.Entry<FormatoWrite, Integer> entry : brokerIds.entrySet()) {
+            FormatoWrite formato = entry.getKey();
+            Savepoint savepoint = conn.setSavepoint();
+            try {
+                formato.formatoId = upsertFormato(conn, entry.getValue(), formato.mapping, formato.archivoEjemplo);
+                conn.releaseSavepoint(savepoint);
+                columnas.put(formato.formatoId, formato.mapping);
+                if (formato.metadata != null && !formato.metadata.isEmpty()) {
+                    metadata.put(formato.formatoId, formato.metadata);
+                }
+            } catch (SQLException e) {
+                conn.rollback(savepoint);
+                formato.formatoId = -1;
+                failures.put(formato, e);
+            }
+        }
+        if (!columnas.isEmpty()) {
+            replaceDetalles(conn, columnas, metadata);
+        }
+    }
+    
+    /**
+     * Guarda los formatos uno a uno, cada uno con su savepoint
+     * (sin commit: corre en la transacción del grupo)
+     */
+    private void writeEach(Connection conn, Map<FormatoWrite, Integer> brokerIds, 
+                           Map<FormatoWrite, Exception> failures) throws SQLException {
+        for (Map.Entry<FormatoWrite, Integer> entry : brokerIds.entrySet()) {
+            FormatoWrite formato = entry.getKey();
+            Savepoint savepoint = conn.setSavepoint();
+            try {
+                int formatoId = writeFormato(conn, entry.getValue(), formato.mapping, formato.archivoEjemplo);
+                if (formato.metadata != null && !formato.metadata.isEmpty()) {
+                    writeMetadata(conn, formatoId, formato.metadata);
+                }
+                conn.releaseSavepoint(savepoint);
+                formato.formatoId = formatoId;
+            } catch (SQLException e) {
+                conn.rollback(savepoint);
+                formato.formatoId = -1;
+                failures.put(formato, e);
+            }
+        }
+    }
+    
+    /**
+     * Reemplaza las columnas y la metadata de los formatos del grupo: sus
+     * filas se cargan con un COPY por tabla en tablas temporales y pasan a
+     * formato_columnas y broker_metadata con un DELETE de todo el grupo y un
+     * INSERT ... SELECT. La metadata sólo se reemplaza en los formatos que
+     * traen metadata, como en writeMetadata.
+     * No hace commit: corre en la transacción del grupo.
+     */
+    private void replaceDetalles(Connection conn, Map<Integer, ColumnDetector.ColumnMapping> columnas,
+                                 Map<Integer, List<BrokerMetadataExtractor.MetadataField>> metadata) 
+            throws SQLException {
+        Statement st = conn.createStatement();
+        CopyWriter copy = null;
+        try {
+            // Temporales de la sesión (la conexión vuelve al pool con ellas); se vacían en cada commit
+            st.execute(
+                "CREATE TEMP TABLE IF NOT EXISTS stage_formato_columnas ON COMMIT DELETE ROWS AS " +
+                "SELECT " + COLUMNA_COLUMNS + " FROM formato_columnas WITH NO DATA"
             );
-            ps.setString(1, brokerName);
-            ps.setString(2, descripcion);
-            
-            rs = ps.executeQuery();
-            if (rs.next()) {
-                return rs.getInt(1);
+            copy = CopyWriter.open(conn, "stage_formato_columnas", COLUMNA_COLUMNS);
+            for (Map.Entry<Integer, ColumnDetector.ColumnMapping> entry : columnas.entrySet()) {
+                writeColumnas(copy, entry.getKey(), entry.getValue());
             }
+            copy.finish();
             
-            throw new SQLException("No se pudo crear el broker");
+            if (!metadata.isEmpty()) {
+                st.execute(
+                    "CREATE TEMP TABLE IF NOT EXISTS stage_broker_metadata ON COMMIT DELETE ROWS AS " +
+                    "SELECT " + METADATA_COLUMNS + " FROM broker_metadata WITH NO DATA"
+                );
+                copy = CopyWriter.open(conn, "stage_broker_metadata", METADATA_COLUMNS);
+                for (Map.Entry<Integer, List<BrokerMetadataExtractor.MetadataField>> entry : metadata.entrySet()) {
+                    writeMetadataRows(copy, entry.getKey(), entry.getValue());
+                }
+                copy.finish();
+            }
+            copy = null;
             
+            replaceFrom(conn, st, "formato_columnas", "stage_formato_columnas", COLUMNA_COLUMNS, columnas.keySet());
+            if (!metadata.isEmpty()) {
+                replaceFrom(conn, st, "broker_metadata", "stage_broker_metadata", METADATA_COLUMNS, metadata.keySet());
+            }
+        } catch (SQLException e) {
+            if (copy != null) {
+                copy.cancel();
+            }
+            throw e;
         } finally {
-            closeResources(conn, ps, rs);
+            st.close();
+        }
+    }
+    
+    /**
+     * Borra las filas de los formatos indicados y copia las de la tabla temporal
+     */
+    private void replaceFrom(Connection conn, Statement st, String table, String stage, String columns,
+                             Collection<Integer> formatoIds) throws SQLException {
+        PreparedStatement ps = conn.prepareStatement("DELETE FROM " + table + " WHERE formato_id = ANY (?)");
+        try {
+            ps.setArray(1, conn.createArrayOf("int4", formatoIds.toArray(new Integer[0])));
+            ps.executeUpdate();
+        } finally {
+            ps.close();
         }
+        st.executeUpdate("INSERT INTO " + table + " (" + columns + ") SELECT " + columns + " FROM " + stage);
     }
     
     /**
@@ -96,30 +315,14 @@ public class FormatoDatabaseManager {
         PreparedStatement ps = null;
         ResultSet rs = null;
         
+        // 1. Obtener o crear broker (fuera de la transacción: el registro usa su propia conexión)
+        int brokerId = brokers.getId(mapping.brokerName);
+        
         try {
             conn = getConnection();
             conn.setAutoCommit(false);
             
-            // 1. Obtener o crear broker
-            int brokerId = getBrokerIdByName(conn, mapping.brokerName);
-            if (brokerId == -1) {
-                brokerId = insertBroker(conn, mapping.brokerName);
-            }
-            
-            // 2. Verificar si ya existe este formato
-            int formatoId = getFormatoId(conn, brokerId, "1.0");
-            if (formatoId != -1) {
-                // Actualizar formato existente
-                updateFormato(conn, formatoId, mapping.headerRow, archivoEjemplo);
-                // Eliminar columnas antiguas
-                deleteFormatoColumnas(conn, formatoId);
-            } else {
-                // Crear nuevo formato
-                formatoId = insertFormato(conn, brokerId, "1.0", mapping.headerRow, archivoEjemplo);
-            }
-            
-            // 3. Insertar columnas
-            insertColumnas(conn, formatoId, mapping);
+            int formatoId = writeFormato(conn, brokerId, mapping, archivoEjemplo);
             
             conn.commit();
             return formatoId;
@@ -141,44 +344,30 @@ public class FormatoDatabaseManager {
         }
     }
     
-    private int getBrokerIdByName(Connection conn, String brokerName) throws SQLException {
-        PreparedStatement ps = null;
-        ResultSet rs = null;
-        
-        try {
-            ps = conn.prepareStatement("SELECT broker_id FROM brokers WHERE broker_name = ?");
-            ps.setString(1, brokerName);
-            rs = ps.executeQuery();
-            
-            if (rs.next()) {
-                return rs.getInt("broker_id");
-            }
-            return -1;
-        } finally {
-            closeStatement(ps);
-            closeResultSet(rs);
-        }
+    /**
+     * Formato y sus columnas, en la transacción de quien llama
+     */
+    private int writeFormato(Connection conn, int brokerId, ColumnDetector.ColumnMapping mapping, 
+                             String archivoEjemplo) throws SQLException {
+        int formatoId = upsertFormato(conn, brokerId, mapping, archivoEjemplo);
+        // Reemplazar columnas
+        deleteFormatoColumnas(conn, formatoId);
+        insertColumnas(conn, formatoId, mapping);
+        return formatoId;
     }
     
-    private int insertBroker(Connection conn, String brokerName) throws SQLException {
-        PreparedStatement ps = null;
-        ResultSet rs = null;
-        
-        try {
-            ps = conn.prepareStatement(
-                "INSERT INTO brokers (broker_name) VALUES (?) RETURNING broker_id"
-            );
-            ps.setString(1, brokerName);
-            rs = ps.executeQuery();
-            
-            if (rs.next()) {
-                return rs.getInt(1);
-            }
-            throw new SQLException("No se pudo insertar el broker");
-        } finally {
-            closeStatement(ps);
-            closeResultSet(rs);
+    /**
+     * Crea el formato o actualiza el existente, sin tocar sus columnas
+     */
+    private int upsertFormato(Connection conn, int brokerId, ColumnDetector.ColumnMapping mapping, 
+                              String archivoEjemplo) throws SQLException {
+        // Verificar si ya existe este formato
+        int formatoId = getFormatoId(conn, brokerId, "1.0");
+        if (formatoId != -1) {
+            updateFormato(conn, formatoId, mapping.headerRow, archivoEjemplo);
+            return formatoId;
         }
+        return insertFormato(conn, brokerId, "1.0", mapping.headerRow, archivoEjemplo);
     }
     
     private int getFormatoId(Connection conn, int brokerId, String version) throws SQLException {
@@ -259,55 +448,52 @@ public class FormatoDatabaseManager {
         }
     }
     
+    /**
+     * Columnas del formato en un solo COPY (la transacción es la de saveFormato)
+     */
     private void insertColumnas(Connection conn, int formatoId, 
                                ColumnDetector.ColumnMapping mapping) throws SQLException {
-        PreparedStatement ps = null;
+        CopyWriter copy = CopyWriter.open(conn, "formato_columnas", COLUMNA_COLUMNS);
         
         try {
-            ps = conn.prepareStatement(
-                "INSERT INTO formato_columnas " +
-                "(formato_id, campo_estandar, nombre_columna_original, indice_columna, letra_columna, " +
-                "color_fondo, color_texto, es_negrita, es_cursiva, tiene_borde) " +
-                "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)"
-            );
+            writeColumnas(copy, formatoId, mapping);
+            copy.finish();
+        } catch (SQLException e) {
+            copy.cancel();
+            throw e;
+        }
+    }
+    
+    /**
+     * Filas de formato_columnas de un formato, en el orden de COLUMNA_COLUMNS
+     */
+    private void writeColumnas(CopyWriter copy, int formatoId, 
+                               ColumnDetector.ColumnMapping mapping) throws SQLException {
+        for (Map.Entry<String, Integer> entry : mapping.columns.entrySet()) {
+            String campoEstandar = entry.getKey();
+            int indiceColumna = entry.getValue();
+            String nombreOriginal = indiceColumna < mapping.columnNames.size() ? 
+                mapping.columnNames.get(indiceColumna) : null;
+            String letraColumna = getColumnLetter(indiceColumna);
             
-            for (Map.Entry<String, Integer> entry : mapping.columns.entrySet()) {
-                String campoEstandar = entry.getKey();
-                int indiceColumna = entry.getValue();
-                String nombreOriginal = indiceColumna < mapping.columnNames.size() ? 
-                    mapping.columnNames.get(indiceColumna) : null;
-                String letraColumna = getColumnLetter(indiceColumna);
-                
-                // Obtener información de estilo
-                CellStyleInfo styleInfo = mapping.columnStyles.get(indiceColumna);
-                
-                ps.setInt(1, formatoId);
-                ps.setString(2, campoEstandar);
-                ps.setString(3, nombreOriginal);
-                ps.setInt(4, indiceColumna);
-                ps.setString(5, letraColumna);
-                
-                // Guardar colores y estilos
-                if (styleInfo != null) {
-                    ps.setString(6, styleInfo.backgroundColor);
-                    ps.setString(7, styleInfo.foregroundColor);
-                    ps.setBoolean(8, styleInfo.isBold);
-                    ps.setBoolean(9, styleInfo.isItalic);
-                    ps.setBoolean(10, styleInfo.hasBorder);
-                } else {
-                    ps.setString(6, null);
-                    ps.setString(7, null);
-                    ps.setBoolean(8, false);
-                    ps.setBoolean(9, false);
-                    ps.setBoolean(10, false);
-                }
-                
-                ps.addBatch();
+            // Obtener información de estilo
+            CellStyleInfo styleInfo = mapping.columnStyles.get(indiceColumna);
+            if (styleInfo == null) {
+                styleInfo = CellStyleInfo.NONE;
             }
             
-            ps.executeBatch();
-        } finally {
-            closeStatement(ps);
+            // Guardar colores y estilos
+            copy.number(formatoId)
+                .text(campoEstandar)
+                .text(nombreOriginal)
+                .number(indiceColumna)
+                .text(letraColumna)
+                .text(styleInfo.backgroundColor)
+                .text(styleInfo.foregroundColor)
+                .bool(styleInfo.isBold)
+                .bool(styleInfo.isItalic)
+                .bool(styleInfo.hasBorder)
+                .endRow();
         }
     }
     
@@ -436,36 +622,12 @@ public class FormatoDatabaseManager {
     public void saveMetadata(int formatoId, List<BrokerMetadataExtractor.MetadataField> metadata) 
             throws SQLException {
         Connection conn = null;
-        PreparedStatement ps = null;
         
         try {
             conn = getConnection();
             conn.setAutoCommit(false);
             
-            // Eliminar metadata anterior de este formato
-            ps = conn.prepareStatement("DELETE FROM broker_metadata WHERE formato_id = ?");
-            ps.setInt(1, formatoId);
-            ps.executeUpdate();
-            ps.close();
-            
-            // Insertar nueva metadata
-            ps = conn.prepareStatement(
-                "INSERT INTO broker_metadata (formato_id, seccion, campo_nombre, campo_valor, " +
-                "fila_origen, columna_origen, letra_columna) VALUES (?, ?, ?, ?, ?, ?, ?)"
-            );
-            
-            for (BrokerMetadataExtractor.MetadataField field : metadata) {
-                ps.setInt(1, formatoId);
-                ps.setString(2, field.seccion);
-                ps.setString(3, field.campoNombre);
-                ps.setString(4, field.campoValor);
-                ps.setInt(5, field.filaOrigen);
-                ps.setInt(6, field.columnaOrigen);
-                ps.setString(7, field.letraColumna);
-                ps.addBatch();
-            }
-            
-            ps.executeBatch();
+            writeMetadata(conn, formatoId, metadata);
             conn.commit();
             
         } catch (SQLException e) {
@@ -481,11 +643,56 @@ public class FormatoDatabaseManager {
             if (conn != null) {
                 conn.setAutoCommit(true);
             }
-            closeStatement(ps);
             closeConnection(conn);
         }
     }
     
+    /**
+     * Reemplaza la metadata del formato, en la transacción de quien llama
+     */
+    private void writeMetadata(Connection conn, int formatoId, 
+                               List<BrokerMetadataExtractor.MetadataField> metadata) throws SQLException {
+        PreparedStatement ps = null;
+        CopyWriter copy = null;
+        
+        try {
+            // Eliminar metadata anterior de este formato
+            ps = conn.prepareStatement("DELETE FROM broker_metadata WHERE formato_id = ?");
+            ps.setInt(1, formatoId);
+            ps.executeUpdate();
+            
+            // Insertar nueva metadata en un solo COPY
+            copy = CopyWriter.open(conn, "broker_metadata", METADATA_COLUMNS);
+            writeMetadataRows(copy, formatoId, metadata);
+            copy.finish();
+            copy = null;
+        } catch (SQLException e) {
+            if (copy != null) {
+                copy.cancel();
+            }
+            throw e;
+        } finally {
+            closeStatement(ps);
+        }
+    }
+    
+    /**
+     * Filas de broker_metadata de un formato, en el orden de METADATA_COLUMNS
+     */
+    private void writeMetadataRows(CopyWriter copy, int formatoId, 
+                                   List<BrokerMetadataExtractor.MetadataField> metadata) throws SQLException {
+        for (BrokerMetadataExtractor.MetadataField field : metadata) {
+            copy.number(formatoId)
+                .text(field.seccion)
+                .text(field.campoNombre)
+                .text(field.campoValor)
+                .number(field.filaOrigen)
+                .number(field.columnaOrigen)
+                .text(field.letraColumna)
+                .endRow();
+        }
+    }
+    
     /**
      * Obtiene la metadata de un formato
      */
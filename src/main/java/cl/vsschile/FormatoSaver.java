@@ -1,15 +1,16 @@
 package cl.vsschile;
 
-import org.apache.poi.ss.usermodel.*;
-import org.apache.poi.xssf.usermodel.XSSFWorkbook;
-import org.apache.poi.hssf.usermodel.HSSFWorkbook;
-
 import java.io.*;
 import java.sql.SQLException;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
 
 /**
  * Herramienta para detectar y guardar formatos de brokers en la base de datos
+ *
+ * Es una configuración de IngestionPipeline: un archivo de ejemplo por broker,
+ * detección de columnas y metadata, y persistencia del formato.
  */
 public class FormatoSaver {
     
@@ -71,132 +72,77 @@ public class FormatoSaver {
     }
     
     public void processBrokersDirectory(File brokersDir) {
-        File[] brokerDirs = brokersDir.listFiles();
-        if (brokerDirs == null) {
+        // Un archivo de ejemplo por broker; la BD se escribe con escritura diferida
+        IngestionPipeline pipeline = new IngestionPipeline()
+            .maxFilesPerBroker(1)
+            .detectColumns()
+            .extractMetadata()
+            .persistAsync(new IngestionPipeline.AsyncStage() {
+                public CompletableFuture<?> process(IngestionPipeline.Item item) throws Exception {
+                    return saveBrokerFormat(item);
+                }
+            }, 1)
+            .listener(new IngestionPipeline.Listener() {
+                @Override
+                public void failed(IngestionPipeline.Item item, String stageName, Exception e) {
+                    System.err.println("  ✗ Error (" + item.brokerName + "): " + e.getMessage());
+                }
+            });
+        
+        IngestionPipeline.Result result;
+        try {
+            result = pipeline.run(brokersDir);
+        } catch (IOException e) {
             System.err.println("Error: No se pueden leer los subdirectorios");
             return;
-        }
-        
-        int saved = 0;
-        int failed = 0;
-        
-        for (File brokerDir : brokerDirs) {
-            if (brokerDir.isDirectory()) {
-                try {
-                    if (processBroker(brokerDir)) {
-                        saved++;
-                    }
-                } catch (Exception e) {
-                    System.err.println("  ✗ Error: " + e.getMessage());
-                    failed++;
-                }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.err.println("Proceso interrumpido");
+            return;
+        } finally {
+            try {
+                dbManager.closeWrites();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
         }
         
         System.out.println("\nResultado:");
-        System.out.println("  Formatos guardados: " + saved);
-        System.out.println("  Errores: " + failed);
+        System.out.println("  Formatos guardados: " + result.completed);
+        System.out.println("  Errores: " + result.failed);
     }
     
-    private boolean processBroker(File brokerDir) throws Exception {
-        String brokerName = brokerDir.getName();
+    /**
+     * Etapa persistir: encola formato y metadata detectados en el archivo de
+     * ejemplo para la escritura diferida; el futuro se completa al guardarse
+     */
+    private CompletableFuture<?> saveBrokerFormat(IngestionPipeline.Item item) throws InterruptedException {
+        ColumnDetector.ColumnMapping mapping = item.mapping;
+        List<BrokerMetadataExtractor.MetadataField> metadata = item.metadata;
         
-        File[] files = brokerDir.listFiles(new FilenameFilter() {
-            public boolean accept(File dir, String name) {
-                String lower = name.toLowerCase();
-                return lower.endsWith(".xlsx") || lower.endsWith(".xls") || lower.endsWith(".xlsm");
-            }
-        });
-        
-        if (files == null || files.length == 0) {
-            return false;
-        }
-        
-        // Tomar el primer archivo como ejemplo
-        File sampleFile = files[0];
-        
-        System.out.println("Procesando: " + brokerName);
-        System.out.println("  Archivo ejemplo: " + sampleFile.getName());
-        
-        // Detectar columnas
-        ColumnDetector.ColumnMapping mapping = detectColumnsFromFile(sampleFile, brokerName);
+        System.out.println("Procesando: " + item.brokerName);
+        System.out.println("  Archivo ejemplo: " + item.file.getName());
         
         if (!mapping.isValid()) {
             System.out.println("  ✗ No se pudieron detectar columnas");
-            return false;
+            return CompletableFuture.completedFuture(Boolean.FALSE);
         }
         
         System.out.println("  ✓ Columnas detectadas: " + mapping.columns.size());
         System.out.println("  ✓ Header en fila: " + (mapping.headerRow + 1));
         
-        // Extraer metadata
-        List<BrokerMetadataExtractor.MetadataField> metadata = extractMetadataFromFile(sampleFile, brokerName);
         System.out.println("  ✓ Campos de metadata detectados: " + metadata.size());
         
-        // Guardar en base de datos
-        try {
-            int formatoId = dbManager.saveFormato(mapping, sampleFile.getName());
-            System.out.println("  ✓ Guardado en BD (formato_id: " + formatoId + ")");
-            
-            // Guardar metadata
-            if (!metadata.isEmpty()) {
-                dbManager.saveMetadata(formatoId, metadata);
-                System.out.println("  ✓ Metadata guardada en BD");
-            }
-            
-            return true;
-        } catch (SQLException e) {
-            System.err.println("  ✗ Error guardando en BD: " + e.getMessage());
-            throw e;
-        }
-    }
-    
-    private ColumnDetector.ColumnMapping detectColumnsFromFile(File file, String brokerName) 
-            throws Exception {
-        FileInputStream fis = new FileInputStream(file);
-        Workbook workbook = null;
-        
-        try {
-            String fileName = file.getName().toLowerCase();
-            if (fileName.endsWith(".xlsx") || fileName.endsWith(".xlsm")) {
-                workbook = new XSSFWorkbook(fis);
-            } else {
-                workbook = new HSSFWorkbook(fis);
-            }
-            
-            Sheet sheet = workbook.getSheetAt(0);
-            return ColumnDetector.detectColumns(sheet, brokerName);
-            
-        } finally {
-            if (workbook != null) {
-                workbook.close();
-            }
-            fis.close();
-        }
-    }
-    
-    private List<BrokerMetadataExtractor.MetadataField> extractMetadataFromFile(File file, String brokerName) 
-            throws Exception {
-        FileInputStream fis = new FileInputStream(file);
-        Workbook workbook = null;
-        
-        try {
-            String fileName = file.getName().toLowerCase();
-            if (fileName.endsWith(".xlsx") || fileName.endsWith(".xlsm")) {
-                workbook = new XSSFWorkbook(fis);
-            } else {
-                workbook = new HSSFWorkbook(fis);
-            }
-            
-            Sheet sheet = workbook.getSheetAt(0);
-            return BrokerMetadataExtractor.extractMetadata(sheet, brokerName);
-            
-        } finally {
-            if (workbook != null) {
-                workbook.close();
-            }
-            fis.close();
-        }
+        // Guardar en base de datos (los errores los informa el listener del pipeline)
+        final String brokerName = item.brokerName;
+        return dbManager.submitFormato(mapping, item.file.getName(), metadata)
+            .thenApply(new Function<FormatoDatabaseManager.FormatoWrite, Boolean>() {
+                public Boolean apply(FormatoDatabaseManager.FormatoWrite formato) {
+                    System.out.println("  ✓ " + brokerName + " guardado en BD (formato_id: " + formato.formatoId 
+                        + (formato.metadata.isEmpty() ? "" : ", con metadata") + ")");
+                    return Boolean.TRUE;
+                }
+            });
     }
     
     public void printFormatosResumen() {
@@ -0,0 +1,213 @@
+package cl.vsschile;
+
+import java.util.*;
+
+/**
+ * Autómata Aho-Corasick con todos los textos de cabecera de los perfiles
+ * (sinónimos de columnas, palabras clave, etiquetas de anclas).
+ *
+ * Una pasada sobre el texto de la celda informa qué textos contiene y cuál
+ * coincide con la celda completa. Compara sin distinguir mayúsculas e ignora
+ * los espacios extremos directamente sobre los caracteres de la celda, sin
+ * crear copias en mayúsculas ni recortadas; el costo es lineal en el largo
+ * del texto, independiente de la cantidad de textos buscados.
+ *
+ * Inmutable y compartible entre hilos; cada hilo usa sus propios Hits.
+ */
+public final class HeaderMatcher {
+
+    /**
+     * Resultado de scan(): textos contenidos y texto igual a la celda completa.
+     * Reutilizable entre celdas.
+     */
+    public static final class Hits {
+        private final long[] contained;
+        private final long[] whole;
+        private boolean any;
+
+        private Hits(int patterns) {
+            int words = (patterns + 63) >>> 6;
+            contained = new long[words];
+            whole = new long[words];
+        }
+
+        /** True si el texto id aparece en la celda */
+        public boolean contains(int id) {
+            return (contained[id >>> 6] & (1L << id)) != 0;
+        }
+
+        /** True si la celda (sin espacios extremos) es exactamente el texto id */
+        public boolean equals(int id) {
+            return (whole[id >>> 6] & (1L << id)) != 0;
+        }
+
+        /** True si la celda contiene alguno de los textos */
+        public boolean any() {
+            return any;
+        }
+
+        private void clear() {
+            Arrays.fill(contained, 0L);
+            Arrays.fill(whole, 0L);
+            any = false;
+        }
+    }
+
+    private final String[] patterns;
+    /** Clase de carácter para ASCII; los demás caracteres por búsqueda binaria */
+    private final int[] asciiClass = new int[128];
+    private final char[] otherChars;
+    private final int[] otherClass;
+    private final int alphabetSize;
+    /** Transiciones completas: delta[estado * alphabetSize + clase] */
+    private final int[] delta;
+    /** Textos que terminan en cada estado (incluye los sufijos) */
+    private final int[][] output;
+
+    /**
+     * Compila los textos (se comparan en mayúsculas); el id de cada uno es su posición
+     */
+    public HeaderMatcher(List<String> texts) {
+        patterns = new String[texts.size()];
+        for (int i = 0; i < patterns.length; i++) {
+            patterns[i] = texts.get(i).toUpperCase();
+        }
+
+        // Alfabeto: los caracteres que aparecen en los textos; la clase 0 es "otro"
+        TreeSet<Character> chars = new TreeSet<Character>();
+        for (String pattern : patterns) {
+            for (int i = 0; i < pattern.length(); i++) {
+                chars.add(pattern.charAt(i));
+            }
+        }
+        List<Character> others = new ArrayList<Character>();
+        int next = 1;
+        for (char c : chars) {
+            if (c < 128) {
+                asciiClass[c] = next++;
+            } else {
+                others.add(c);
+            }
+        }
+        otherChars = new char[others.size()];
+        otherClass = new int[others.size()];
+        for (int i = 0; i < otherChars.length; i++) {
+            otherChars[i] = others.get(i);
+            otherClass[i] = next++;
+        }
+        alphabetSize = next;
+
+        // Trie
+        List<int[]> trie = new ArrayList<int[]>();
+        List<List<Integer>> outputs = new ArrayList<List<Integer>>();
+        trie.add(new int[alphabetSize]);
+        outputs.add(new ArrayList<Integer>(1));
+        for (int id = 0; id < patterns.length; id++) {
+            int state = 0;
+            String pattern = patterns[id];
+            for (int i = 0; i < pattern.length(); i++) {
+                int cls = classOf(pattern.charAt(i));
+                int target = trie.get(state)[cls];
+                if (target == 0) {
+                    target = trie.size();
+                    trie.add(new int[alphabetSize]);
+                    outputs.add(new ArrayList<Integer>(1));
+                    trie.get(state)[cls] = target;
+                }
+                state = target;
+            }
+            outputs.get(state).add(id);
+        }
+
+        // Enlaces de falla en anchura; las transiciones faltantes toman las del enlace
+        int states = trie.size();
+        int[] fail = new int[states];
+        delta = new int[states * alphabetSize];
+        System.arraycopy(trie.get(0), 0, delta, 0, alphabetSize);
+
+        ArrayDeque<Integer> queue = new ArrayDeque<Integer>();
+        for (int cls = 0; cls < alphabetSize; cls++) {
+            if (delta[cls] != 0) {
+                queue.add(delta[cls]);
+            }
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            int[] gotos = trie.get(state);
+            outputs.get(state).addAll(outputs.get(fail[state]));
+            for (int cls = 0; cls < alphabetSize; cls++) {
+                int target = gotos[cls];
+                int fallback = delta[fail[state] * alphabetSize + cls];
+                if (target != 0) {
+                    fail[target] = fallback;
+                    delta[state * alphabetSize + cls] = target;
+                    queue.add(target);
+                } else {
+                    delta[state * alphabetSize + cls] = fallback;
+                }
+            }
+        }
+
+        output = new int[states][];
+        for (int state = 0; state < states; state++) {
+            List<Integer> ids = outputs.get(state);
+            output[state] = new int[ids.size()];
+            for (int i = 0; i < ids.size(); i++) {
+                output[state][i] = ids.get(i);
+            }
+        }
+    }
+
+    public int size() {
+        return patterns.length;
+    }
+
+    public String pattern(int id) {
+        return patterns[id];
+    }
+
+    public Hits newHits() {
+        return new Hits(patterns.length);
+    }
+
+    /**
+     * Recorre el texto una vez y deja en hits los textos encontrados.
+     * Un texto null o vacío no contiene ninguno.
+     */
+    public Hits scan(CharSequence text, Hits hits) {
+        hits.clear();
+        if (text == null) {
+            return hits;
+        }
+
+        int start = 0;
+        int end = text.length();
+        while (start < end && text.charAt(start) <= ' ') start++;
+        while (end > start && text.charAt(end - 1) <= ' ') end--;
+
+        int state = 0;
+        for (int i = start; i < end; i++) {
+            state = delta[state * alphabetSize + classOf(Character.toUpperCase(text.charAt(i)))];
+            int[] ids = output[state];
+            for (int k = 0; k < ids.length; k++) {
+                int id = ids[k];
+                hits.contained[id >>> 6] |= 1L << id;
+                if (i == end - 1 && end - start == patterns[id].length()) {
+                    hits.whole[id >>> 6] |= 1L << id;
+                }
+            }
+            if (ids.length > 0) {
+                hits.any = true;
+            }
+        }
+        return hits;
+    }
+
+    private int classOf(char c) {
+        if (c < 128) {
+            return asciiClass[c];
+        }
+        int i = Arrays.binarySearch(otherChars, c);
+        return i >= 0 ? otherClass[i] : 0;
+    }
+}
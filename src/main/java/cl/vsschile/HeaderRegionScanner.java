@@ -0,0 +1,190 @@
+package cl.vsschile;
+
+import org.apache.poi.ss.usermodel.*;
+
+import java.util.*;
+
+/**
+ * Recorrido único de la zona de cabecera de una hoja.
+ *
+ * Visita cada celda de las primeras filas una sola vez, en orden de fila y
+ * columna, y la entrega a los extractores registrados (columnas, metadata,
+ * vessel/IMO/cotización). El texto de la celda se decodifica una vez y el
+ * HeaderMatcher la recorre a lo sumo una vez, sólo si algún extractor lo
+ * pide; los extractores comparten ese resultado.
+ */
+public class HeaderRegionScanner {
+
+    /**
+     * Extractor que recibe las celdas de la zona de cabecera
+     */
+    public interface Visitor {
+        /** Filas (desde la primera) que necesita ver */
+        int getScanRows();
+
+        /** Una celda existente de una fila dentro de su ventana */
+        void visit(CellEvent event);
+
+        /** Fin de una fila dentro de su ventana (row es null si la fila no existe) */
+        void endRow(int rowIndex, Row row);
+    }
+
+    /**
+     * Celda en visita. Reutilizado entre celdas: no debe guardarse.
+     */
+    public static final class CellEvent {
+        private final HeaderMatcher matcher;
+        private final HeaderMatcher.Hits hits;
+        private final CellValueDecoder decoder = CellValueDecoder.current();
+
+        public int row;
+        public int column;
+        public Cell cell;
+
+        private CharSequence text;
+        private boolean scanned;
+        private String trimmed;
+        private boolean trimmedReady;
+
+        CellEvent(HeaderMatcher matcher) {
+            this.matcher = matcher;
+            this.hits = matcher.newHits();
+        }
+
+        void reset(int row, Cell cell) {
+            this.row = row;
+            this.column = cell.getColumnIndex();
+            this.cell = cell;
+            this.text = decoder.text(cell);
+            this.scanned = false;
+            this.trimmedReady = false;
+        }
+
+        /** Texto de la celda (null si está vacía); válido sólo durante la visita */
+        public CharSequence text() {
+            return text;
+        }
+
+        public boolean isBlank() {
+            return CellValueDecoder.isBlank(text);
+        }
+
+        /** Texto sin espacios extremos (null si está vacía) */
+        public String trimmed() {
+            if (!trimmedReady) {
+                trimmed = text != null ? text.toString().trim() : null;
+                trimmedReady = true;
+            }
+            return trimmed;
+        }
+
+        /** Textos de los perfiles encontrados en la celda (un solo recorrido por celda) */
+        public HeaderMatcher.Hits hits() {
+            if (!scanned) {
+                matcher.scan(text, hits);
+                scanned = true;
+            }
+            return hits;
+        }
+    }
+
+    /**
+     * Resultados de los extractores estándar
+     */
+    public static class Result {
+        public ColumnDetector.ColumnMapping mapping;
+        public List<BrokerMetadataExtractor.MetadataField> metadata;
+        public QuotationInfo quotationInfo;
+    }
+
+    private final HeaderMatcher matcher;
+    private final List<Visitor> visitors = new ArrayList<Visitor>();
+
+    public HeaderRegionScanner(HeaderMatcher matcher) {
+        this.matcher = matcher;
+    }
+
+    public HeaderRegionScanner add(Visitor visitor) {
+        visitors.add(visitor);
+        return this;
+    }
+
+    /**
+     * Filas que cubre el recorrido (la mayor ventana de los extractores)
+     */
+    public int getScanRows() {
+        int rows = 0;
+        for (Visitor visitor : visitors) {
+            rows = Math.max(rows, visitor.getScanRows());
+        }
+        return rows;
+    }
+
+    /**
+     * Recorre la hoja entregando cada celda a los extractores cuya ventana la incluye
+     */
+    public void scan(Sheet sheet) {
+        int count = visitors.size();
+        Visitor[] active = visitors.toArray(new Visitor[count]);
+        int[] limits = new int[count];
+        for (int v = 0; v < count; v++) {
+            limits[v] = active[v].getScanRows();
+        }
+
+        CellEvent event = new CellEvent(matcher);
+        int rows = getScanRows();
+        for (int r = 0; r < rows; r++) {
+            Row row = sheet.getRow(r);
+            if (row != null) {
+                for (Cell cell : row) {
+                    event.reset(r, cell);
+                    for (int v = 0; v < count; v++) {
+                        if (r < limits[v]) {
+                            active[v].visit(event);
+                        }
+                    }
+                }
+            }
+            for (int v = 0; v < count; v++) {
+                if (r < limits[v]) {
+                    active[v].endRow(r, row);
+                }
+            }
+        }
+    }
+
+    /**
+     * Detecta columnas, metadata y/o vessel/IMO/cotización en un solo recorrido
+     */
+    public static Result scan(Sheet sheet, String brokerName, String fileName,
+                              boolean columns, boolean metadata, boolean quotationInfo) {
+        BrokerProfile profile = BrokerProfile.forBroker(brokerName);
+        HeaderRegionScanner scanner = new HeaderRegionScanner(profile.getMatcher());
+
+        ColumnDetector.ColumnVisitor columnVisitor = null;
+        BrokerMetadataExtractor.MetadataVisitor metadataVisitor = null;
+        QuotationInfoExtractor.InfoVisitor infoVisitor = null;
+        if (columns) {
+            scanner.add(columnVisitor = new ColumnDetector.ColumnVisitor(brokerName));
+        }
+        if (metadata) {
+            scanner.add(metadataVisitor = new BrokerMetadataExtractor.MetadataVisitor(brokerName));
+        }
+        if (quotationInfo) {
+            scanner.add(infoVisitor = new QuotationInfoExtractor.InfoVisitor(brokerName, fileName));
+        }
+        scanner.scan(sheet);
+
+        Result result = new Result();
+        if (columnVisitor != null) {
+            result.mapping = columnVisitor.getMapping();
+        }
+        if (metadataVisitor != null) {
+            result.metadata = metadataVisitor.getMetadata();
+        }
+        if (infoVisitor != null) {
+            result.quotationInfo = infoVisitor.getQuotationInfo();
+        }
+        return result;
+    }
+}
@@ -0,0 +1,28 @@
+package cl.vsschile;
+
+import org.apache.poi.ss.usermodel.Sheet;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Punto único para leer sólo la ventana de cabecera (primeras filas de la
+ * primera hoja) de una cotización, según el formato real del archivo
+ */
+public class HeaderWindowReader {
+
+    /**
+     * Lee las primeras maxRows filas de la primera hoja.
+     * El llamador debe cerrar el libro de la hoja retornada (sheet.getWorkbook().close()).
+     */
+    public static Sheet readHeaderRows(File file, int maxRows) throws Exception {
+        switch (WorkbookLoader.detectFormat(file)) {
+            case OOXML:
+                return XlsxHeaderReader.readHeaderRows(file, maxRows);
+            case OLE2:
+                return XlsHeaderReader.readHeaderRows(file, maxRows);
+            default:
+                throw new IOException("Formato de archivo no reconocido: " + file.getName());
+        }
+    }
+}
@@ -0,0 +1,819 @@
+package cl.vsschile;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/**
+ * Pipeline de ingesta de cotizaciones por etapas:
+ *
+ *   descubrir → leer → detectar/extraer → persistir → organizar
+ *
+ * Descubrir recorre los directorios de brokers en el hilo que llama a run().
+ * Cada una de las demás etapas tiene su propio grupo de hilos y recibe los
+ * archivos por una cola acotada: si una etapa es lenta (por ejemplo la BD),
+ * las anteriores se bloquean al encolar en vez de acumular archivos leídos
+ * en memoria.
+ *
+ * Leer abre la ventana de cabecera del archivo (WorkbookSession.openForBroker)
+ * y detectar/extraer aplica los extractores configurados en un solo recorrido
+ * de la cabecera (HeaderRegionScanner) y cierra el libro.
+ * Persistir y organizar son opcionales y los define quien usa el pipeline.
+ * Persistir puede ser asíncrona (AsyncStage): entrega el archivo, por
+ * ejemplo a una WriteBehindQueue, y sigue con el siguiente; el manifiesto y
+ * los avisos del archivo se hacen cuando su futuro se completa, y la etapa
+ * no termina hasta que se completaron todos.
+ *
+ * Con un ProcessingManifest, la etapa de lectura descarta los archivos que no
+ * cambiaron desde la ejecución anterior; los que terminan (o que una etapa
+ * descarta) se registran y el manifiesto se guarda al final de run().
+ *
+ * Con un ContentIndex, la etapa de lectura calcula el SHA-256 del archivo y
+ * cada contenido se parsea una sola vez: si el índice ya tiene un original
+ * guardado con ese hash, el archivo pasa sin abrirse con duplicateOf apuntando
+ * a él. Si otro archivo con el mismo contenido está en curso en la misma
+ * ejecución, éste espera a que termine y se resuelve en una vuelta siguiente:
+ * como referencia si el original quedó guardado, reutilizando lo extraído si
+ * es del mismo broker, o parseándolo si no.
+ *
+ * Con un BrokerClassifier, la etapa de lectura reconoce el broker por el
+ * contenido de la ventana de cabecera; si es otro que el del directorio (un
+ * archivo mal ubicado) se parsea con el formato reconocido (formatBroker).
+ *
+ * run(File) recorre todo el árbol de brokers; run(Collection) procesa sólo
+ * los archivos indicados (por ejemplo los que avisa BrokerDirectoryWatcher).
+ */
+public class IngestionPipeline {
+
+    private static final int DEFAULT_QUEUE_CAPACITY = 64;
+
+    /** Marca de fin de cola */
+    private static final Item END = new Item(null, null);
+
+    // Resultado final de un archivo (para resolver sus duplicados en espera)
+    private static final int PENDING = 0;
+    private static final int COMPLETED = 1;
+    private static final int SKIPPED = 2;
+    private static final int FAILED = 3;
+
+    /**
+     * Archivo en tránsito por el pipeline y lo que cada etapa obtuvo de él
+     */
+    public static class Item {
+        public final File file;
+        public final String brokerName;
+
+        /**
+         * Broker cuyo formato se usa al parsear: el del directorio, o el que
+         * reconoció el BrokerClassifier si es otro
+         */
+        public String formatBroker;
+
+        public ColumnDetector.ColumnMapping mapping;
+        public List<BrokerMetadataExtractor.MetadataField> metadata;
+        public QuotationInfo quotationInfo;
+
+        /** SHA-256 del contenido (sólo con ContentIndex) */
+        public String contentHash;
+
+        /**
+         * Referencia del original con el mismo contenido, según el ContentIndex;
+         * null si este archivo es el original. Un duplicado no se parsea.
+         */
+        public String duplicateOf;
+
+        /** Libro abierto entre las etapas de lectura y detección */
+        WorkbookSession session;
+
+        /** El manifiesto indica que el archivo no cambió */
+        boolean unchanged;
+
+        /** Archivo en curso con el mismo contenido, del que éste espera el resultado */
+        Item original;
+
+        /** Quedó en espera de su original para la vuelta siguiente */
+        boolean parked;
+
+        /** Resultado final (PENDING hasta que sale del pipeline) */
+        volatile int outcome = PENDING;
+
+        Item(File file, String brokerName) {
+            this.file = file;
+            this.brokerName = brokerName;
+            this.formatBroker = brokerName;
+        }
+
+        void closeSession() {
+            if (session != null) {
+                try {
+                    session.close();
+                } catch (IOException e) {
+                    // Ignorar
+                }
+                session = null;
+            }
+        }
+    }
+
+    /**
+     * Etapa del pipeline
+     */
+    public interface Stage {
+        /**
+         * Procesa el archivo. Retorna false para descartarlo (no pasa a las
+         * etapas siguientes y se informa como omitido).
+         */
+        boolean process(Item item) throws Exception;
+    }
+
+    /**
+     * Etapa que entrega el archivo a otro componente y termina después (por
+     * ejemplo, una escritura diferida)
+     */
+    public interface AsyncStage {
+        /**
+         * Inicia el proceso del archivo. El futuro se completa con
+         * Boolean.FALSE para descartarlo, con otro valor para seguir, o con
+         * un error si falló; mientras tanto el hilo de la etapa sigue con el
+         * archivo siguiente.
+         */
+        CompletableFuture<?> process(Item item) throws Exception;
+    }
+
+    /**
+     * Originales ya guardados, por hash de contenido
+     */
+    public interface ContentIndex {
+        /**
+         * Referencia al original guardado con ese contenido, o null si no hay.
+         * Quien usa el pipeline registra los originales al guardarlos.
+         */
+        String lookup(String contentHash) throws Exception;
+    }
+
+    /**
+     * Avisos de avance. Los métodos de archivo se llaman desde los hilos de
+     * las etapas, por lo que las implementaciones deben ser thread-safe.
+     */
+    public static abstract class Listener {
+        /** Antes de encolar los archivos de un broker (en el hilo que llamó a run) */
+        public void brokerDiscovered(String brokerName, int fileCount) throws Exception {
+        }
+
+        /** El archivo pasó por todas las etapas */
+        public void completed(Item item) {
+        }
+
+        /** Una etapa descartó el archivo */
+        public void skipped(Item item) {
+        }
+
+        /** El archivo no cambió desde la ejecución anterior (según el manifiesto) */
+        public void unchanged(Item item) {
+        }
+
+        /** Una etapa lanzó una excepción */
+        public void failed(Item item, String stageName, Exception e) {
+        }
+    }
+
+    /**
+     * Totales de una ejecución
+     */
+    public static class Result {
+        public final int discovered;
+        public final int completed;
+        public final int skipped;
+        public final int failed;
+        public final int unchanged;
+        /** Completados como duplicado de otro (incluidos en completed) */
+        public final int duplicates;
+
+        Result(int discovered, int completed, int skipped, int failed, int unchanged, int duplicates) {
+            this.discovered = discovered;
+            this.completed = completed;
+            this.skipped = skipped;
+            this.failed = failed;
+            this.unchanged = unchanged;
+            this.duplicates = duplicates;
+        }
+    }
+
+    // Configuración
+    private int readWorkers = 1;
+    private int detectWorkers = 1;
+    private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+    private int maxFilesPerBroker = 0;
+    private boolean detectColumns;
+    private boolean extractMetadata;
+    private boolean extractQuotationInfo;
+    private Stage persistStage;
+    private AsyncStage persistAsyncStage;
+    private int persistWorkers;
+    private Stage organizeStage;
+    private int organizeWorkers;
+    private ProcessingManifest manifest;
+    private ContentIndex contentIndex;
+    private BrokerClassifier classifier;
+    private Listener listener = new Listener() {
+    };
+
+    // Estado de la ejecución
+    private final AtomicInteger completed = new AtomicInteger();
+    private final AtomicInteger skipped = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicInteger unchanged = new AtomicInteger();
+    private final AtomicInteger duplicates = new AtomicInteger();
+
+    /** Primer archivo de cada contenido en la vuelta actual */
+    private final ConcurrentMap<String, Item> claimedHashes = new ConcurrentHashMap<String, Item>();
+
+    /** Duplicados que esperan a su original */
+    private final Queue<Item> parked = new ConcurrentLinkedQueue<Item>();
+
+    public IngestionPipeline readWorkers(int workers) {
+        this.readWorkers = Math.max(1, workers);
+        return this;
+    }
+
+    public IngestionPipeline detectWorkers(int workers) {
+        this.detectWorkers = Math.max(1, workers);
+        return this;
+    }
+
+    /**
+     * Capacidad de cada cola entre etapas
+     */
+    public IngestionPipeline queueCapacity(int capacity) {
+        this.queueCapacity = Math.max(1, capacity);
+        return this;
+    }
+
+    /**
+     * Procesa como máximo n archivos por broker (0 = todos)
+     */
+    public IngestionPipeline maxFilesPerBroker(int n) {
+        this.maxFilesPerBroker = n;
+        return this;
+    }
+
+    public IngestionPipeline detectColumns() {
+        this.detectColumns = true;
+        return this;
+    }
+
+    public IngestionPipeline extractMetadata() {
+        this.extractMetadata = true;
+        return this;
+    }
+
+    public IngestionPipeline extractQuotationInfo() {
+        this.extractQuotationInfo = true;
+        return this;
+    }
+
+    public IngestionPipeline persist(Stage stage, int workers) {
+        this.persistStage = stage;
+        this.persistAsyncStage = null;
+        this.persistWorkers = Math.max(1, workers);
+        return this;
+    }
+
+    /**
+     * Persiste de forma asíncrona: workers hilos entregan los archivos y cada
+     * uno se cierra cuando su futuro se completa
+     */
+    public IngestionPipeline persistAsync(AsyncStage stage, int workers) {
+        this.persistAsyncStage = stage;
+        this.persistStage = null;
+        this.persistWorkers = Math.max(1, workers);
+        return this;
+    }
+
+    public IngestionPipeline organize(Stage stage, int workers) {
+        this.organizeStage = stage;
+        this.organizeWorkers = Math.max(1, workers);
+        return this;
+    }
+
+    /**
+     * Procesa sólo los archivos nuevos o modificados según el manifiesto
+     */
+    public IngestionPipeline manifest(ProcessingManifest manifest) {
+        this.manifest = manifest;
+        return this;
+    }
+
+    /**
+     * Parsea y entrega a persistir cada contenido una sola vez (ver ContentIndex)
+     */
+    public IngestionPipeline contentIndex(ContentIndex contentIndex) {
+        this.contentIndex = contentIndex;
+        return this;
+    }
+
+    /**
+     * Reconoce el broker de cada archivo por su contenido (ver BrokerClassifier)
+     */
+    public IngestionPipeline classifier(BrokerClassifier classifier) {
+        this.classifier = classifier;
+        return this;
+    }
+
+    public IngestionPipeline listener(Listener listener) {
+        this.listener = listener;
+        return this;
+    }
+
+    /**
+     * Procesa todos los subdirectorios de brokersDir (uno por broker) y
+     * espera a que terminen todas las etapas
+     */
+    public Result run(File brokersDir) throws IOException, InterruptedException {
+        File[] brokerDirs = brokersDir.listFiles();
+        if (brokerDirs == null) {
+            throw new IOException("No se pueden leer los subdirectorios de " + brokersDir);
+        }
+
+        Map<String, File[]> filesByBroker = new LinkedHashMap<String, File[]>();
+        List<File> allFiles = new ArrayList<File>();
+        for (File brokerDir : brokerDirs) {
+            if (!brokerDir.isDirectory()) continue;
+
+            File[] files = brokerDir.listFiles(WorkbookLoader.EXCEL_FILES);
+            if (files == null) {
+                files = new File[0];
+            }
+            allFiles.addAll(Arrays.asList(files));
+            if (maxFilesPerBroker > 0 && files.length > maxFilesPerBroker) {
+                files = Arrays.copyOf(files, maxFilesPerBroker);
+            }
+            filesByBroker.put(brokerDir.getName(), files);
+        }
+
+        Result result = executeAll(filesByBroker);
+
+        if (manifest != null) {
+            // Recorrido completo: los archivos que ya no existen salen del manifiesto
+            manifest.retainOnly(allFiles);
+            manifest.save();
+        }
+        return result;
+    }
+
+    /**
+     * Procesa sólo los archivos indicados; el broker de cada uno es el nombre
+     * de su directorio
+     */
+    public Result run(Collection<File> files) throws IOException, InterruptedException {
+        Map<String, List<File>> grouped = new LinkedHashMap<String, List<File>>();
+        for (File file : files) {
+            String brokerName = file.getParentFile().getName();
+            List<File> brokerFiles = grouped.get(brokerName);
+            if (brokerFiles == null) {
+                brokerFiles = new ArrayList<File>();
+                grouped.put(brokerName, brokerFiles);
+            }
+            brokerFiles.add(file);
+        }
+
+        Map<String, File[]> filesByBroker = new LinkedHashMap<String, File[]>();
+        for (Map.Entry<String, List<File>> entry : grouped.entrySet()) {
+            filesByBroker.put(entry.getKey(), entry.getValue().toArray(new File[0]));
+        }
+
+        Result result = executeAll(filesByBroker);
+
+        if (manifest != null) {
+            manifest.save();
+        }
+        return result;
+    }
+
+    /**
+     * Procesa los archivos descubiertos y después, en vueltas sucesivas, los
+     * duplicados que quedaron esperando a su original
+     */
+    private Result executeAll(Map<String, File[]> filesByBroker) throws InterruptedException {
+        completed.set(0);
+        skipped.set(0);
+        failed.set(0);
+        unchanged.set(0);
+        duplicates.set(0);
+        parked.clear();
+
+        int discovered = execute(filesByBroker, null);
+        while (!parked.isEmpty()) {
+            List<Item> waiting = new ArrayList<Item>(parked);
+            parked.clear();
+            for (Item item : waiting) {
+                item.parked = false;
+            }
+            execute(Collections.<String, File[]>emptyMap(), waiting);
+        }
+        claimedHashes.clear();
+
+        return new Result(discovered, completed.get(), skipped.get(), failed.get(), unchanged.get(),
+            duplicates.get());
+    }
+
+    /**
+     * Una vuelta del pipeline: los archivos descubiertos o, si retry no es
+     * null, esos ítems. Retorna la cantidad de archivos descubiertos.
+     */
+    private int execute(Map<String, File[]> filesByBroker, List<Item> retry) throws InterruptedException {
+        claimedHashes.clear();
+
+        List<StageRunner> runners = buildStages();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (StageRunner runner : runners) {
+            threads.addAll(runner.start());
+        }
+
+        StageRunner first = runners.get(0);
+        int discovered = 0;
+        try {
+            for (Map.Entry<String, File[]> entry : filesByBroker.entrySet()) {
+                discovered += discoverBroker(entry.getKey(), entry.getValue(), first.queue);
+            }
+            if (retry != null) {
+                for (Item item : retry) {
+                    first.queue.put(item);
+                }
+            }
+        } finally {
+            // Fin de la entrada: cada hilo de la primera etapa recibe su marca
+            for (int i = 0; i < first.workers; i++) {
+                first.queue.put(END);
+            }
+        }
+
+        try {
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            for (Thread thread : threads) {
+                thread.interrupt();
+            }
+            throw e;
+        }
+
+        return discovered;
+    }
+
+    private int discoverBroker(String brokerName, File[] files, BlockingQueue<Item> queue) 
+            throws InterruptedException {
+        try {
+            listener.brokerDiscovered(brokerName, files.length);
+        } catch (Exception e) {
+            // El broker no se puede procesar: todos sus archivos quedan con error
+            for (File file : files) {
+                failed.incrementAndGet();
+                listener.failed(new Item(file, brokerName), "descubrir", e);
+            }
+            return files.length;
+        }
+
+        for (File file : files) {
+            // Bloquea si la etapa de lectura va atrasada
+            queue.put(new Item(file, brokerName));
+        }
+        return files.length;
+    }
+
+    private List<StageRunner> buildStages() {
+        List<StageRunner> runners = new ArrayList<StageRunner>();
+        runners.add(new StageRunner("leer", readStage(), readWorkers));
+        runners.add(new StageRunner("detectar", detectStage(), detectWorkers));
+        if (persistStage != null) {
+            runners.add(new StageRunner("persistir", persistStage, persistWorkers));
+        } else if (persistAsyncStage != null) {
+            runners.add(new StageRunner("persistir", persistAsyncStage, persistWorkers));
+        }
+        if (organizeStage != null) {
+            runners.add(new StageRunner("organizar", organizeStage, organizeWorkers));
+        }
+
+        for (int i = 0; i < runners.size() - 1; i++) {
+            runners.get(i).next = runners.get(i + 1);
+        }
+        return runners;
+    }
+
+    private Stage readStage() {
+        return new Stage() {
+            public boolean process(Item item) throws Exception {
+                if (manifest != null) {
+                    // Si el manifiesto tuvo que leer el contenido, su hash se reutiliza
+                    String[] hash = new String[1];
+                    if (manifest.isUnchanged(item.file, hash)) {
+                        item.unchanged = true;
+                        return false;
+                    }
+                    if (hash[0] != null) {
+                        item.contentHash = hash[0];
+                    }
+                }
+                if (contentIndex != null) {
+                    if (item.contentHash == null) {
+                        item.contentHash = ProcessingManifest.sha256(item.file);
+                    }
+                    Item original = item.original;
+                    item.original = null;
+
+                    String stored = contentIndex.lookup(item.contentHash);
+                    if (stored != null) {
+                        item.duplicateOf = stored;
+                        return true;
+                    }
+                    if (original != null && original.outcome != FAILED 
+                            && original.brokerName.equals(item.brokerName)) {
+                        // Vuelta siguiente: los extractores dependen del broker, así que sólo
+                        // se reutiliza lo extraído del original si es del mismo broker
+                        reuseExtraction(item, original);
+                        return original.outcome == COMPLETED;
+                    }
+                    Item first = claimedHashes.putIfAbsent(item.contentHash, item);
+                    if (first != null) {
+                        // El mismo contenido está en curso: se espera a que termine
+                        item.original = first;
+                        item.parked = true;
+                        parked.add(item);
+                        return false;
+                    }
+                }
+                item.session = openSession(item);
+                return true;
+            }
+        };
+    }
+
+    private Stage detectStage() {
+        return new Stage() {
+            public boolean process(Item item) throws Exception {
+                if (item.session == null) {
+                    // Duplicado: no se abrió el libro
+                    return true;
+                }
+                try {
+                    // Un solo recorrido de la cabecera para todos los extractores configurados
+                    HeaderRegionScanner.Result result = item.session.scan(item.formatBroker,
+                        detectColumns, extractMetadata, extractQuotationInfo);
+                    item.mapping = result.mapping;
+                    item.metadata = result.metadata;
+                    item.quotationInfo = result.quotationInfo;
+                } finally {
+                    item.closeSession();
+                }
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Abre la ventana de cabecera del archivo. Con clasificador, la ventana
+     * cubre también sus filas y, si reconoce un broker con otro perfil que el
+     * del directorio, el archivo se parsea con ese formato.
+     */
+    private WorkbookSession openSession(Item item) throws Exception {
+        if (classifier == null) {
+            return WorkbookSession.openForBroker(item.file, item.brokerName);
+        }
+
+        int rows = Math.max(WorkbookSession.getScanRows(item.brokerName), classifier.getScanRows());
+        WorkbookSession session = WorkbookSession.openHeader(item.file, rows);
+        BrokerClassifier.Match match = classifier.classify(session.getSheet());
+        if (match != null && BrokerProfile.forBroker(match.brokerName) != BrokerProfile.forBroker(item.brokerName)) {
+            item.formatBroker = match.brokerName;
+            if (WorkbookSession.getScanRows(match.brokerName) > rows) {
+                session.close();
+                session = WorkbookSession.openForBroker(item.file, match.brokerName);
+            }
+        }
+        return session;
+    }
+
+    /**
+     * Copia al duplicado lo que se extrajo del original; de QuotationInfo sólo
+     * los datos del contenido, no broker ni nombre de archivo
+     */
+    private static void reuseExtraction(Item item, Item original) {
+        item.mapping = original.mapping;
+        item.metadata = original.metadata;
+        if (original.quotationInfo != null) {
+            QuotationInfo info = new QuotationInfo();
+            info.broker = item.brokerName;
+            info.originalFileName = item.file.getName();
+            info.vesselName = original.quotationInfo.vesselName;
+            info.imoNumber = original.quotationInfo.imoNumber;
+            info.quotationNumber = original.quotationInfo.quotationNumber;
+            item.quotationInfo = info;
+        }
+    }
+
+    /**
+     * Grupo de hilos de una etapa con su cola de entrada
+     */
+    private class StageRunner {
+        final String name;
+        final Stage stage;
+        final AsyncStage asyncStage;
+        final int workers;
+        final BlockingQueue<Item> queue;
+        final AtomicInteger live;
+        StageRunner next;
+
+        /** Archivos entregados a la etapa asíncrona cuyo futuro no se completó */
+        final AtomicInteger inFlight = new AtomicInteger();
+
+        StageRunner(String name, Stage stage, int workers) {
+            this(name, stage, null, workers);
+        }
+
+        StageRunner(String name, AsyncStage asyncStage, int workers) {
+            this(name, null, asyncStage, workers);
+        }
+
+        private StageRunner(String name, Stage stage, AsyncStage asyncStage, int workers) {
+            this.name = name;
+            this.stage = stage;
+            this.asyncStage = asyncStage;
+            this.workers = workers;
+            this.queue = new ArrayBlockingQueue<Item>(queueCapacity);
+            this.live = new AtomicInteger(workers);
+        }
+
+        List<Thread> start() {
+            List<Thread> threads = new ArrayList<Thread>();
+            for (int i = 1; i <= workers; i++) {
+                Thread thread = new Thread(new Runnable() {
+                    public void run() {
+                        work();
+                    }
+                }, "pipeline-" + name + "-" + i);
+                thread.start();
+                threads.add(thread);
+            }
+            return threads;
+        }
+
+        private void work() {
+            try {
+                while (true) {
+                    Item item = queue.take();
+                    if (item == END) {
+                        break;
+                    }
+                    if (asyncStage == null) {
+                        handle(item);
+                    } else {
+                        handleAsync(item);
+                    }
+                }
+                awaitInFlight();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                // El último hilo en salir avisa el fin a la etapa siguiente
+                if (live.decrementAndGet() == 0 && next != null) {
+                    try {
+                        for (int i = 0; i < next.workers; i++) {
+                            next.queue.put(END);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        }
+
+        private void handle(Item item) throws InterruptedException {
+            boolean forward;
+            try {
+                forward = stage.process(item);
+            } catch (Throwable e) {
+                // También un Error (memoria, clases de POI): falla el archivo, no el hilo
+                fail(item, cause(e));
+                return;
+            }
+            advance(item, forward);
+        }
+
+        private void handleAsync(final Item item) {
+            CompletableFuture<?> future;
+            try {
+                future = asyncStage.process(item);
+            } catch (Throwable e) {
+                fail(item, cause(e));
+                return;
+            }
+
+            inFlight.incrementAndGet();
+            future.whenComplete(new BiConsumer<Object, Throwable>() {
+                public void accept(Object result, Throwable error) {
+                    try {
+                        if (error != null) {
+                            fail(item, cause(error));
+                        } else {
+                            advance(item, !Boolean.FALSE.equals(result));
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        synchronized (inFlight) {
+                            if (inFlight.decrementAndGet() == 0) {
+                                inFlight.notifyAll();
+                            }
+                        }
+                    }
+                }
+            });
+        }
+
+        /**
+         * Espera a que se completen los archivos entregados a la etapa asíncrona
+         */
+        private void awaitInFlight() throws InterruptedException {
+            synchronized (inFlight) {
+                while (inFlight.get() > 0) {
+                    inFlight.wait();
+                }
+            }
+        }
+
+        private void fail(Item item, Exception e) {
+            item.closeSession();
+            item.outcome = FAILED;
+            failed.incrementAndGet();
+            listener.failed(item, name, e);
+        }
+
+        /**
+         * Pasa el archivo a la etapa siguiente, o lo cierra como descartado o completado
+         */
+        private void advance(Item item, boolean forward) throws InterruptedException {
+            if (!forward && item.parked) {
+                // Vuelve a entrar en la vuelta siguiente
+                return;
+            } else if (!forward && item.unchanged) {
+                unchanged.incrementAndGet();
+                listener.unchanged(item);
+            } else if (!forward) {
+                item.closeSession();
+                if (record(item)) {
+                    item.outcome = SKIPPED;
+                    skipped.incrementAndGet();
+                    listener.skipped(item);
+                }
+            } else if (next != null) {
+                // Bloquea si la etapa siguiente va atrasada
+                next.queue.put(item);
+            } else if (record(item)) {
+                item.outcome = COMPLETED;
+                completed.incrementAndGet();
+                if (item.duplicateOf != null) {
+                    duplicates.incrementAndGet();
+                }
+                listener.completed(item);
+            }
+        }
+
+        /**
+         * Error a informar: la causa de un futuro fallido, o el Throwable envuelto si no es una Exception
+         */
+        private Exception cause(Throwable error) {
+            if (error instanceof CompletionException && error.getCause() != null) {
+                error = error.getCause();
+            }
+            return error instanceof Exception ? (Exception) error : new Exception(error);
+        }
+
+        /**
+         * Registra en el manifiesto un archivo ya resuelto; false si falló el registro
+         */
+        private boolean record(Item item) {
+            if (manifest == null) {
+                return true;
+            }
+            try {
+                manifest.record(item.file, item.contentHash);
+                return true;
+            } catch (IOException e) {
+                item.outcome = FAILED;
+                failed.incrementAndGet();
+                listener.failed(item, "manifiesto", e);
+                return false;
+            }
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package cl.vsschile;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Distribución de las carpetas de cliente dentro del directorio de salida.
+ *
+ * FLAT deja una carpeta por cliente directamente bajo el directorio de salida.
+ * SHARDED la ubica bajo dos niveles de prefijos tomados del SHA-256 de la
+ * clave de cliente (ab/cd/IMO_9388895): cada nivel tiene a lo sumo 256
+ * entradas, por lo que los listados se mantienen acotados aunque haya miles
+ * de clientes.
+ *
+ * La distribución elegida se guarda en el directorio de salida (archivo
+ * .layout; sin él es FLAT), así las herramientas encuentran la carpeta de un
+ * cliente con resolveClientDir() sin saber cómo se creó el árbol.
+ */
+public enum OutputLayout {
+    FLAT,
+    SHARDED;
+
+    /** Archivo con el nombre de la distribución, dentro del directorio de salida */
+    public static final String LAYOUT_FILE = ".layout";
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * Ruta de la carpeta del cliente relativa al directorio de salida, separada por '/'
+     */
+    public String clientPath(String clientKey) {
+        if (this == FLAT) {
+            return clientKey;
+        }
+
+        byte[] hash = sha256(clientKey);
+        StringBuilder path = new StringBuilder(clientKey.length() + 6);
+        path.append(HEX[(hash[0] >> 4) & 0xF]).append(HEX[hash[0] & 0xF]).append('/');
+        path.append(HEX[(hash[1] >> 4) & 0xF]).append(HEX[hash[1] & 0xF]).append('/');
+        path.append(clientKey);
+        return path.toString();
+    }
+
+    public File clientDir(File outputDir, String clientKey) {
+        return new File(outputDir, clientPath(clientKey).replace('/', File.separatorChar));
+    }
+
+    /**
+     * Distribución de un directorio de salida existente (FLAT si no la indica)
+     */
+    public static OutputLayout read(File outputDir) throws IOException {
+        File layoutFile = new File(outputDir, LAYOUT_FILE);
+        if (!layoutFile.exists()) {
+            return FLAT;
+        }
+
+        String name = new String(Files.readAllBytes(layoutFile.toPath()), StandardCharsets.UTF_8).trim();
+        try {
+            return valueOf(name.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Distribución desconocida en " + layoutFile + ": " + name);
+        }
+    }
+
+    /**
+     * Registra esta distribución en el directorio de salida
+     */
+    public void write(File outputDir) throws IOException {
+        Files.write(new File(outputDir, LAYOUT_FILE).toPath(),
+            name().toLowerCase().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Carpeta de un cliente en un árbol de salida ya creado, según su distribución
+     */
+    public static File resolveClientDir(File outputDir, String clientKey) throws IOException {
+        return read(outputDir).clientDir(outputDir, clientKey);
+    }
+
+    private static byte[] sha256(String value) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 no disponible", e);
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package cl.vsschile;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Manifiesto persistente de archivos ya procesados, para re-procesar sólo
+ * los archivos nuevos o modificados.
+ *
+ * Cada entrada guarda ruta (relativa al directorio base), tamaño, fecha de
+ * modificación y hash SHA-256 del contenido. Un archivo se considera sin
+ * cambios si tamaño y fecha coinciden (no se lee), o si sólo cambió la fecha
+ * pero el hash es el mismo.
+ *
+ * Formato del archivo: una línea por entrada, campos separados por tabulador.
+ * Tras recorrer el árbol completo, retainOnly() quita las entradas de los
+ * archivos que ya no existen.
+ */
+public class ProcessingManifest {
+
+    private static final String HEADER = "# ruta\ttamaño\tmodificado\tsha256";
+
+    /**
+     * Estado registrado de un archivo
+     */
+    public static class Entry {
+        public final long size;
+        public final long lastModified;
+        public final String hash;
+
+        public Entry(long size, long lastModified, String hash) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hash = hash;
+        }
+    }
+
+    private final File manifestFile;
+    private final File baseDir;
+    private final ConcurrentMap<String, Entry> entries;
+    private boolean full;
+
+    private ProcessingManifest(File manifestFile, File baseDir, ConcurrentMap<String, Entry> entries) {
+        this.manifestFile = manifestFile;
+        this.baseDir = baseDir;
+        this.entries = entries;
+    }
+
+    /**
+     * Carga el manifiesto (vacío si el archivo todavía no existe)
+     */
+    public static ProcessingManifest load(File manifestFile, File baseDir) throws IOException {
+        ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+        if (manifestFile.exists()) {
+            BufferedReader reader = Files.newBufferedReader(manifestFile.toPath(), StandardCharsets.UTF_8);
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.isEmpty() || line.startsWith("#")) continue;
+
+                    String[] parts = line.split("\t");
+                    if (parts.length != 4) continue;
+                    try {
+                        entries.put(parts[0], new Entry(Long.parseLong(parts[1]), Long.parseLong(parts[2]), parts[3]));
+                    } catch (NumberFormatException e) {
+                        // Línea dañada: el archivo se volverá a procesar
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+
+        return new ProcessingManifest(manifestFile, baseDir, entries);
+    }
+
+    /**
+     * En modo completo ningún archivo se considera sin cambios
+     * (el manifiesto se reconstruye con lo procesado)
+     */
+    public void setFull(boolean full) {
+        this.full = full;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * True si el archivo ya fue procesado con el mismo contenido
+     */
+    public boolean isUnchanged(File file) throws IOException {
+        return isUnchanged(file, null);
+    }
+
+    /**
+     * Igual que isUnchanged(File); si tuvo que calcular el hash del contenido
+     * lo deja en hash[0] (si se indica), para no volver a leer el archivo
+     */
+    public boolean isUnchanged(File file, String[] hash) throws IOException {
+        String key = keyOf(file);
+        Entry entry = entries.get(key);
+        if (full || entry == null) {
+            return false;
+        }
+
+        long size = file.length();
+        long lastModified = file.lastModified();
+        if (entry.size == size && entry.lastModified == lastModified) {
+            return true;
+        }
+
+        // Cambió la fecha (copia, touch): se compara el contenido
+        if (entry.size == size) {
+            String current = sha256(file);
+            if (hash != null) {
+                hash[0] = current;
+            }
+            if (current.equals(entry.hash)) {
+                entries.put(key, new Entry(size, lastModified, current));
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Registra el archivo como procesado con su contenido actual
+     */
+    public void record(File file) throws IOException {
+        record(file, null);
+    }
+
+    /**
+     * Igual que record(File), con el hash ya calculado al leer el archivo
+     * (null para calcularlo aquí)
+     */
+    public void record(File file, String hash) throws IOException {
+        long size = file.length();
+        long lastModified = file.lastModified();
+        entries.put(keyOf(file), new Entry(size, lastModified, hash != null ? hash : sha256(file)));
+    }
+
+    /**
+     * Deja sólo las entradas de los archivos indicados (los existentes tras
+     * recorrer el árbol completo)
+     */
+    public void retainOnly(Collection<File> files) {
+        Set<String> keys = new HashSet<String>();
+        for (File file : files) {
+            keys.add(keyOf(file));
+        }
+        entries.keySet().retainAll(keys);
+    }
+
+    /**
+     * Escribe el manifiesto (archivo temporal + reemplazo atómico)
+     */
+    public void save() throws IOException {
+        List<String> keys = new ArrayList<String>(entries.keySet());
+        Collections.sort(keys);
+
+        File tmp = new File(manifestFile.getPath() + ".tmp");
+        BufferedWriter writer = Files.newBufferedWriter(tmp.toPath(), StandardCharsets.UTF_8);
+        try {
+            writer.write(HEADER);
+            writer.newLine();
+            for (String key : keys) {
+                Entry entry = entries.get(key);
+                writer.write(key + "\t" + entry.size + "\t" + entry.lastModified + "\t" + entry.hash);
+                writer.newLine();
+            }
+        } finally {
+            writer.close();
+        }
+
+        Files.move(tmp.toPath(), manifestFile.toPath(),
+            StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private String keyOf(File file) {
+        String path = baseDir.toPath().toAbsolutePath().normalize()
+            .relativize(file.toPath().toAbsolutePath().normalize()).toString();
+        return path.replace(File.separatorChar, '/');
+    }
+
+    /**
+     * Hash SHA-256 del contenido, en hexadecimal
+     */
+    public static String sha256(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-256 no disponible", e);
+        }
+
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[65536];
+            int length;
+            while ((length = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, length);
+            }
+        } finally {
+            in.close();
+        }
+
+        byte[] bytes = digest.digest();
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+}
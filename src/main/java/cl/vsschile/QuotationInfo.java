@@ -0,0 +1,28 @@
+package cl.vsschile;
+
+/**
+ * Información de cliente extraída de una cotización
+ */
+public class QuotationInfo {
+    public String broker;
+    public String vesselName;
+    public String imoNumber;
+    public String quotationNumber;
+    public String originalFileName;
+    
+    public String getClientKey() {
+        if (imoNumber != null && !imoNumber.trim().isEmpty()) {
+            return "IMO_" + imoNumber.trim().replaceAll("[^0-9]", "");
+        } else if (vesselName != null && !vesselName.trim().isEmpty()) {
+            return vesselName.trim()
+                .replaceAll("[^a-zA-Z0-9\\s]", "")
+                .replaceAll("\\s+", "_")
+                .toUpperCase();
+        } else if (quotationNumber != null && !quotationNumber.trim().isEmpty()) {
+            return "QUOTE_" + quotationNumber.trim()
+                .replaceAll("[^a-zA-Z0-9]", "_");
+        } else {
+            return "UNKNOWN_" + System.currentTimeMillis();
+        }
+    }
+}
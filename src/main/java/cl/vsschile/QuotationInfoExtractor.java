@@ -0,0 +1,135 @@
+package cl.vsschile;
+
+import org.apache.poi.ss.usermodel.*;
+
+import java.util.*;
+
+/**
+ * Extrae la información de cliente (vessel, IMO, número de cotización)
+ * desde las filas superiores de una cotización
+ */
+public class QuotationInfoExtractor {
+    
+    /**
+     * Extrae vessel, IMO y número de cotización desde la hoja según el broker
+     */
+    public static QuotationInfo extract(Sheet sheet, String brokerName, String fileName) {
+        InfoVisitor visitor = new InfoVisitor(brokerName, fileName);
+        new HeaderRegionScanner(BrokerProfile.forBroker(brokerName).getMatcher()).add(visitor).scan(sheet);
+        return visitor.getQuotationInfo();
+    }
+    
+    /**
+     * Cantidad de filas (desde la primera) que necesitan las anclas del broker
+     */
+    public static int getScanRows(String brokerName) {
+        return BrokerProfile.forBroker(brokerName).getInfoScanRows();
+    }
+    
+    /**
+     * Extractor de vessel / IMO / cotización para HeaderRegionScanner
+     */
+    public static class InfoVisitor implements HeaderRegionScanner.Visitor {
+        private final BrokerProfile profile;
+        private final String brokerName;
+        private final String fileName;
+        private final AnchorState vessel;
+        private final AnchorState imo;
+        private final AnchorState quotation;
+        
+        public InfoVisitor(String brokerName, String fileName) {
+            this.profile = BrokerProfile.forBroker(brokerName);
+            this.brokerName = brokerName;
+            this.fileName = fileName;
+            this.vessel = AnchorState.of(profile.vessel);
+            this.imo = AnchorState.of(profile.imo);
+            this.quotation = AnchorState.of(profile.quotation);
+        }
+        
+        public int getScanRows() {
+            return profile.getInfoScanRows();
+        }
+        
+        public void visit(HeaderRegionScanner.CellEvent event) {
+            if (vessel != null) vessel.visit(event);
+            if (imo != null) imo.visit(event);
+            if (quotation != null) quotation.visit(event);
+        }
+        
+        public void endRow(int rowIndex, Row row) {
+        }
+        
+        public QuotationInfo getQuotationInfo() {
+            QuotationInfo info = new QuotationInfo();
+            info.broker = brokerName;
+            info.originalFileName = fileName;
+            info.vesselName = vessel != null ? vessel.value() : null;
+            info.imoNumber = imo != null ? imo.value() : null;
+            info.quotationNumber = quotation != null ? quotation.value() : null;
+            return info;
+        }
+    }
+    
+    /**
+     * Búsqueda de un ancla durante el recorrido. Con etiqueta, cada aparición
+     * abre un candidato (la celda a la derecha o las filas bajo ella); gana
+     * el primer candidato, en orden de aparición, que encuentra un valor.
+     */
+    private static class AnchorState {
+        private final BrokerProfile.Anchor anchor;
+        private String cellValue;
+        // Candidatos: columna y filas donde buscar el valor, y el valor encontrado
+        private final List<int[]> targets = new ArrayList<int[]>(1);
+        private final List<String> values = new ArrayList<String>(1);
+        
+        private AnchorState(BrokerProfile.Anchor anchor) {
+            this.anchor = anchor;
+        }
+        
+        static AnchorState of(BrokerProfile.Anchor anchor) {
+            return anchor != null ? new AnchorState(anchor) : null;
+        }
+        
+        void visit(HeaderRegionScanner.CellEvent event) {
+            if (anchor.kind == BrokerProfile.Anchor.CELL) {
+                if (event.row == anchor.row && event.column == anchor.column) {
+                    cellValue = event.trimmed();
+                }
+                return;
+            }
+            
+            for (int i = 0; i < targets.size(); i++) {
+                int[] target = targets.get(i);
+                if (values.get(i) == null && target[0] == event.column
+                        && event.row >= target[1] && event.row <= target[2]) {
+                    String value = event.trimmed();
+                    if (value != null && !value.isEmpty()) {
+                        values.set(i, value);
+                    }
+                }
+            }
+            
+            if (event.row >= anchor.firstRow && event.row <= anchor.lastRow 
+                    && !event.isBlank() && anchor.label.matches(event.hits())) {
+                if (anchor.kind == BrokerProfile.Anchor.RIGHT) {
+                    targets.add(new int[] {event.column + 1, event.row, event.row});
+                } else {
+                    targets.add(new int[] {event.column, event.row + 1, event.row + anchor.depth});
+                }
+                values.add(null);
+            }
+        }
+        
+        String value() {
+            if (anchor.kind == BrokerProfile.Anchor.CELL) {
+                return cellValue;
+            }
+            for (String value : values) {
+                if (value != null) {
+                    return value;
+                }
+            }
+            return null;
+        }
+    }
+}
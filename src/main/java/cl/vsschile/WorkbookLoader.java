@@ -0,0 +1,118 @@
+package cl.vsschile;
+
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.poifs.filesystem.NPOIFSFileSystem;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+
+import java.io.*;
+
+/**
+ * Carga de libros Excel en modo sólo lectura respaldado por el archivo.
+ *
+ * El formato real se detecta por los bytes iniciales (firma ZIP para
+ * .xlsx/.xlsm, firma OLE2 para .xls), no por la extensión. Los .xlsx se abren
+ * con OPCPackage.open(File, READ), que lee las entradas del zip bajo demanda
+ * con acceso aleatorio en vez de copiar todo el archivo a memoria; los .xls
+ * con NPOIFSFileSystem sobre el archivo.
+ */
+public class WorkbookLoader {
+
+    /**
+     * Formato físico del archivo
+     */
+    public enum Format {
+        /** Paquete OOXML (zip): .xlsx, .xlsm */
+        OOXML,
+        /** Documento OLE2/BIFF: .xls */
+        OLE2,
+        UNKNOWN
+    }
+
+    /**
+     * Filtro de archivos Excel por extensión, usado al recorrer los directorios de brokers.
+     * Excluye los archivos de bloqueo que Excel crea mientras un libro está abierto (~$...).
+     */
+    public static final FilenameFilter EXCEL_FILES = new FilenameFilter() {
+        public boolean accept(File dir, String name) {
+            if (name.startsWith("~$")) {
+                return false;
+            }
+            String lower = name.toLowerCase();
+            return lower.endsWith(".xlsx") || lower.endsWith(".xls") || lower.endsWith(".xlsm");
+        }
+    };
+
+    private static final byte[] ZIP_MAGIC = {0x50, 0x4B, 0x03, 0x04};
+    private static final byte[] OLE2_MAGIC = {
+        (byte) 0xD0, (byte) 0xCF, 0x11, (byte) 0xE0, (byte) 0xA1, (byte) 0xB1, 0x1A, (byte) 0xE1
+    };
+
+    /**
+     * Detecta el formato leyendo la firma del archivo
+     */
+    public static Format detectFormat(File file) throws IOException {
+        byte[] header = new byte[8];
+        int read = 0;
+
+        InputStream in = new FileInputStream(file);
+        try {
+            while (read < header.length) {
+                int n = in.read(header, read, header.length - read);
+                if (n < 0) break;
+                read += n;
+            }
+        } finally {
+            in.close();
+        }
+
+        if (startsWith(header, read, OLE2_MAGIC)) {
+            return Format.OLE2;
+        }
+        if (startsWith(header, read, ZIP_MAGIC)) {
+            return Format.OOXML;
+        }
+        return Format.UNKNOWN;
+    }
+
+    /**
+     * Abre el libro en modo sólo lectura. El llamador debe cerrarlo.
+     */
+    public static Workbook open(File file) throws Exception {
+        switch (detectFormat(file)) {
+            case OOXML:
+                OPCPackage pkg = OPCPackage.open(file, PackageAccess.READ);
+                try {
+                    return new XSSFWorkbook(pkg);
+                } catch (Exception e) {
+                    pkg.revert();
+                    throw e;
+                }
+            case OLE2:
+                NPOIFSFileSystem fs = new NPOIFSFileSystem(file, true);
+                try {
+                    // Al cerrar el libro se cierra también el sistema de archivos
+                    return new HSSFWorkbook(fs.getRoot(), true);
+                } catch (Exception e) {
+                    fs.close();
+                    throw e;
+                }
+            default:
+                throw new IOException("Formato de archivo no reconocido: " + file.getName());
+        }
+    }
+
+    private static boolean startsWith(byte[] data, int length, byte[] magic) {
+        if (length < magic.length) {
+            return false;
+        }
+        for (int i = 0; i < magic.length; i++) {
+            if (data[i] != magic[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,98 @@
+package cl.vsschile;
+
+import org.apache.poi.ss.usermodel.*;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Sesión sobre un archivo de cotización: lo abre una sola vez, guarda la
+ * primera hoja y atiende desde ese único parseo la detección de columnas,
+ * la metadata, la información de cliente (vessel/IMO) y los estilos de celdas.
+ */
+public class WorkbookSession implements Closeable {
+
+    private final File file;
+    private final Workbook workbook;
+    private final Sheet sheet;
+
+    private WorkbookSession(File file, Workbook workbook, Sheet sheet) {
+        this.file = file;
+        this.workbook = workbook;
+        this.sheet = sheet;
+    }
+
+    /**
+     * Abre el libro completo (todas las filas de la primera hoja)
+     */
+    public static WorkbookSession open(File file) throws Exception {
+        Workbook workbook = WorkbookLoader.open(file);
+        return new WorkbookSession(file, workbook, workbook.getSheetAt(0));
+    }
+
+    /**
+     * Abre sólo las primeras maxRows filas de la primera hoja
+     */
+    public static WorkbookSession openHeader(File file, int maxRows) throws Exception {
+        Sheet sheet = HeaderWindowReader.readHeaderRows(file, maxRows);
+        return new WorkbookSession(file, sheet.getWorkbook(), sheet);
+    }
+
+    /**
+     * Abre las filas que necesitan todos los extractores para el broker indicado
+     */
+    public static WorkbookSession openForBroker(File file, String brokerName) throws Exception {
+        return openHeader(file, getScanRows(brokerName));
+    }
+
+    /**
+     * Filas necesarias para detección de columnas, metadata e información de cliente
+     */
+    public static int getScanRows(String brokerName) {
+        return Math.max(ColumnDetector.getHeaderScanRows(brokerName),
+            Math.max(BrokerMetadataExtractor.getMetadataScanRows(brokerName),
+                     QuotationInfoExtractor.getScanRows(brokerName)));
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public Sheet getSheet() {
+        return sheet;
+    }
+
+    /**
+     * Columnas, metadata y/o vessel/IMO/cotización en un solo recorrido de la cabecera
+     */
+    public HeaderRegionScanner.Result scan(String brokerName, boolean columns, boolean metadata,
+                                           boolean quotationInfo) {
+        return HeaderRegionScanner.scan(sheet, brokerName, file.getName(), columns, metadata, quotationInfo);
+    }
+
+    public ColumnDetector.ColumnMapping detectColumns(String brokerName) {
+        return ColumnDetector.detectColumns(sheet, brokerName);
+    }
+
+    public List<BrokerMetadataExtractor.MetadataField> extractMetadata(String brokerName) {
+        return BrokerMetadataExtractor.extractMetadata(sheet, brokerName);
+    }
+
+    public QuotationInfo extractQuotationInfo(String brokerName) {
+        return QuotationInfoExtractor.extract(sheet, brokerName, file.getName());
+    }
+
+    /**
+     * Estilo de una celda de la hoja (vacío si la celda no existe)
+     */
+    public CellStyleInfo getCellStyle(int rowIdx, int colIdx) {
+        Row row = sheet.getRow(rowIdx);
+        return CellStyleInfo.fromCell(row != null ? row.getCell(colIdx) : null);
+    }
+
+    public void close() throws IOException {
+        workbook.close();
+    }
+}
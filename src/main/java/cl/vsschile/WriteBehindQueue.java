@@ -0,0 +1,419 @@
+package cl.vsschile;
+
+import java.sql.Connection;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Escritura diferida en la base de datos (write-behind).
+ *
+ * Quien produce datos encola comandos de escritura y sigue trabajando: sólo
+ * espera si la cola (acotada) está llena. Hilos escritores dedicados sacan
+ * los comandos, los agrupan por Writer (uno por tabla o tipo de escritura) y
+ * escriben cada grupo de una vez, con una conexión del pool, cuando junta
+ * batchSize comandos o cuando el más antiguo lleva maxDelay esperando.
+ *
+ * submit() retorna un futuro por comando que se completa cuando su grupo
+ * quedó escrito (o falló); el Writer puede dejar en el comando lo que generó
+ * la BD, como los IDs. flush() espera a que todo lo encolado antes quede
+ * escrito y close() además detiene los escritores.
+ *
+ * Los grupos de un mismo Writer pueden escribirse en paralelo desde varios
+ * hilos: comandos que dependen uno de otro van en un solo comando o se
+ * encadenan con su futuro.
+ *
+ * Cualquier error de un Writer (incluso un Error) falla sólo su grupo. Si un
+ * escritor termina por otra causa (interrupción, error fuera del Writer) la
+ * cola se detiene: falla lo pendiente y lo que se envíe después, y flush()
+ * y close() vuelven en vez de esperar a escritores que ya no están.
+ */
+public class WriteBehindQueue {
+
+    public static final int DEFAULT_CAPACITY = 1024;
+    public static final int DEFAULT_BATCH_SIZE = 200;
+    public static final long DEFAULT_MAX_DELAY_MILLIS = 500;
+
+    /**
+     * Escritura de un tipo de comando
+     */
+    public interface Writer<C> {
+        /**
+         * Escribe un grupo de comandos. Retorna los que fallaron con su error
+         * (o null si ninguno); una excepción hace fallar a todo el grupo.
+         */
+        Map<C, Exception> write(Connection conn, List<C> commands) throws Exception;
+    }
+
+    /**
+     * Métricas de la cola en un instante
+     */
+    public static class Stats {
+        /** Comandos encolados y en grupos aún no escritos */
+        public int pending;
+        public long submitted;
+        public long written;
+        public long failed;
+        /** Grupos escritos (cada uno con una conexión y, según el Writer, una transacción) */
+        public long flushes;
+        /** Envíos que debieron esperar porque la cola estaba llena */
+        public long blocked;
+
+        public String toString() {
+            return String.format("Escritura diferida: %d comandos (%d escritos, %d con error, %d pendientes) " +
+                "en %d grupos; %d envíos con cola llena",
+                submitted, written, failed, pending, flushes, blocked);
+        }
+    }
+
+    /**
+     * Comando encolado con su Writer y su futuro
+     */
+    private static class Pending {
+        final Writer<Object> writer;
+        final Object command;
+        final CompletableFuture<Object> future;
+
+        Pending(Writer<Object> writer, Object command, CompletableFuture<Object> future) {
+            this.writer = writer;
+            this.command = command;
+            this.future = future;
+        }
+    }
+
+    /** Marcas de flush() y close(): cada escritor toma una */
+    private static final class Marker extends Pending {
+        final CountDownLatch flushed;
+        final CountDownLatch taken;
+        final boolean stop;
+
+        Marker(int writers, boolean stop) {
+            super(null, null, null);
+            this.flushed = new CountDownLatch(writers);
+            this.taken = new CountDownLatch(writers);
+            this.stop = stop;
+        }
+    }
+
+    private final ConnectionPool pool;
+
+    private int capacity = DEFAULT_CAPACITY;
+    private int writers = 1;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private long maxDelayMillis = DEFAULT_MAX_DELAY_MILLIS;
+
+    private volatile BlockingQueue<Pending> queue;
+    private List<Thread> threads;
+    private volatile boolean closed;
+    /** Causa por la que se detuvo un escritor; desde ahí la cola sólo falla comandos */
+    private volatile Throwable failure;
+
+    /** Serializa flush() y close(): las marcas de dos llamadas no deben mezclarse */
+    private final Object signalLock = new Object();
+
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong flushes = new AtomicLong();
+    private final AtomicLong blocked = new AtomicLong();
+
+    public WriteBehindQueue(ConnectionPool pool) {
+        this.pool = pool;
+    }
+
+    /** Comandos en cola antes de que submit() espere (antes del primer envío) */
+    public WriteBehindQueue capacity(int capacity) {
+        this.capacity = Math.max(1, capacity);
+        return this;
+    }
+
+    /** Hilos escritores, cada uno con su conexión mientras escribe (antes del primer envío) */
+    public WriteBehindQueue writers(int writers) {
+        this.writers = Math.max(1, writers);
+        return this;
+    }
+
+    /** Comandos por grupo */
+    public WriteBehindQueue batchSize(int batchSize) {
+        this.batchSize = Math.max(1, batchSize);
+        return this;
+    }
+
+    /** Espera máxima de un comando antes de escribir su grupo incompleto */
+    public WriteBehindQueue maxDelay(long millis) {
+        this.maxDelayMillis = Math.max(1, millis);
+        return this;
+    }
+
+    /**
+     * Encola un comando; espera sólo si la cola está llena. El futuro se
+     * completa con el mismo comando cuando queda escrito.
+     */
+    @SuppressWarnings("unchecked")
+    public <C> CompletableFuture<C> submit(Writer<C> writer, C command) throws InterruptedException {
+        CompletableFuture<C> future = new CompletableFuture<C>();
+        Pending pending = new Pending((Writer<Object>) writer, command, (CompletableFuture<Object>) future);
+
+        BlockingQueue<Pending> q = start();
+        submitted.incrementAndGet();
+        if (failure != null) {
+            complete(Collections.singletonList(pending), null, failure);
+            return future;
+        }
+        if (!q.offer(pending)) {
+            blocked.incrementAndGet();
+            put(q, pending);
+        }
+        // Los escritores pudieron detenerse mientras se encolaba
+        if (failure != null) {
+            drain();
+        }
+        return future;
+    }
+
+    /**
+     * Espera a que todo lo encolado hasta ahora quede escrito
+     */
+    public void flush() throws InterruptedException {
+        synchronized (signalLock) {
+            if (queue == null || closed) {
+                return;
+            }
+            signal(false);
+        }
+    }
+
+    /**
+     * Escribe lo pendiente y detiene los escritores
+     */
+    public void close() throws InterruptedException {
+        synchronized (signalLock) {
+            BlockingQueue<Pending> q;
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                q = queue;
+            }
+            if (q == null) {
+                return;
+            }
+            signal(true);
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        }
+    }
+
+    public Stats getStats() {
+        Stats stats = new Stats();
+        stats.submitted = submitted.get();
+        stats.written = written.get();
+        stats.failed = failed.get();
+        stats.pending = (int) Math.max(0, stats.submitted - stats.written - stats.failed);
+        stats.flushes = flushes.get();
+        stats.blocked = blocked.get();
+        return stats;
+    }
+
+    private BlockingQueue<Pending> start() {
+        BlockingQueue<Pending> q = queue;
+        if (q != null && !closed) {
+            return q;
+        }
+        synchronized (this) {
+            return startWriters();
+        }
+    }
+
+    private BlockingQueue<Pending> startWriters() {
+        if (closed) {
+            throw new IllegalStateException("La cola de escritura está cerrada");
+        }
+        if (queue == null) {
+            queue = new ArrayBlockingQueue<Pending>(capacity);
+            threads = new ArrayList<Thread>();
+            for (int i = 1; i <= writers; i++) {
+                Thread thread = new Thread(new Runnable() {
+                    public void run() {
+                        work();
+                    }
+                }, "write-behind-" + i);
+                thread.setDaemon(true);
+                thread.start();
+                threads.add(thread);
+            }
+        }
+        return queue;
+    }
+
+    /**
+     * Una marca por escritor, detrás de todo lo encolado; vuelve cuando
+     * todos escribieron sus grupos
+     */
+    private void signal(boolean stop) throws InterruptedException {
+        Marker marker = new Marker(writers, stop);
+        for (int i = 0; i < writers; i++) {
+            put(queue, marker);
+        }
+        if (failure != null) {
+            drain();
+        }
+        marker.flushed.await();
+    }
+
+    /**
+     * Encola esperando espacio, salvo que los escritores se hayan detenido:
+     * entonces vacía la cola para que el comando entre y falle
+     */
+    private void put(BlockingQueue<Pending> q, Pending pending) throws InterruptedException {
+        while (!q.offer(pending, maxDelayMillis, TimeUnit.MILLISECONDS)) {
+            if (failure != null) {
+                drain();
+            }
+        }
+    }
+
+    private void work() {
+        // Grupos pendientes del hilo, en orden de llegada del primer comando
+        Map<Writer<Object>, List<Pending>> groups = new LinkedHashMap<Writer<Object>, List<Pending>>();
+        // Desde cuándo el hilo tiene grupos sin escribir. Se mide al sacar el
+        // comando de la cola, no al encolarlo: con la cola atrasada los
+        // comandos ya llegan viejos y los grupos deben llenarse igual.
+        long started = 0;
+        try {
+            while (true) {
+                if (failure != null) {
+                    abort(groups, failure);
+                    return;
+                }
+                long wait = groups.isEmpty()
+                    ? maxDelayMillis : started + maxDelayMillis - System.currentTimeMillis();
+                Pending pending = wait > 0 ? queue.poll(wait, TimeUnit.MILLISECONDS) : queue.poll();
+
+                if (pending instanceof Marker) {
+                    Marker marker = (Marker) pending;
+                    writeAll(groups);
+                    marker.flushed.countDown();
+                    // Cada escritor toma una sola marca: espera a que los demás tomen las suyas
+                    marker.taken.countDown();
+                    marker.taken.await();
+                    if (marker.stop) {
+                        return;
+                    }
+                    continue;
+                }
+
+                if (pending != null) {
+                    if (groups.isEmpty()) {
+                        started = System.currentTimeMillis();
+                    }
+                    List<Pending> group = groups.get(pending.writer);
+                    if (group == null) {
+                        group = new ArrayList<Pending>();
+                        groups.put(pending.writer, group);
+                    }
+                    group.add(pending);
+                    if (group.size() >= batchSize) {
+                        groups.remove(pending.writer);
+                        write(pending.writer, group);
+                    }
+                }
+                // Con la cola siempre con comandos, los grupos vencidos también se escriben
+                if (!groups.isEmpty() && System.currentTimeMillis() - started >= maxDelayMillis) {
+                    writeAll(groups);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            abort(groups, e);
+        } catch (RuntimeException e) {
+            abort(groups, e);
+        } catch (Error e) {
+            abort(groups, e);
+            throw e;
+        }
+    }
+
+    /**
+     * El escritor termina sin una marca de close(): detiene la cola y falla
+     * los grupos del hilo y todo lo encolado
+     */
+    private void abort(Map<Writer<Object>, List<Pending>> groups, Throwable cause) {
+        synchronized (this) {
+            if (failure == null) {
+                failure = cause;
+            }
+        }
+        for (List<Pending> group : groups.values()) {
+            complete(group, null, cause);
+        }
+        groups.clear();
+        drain();
+    }
+
+    /**
+     * Falla lo encolado tras detenerse la cola; las marcas cuentan como
+     * tomadas para que flush(), close() y los demás escritores no esperen
+     */
+    private void drain() {
+        Pending pending;
+        while ((pending = queue.poll()) != null) {
+            if (pending instanceof Marker) {
+                Marker marker = (Marker) pending;
+                marker.flushed.countDown();
+                marker.taken.countDown();
+            } else {
+                complete(Collections.singletonList(pending), null, failure);
+            }
+        }
+    }
+
+    private void writeAll(Map<Writer<Object>, List<Pending>> groups) {
+        for (Map.Entry<Writer<Object>, List<Pending>> entry : groups.entrySet()) {
+            write(entry.getKey(), entry.getValue());
+        }
+        groups.clear();
+    }
+
+    /**
+     * Escribe un grupo y completa sus futuros
+     */
+    private void write(Writer<Object> writer, List<Pending> group) {
+        List<Object> commands = new ArrayList<Object>(group.size());
+        for (Pending pending : group) {
+            commands.add(pending.command);
+        }
+
+        Map<Object, Exception> failures;
+        Throwable error = null;
+        try {
+            Connection conn = pool.getConnection();
+            try {
+                failures = writer.write(conn, commands);
+            } finally {
+                conn.close();
+            }
+        } catch (Throwable e) {
+            // También un Error del Writer: el grupo falla, el escritor sigue
+            failures = null;
+            error = e;
+        }
+        flushes.incrementAndGet();
+        complete(group, failures, error);
+    }
+
+    private void complete(List<Pending> group, Map<Object, Exception> failures, Throwable error) {
+        for (Pending pending : group) {
+            Throwable e = error != null ? error : failures != null ? failures.get(pending.command) : null;
+            if (e != null) {
+                failed.incrementAndGet();
+                pending.future.completeExceptionally(e);
+            } else {
+                written.incrementAndGet();
+                pending.future.complete(pending.command);
+            }
+        }
+    }
+}
@@ -0,0 +1,314 @@
+package cl.vsschile;
+
+import org.apache.poi.hssf.eventusermodel.AbortableHSSFListener;
+import org.apache.poi.hssf.eventusermodel.HSSFEventFactory;
+import org.apache.poi.hssf.eventusermodel.HSSFRequest;
+import org.apache.poi.hssf.eventusermodel.HSSFUserException;
+import org.apache.poi.hssf.model.InternalWorkbook;
+import org.apache.poi.hssf.record.*;
+import org.apache.poi.hssf.record.Record;
+import org.apache.poi.hssf.usermodel.HSSFPalette;
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.poifs.filesystem.POIFSFileSystem;
+import org.apache.poi.ss.usermodel.*;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.util.*;
+
+/**
+ * Lectura por registros (API de eventos HSSF) de las primeras filas de la
+ * primera hoja de un .xls (BIFF8).
+ *
+ * Sólo procesa los registros globales del libro (textos compartidos, formatos,
+ * fuentes, estilos, paleta) y el bloque BOF…EOF de la primera hoja, y aborta
+ * apenas aparece una celda fuera de la ventana de filas pedida. El resultado
+ * es una hoja en memoria con esas filas, valores y estilos, equivalente a la
+ * que entrega XlsxHeaderReader para .xlsx.
+ */
+public class XlsHeaderReader {
+
+    /**
+     * Lee las primeras maxRows filas de la primera hoja del archivo.
+     * La hoja retornada pertenece a un libro nuevo que el llamador debe cerrar
+     * (sheet.getWorkbook().close()).
+     */
+    public static Sheet readHeaderRows(File file, int maxRows) throws Exception {
+        POIFSFileSystem fs = new POIFSFileSystem(file, true);
+        try {
+            return readHeaderRows(fs, maxRows);
+        } finally {
+            fs.close();
+        }
+    }
+
+    /**
+     * Igual que readHeaderRows(File, int) pero sobre un sistema de archivos POIFS ya abierto
+     */
+    public static Sheet readHeaderRows(POIFSFileSystem fs, int maxRows) throws Exception {
+        HSSFWorkbook target = new HSSFWorkbook();
+        Sheet sheet = target.createSheet();
+
+        HeaderListener listener = new HeaderListener(sheet, maxRows);
+        HSSFRequest request = new HSSFRequest();
+        request.addListenerForAllRecords(listener);
+
+        try {
+            new HSSFEventFactory().abortableProcessWorkbookEvents(request, fs);
+        } catch (HSSFUserException e) {
+            throw new Exception("Error leyendo registros del libro: " + e.getMessage(), e);
+        }
+
+        return sheet;
+    }
+
+    /**
+     * Listener que reconstruye la ventana de cabecera de la primera hoja
+     */
+    private static class HeaderListener extends AbortableHSSFListener {
+
+        private static final short CONTINUE = 0;
+        private static final short ABORT = 1;
+
+        private final Sheet sheet;
+        private final int maxRows;
+
+        // Registros globales del libro
+        private SSTRecord sst;
+        private final List<ExtendedFormatRecord> xfRecords = new ArrayList<ExtendedFormatRecord>();
+        private final List<FontRecord> fontRecords = new ArrayList<FontRecord>();
+        private final Map<Integer, String> formats = new HashMap<Integer, String>();
+        private final Map<Integer, CellStyle> styleCache = new HashMap<Integer, CellStyle>();
+
+        // Estado del recorrido
+        private int depth = 0;
+        private int sheetDepth = -1;
+        private Cell pendingFormulaCell;
+
+        HeaderListener(Sheet sheet, int maxRows) {
+            this.sheet = sheet;
+            this.maxRows = maxRows;
+        }
+
+        @Override
+        public short abortableProcessRecord(Record record) {
+            switch (record.getSid()) {
+                case BOFRecord.sid:
+                    depth++;
+                    if (sheetDepth < 0 && ((BOFRecord) record).getType() == BOFRecord.TYPE_WORKSHEET) {
+                        sheetDepth = depth;
+                    }
+                    return CONTINUE;
+                case EOFRecord.sid:
+                    depth--;
+                    // Fin del bloque de la primera hoja: el resto del archivo no interesa
+                    return sheetDepth >= 0 && depth < sheetDepth ? ABORT : CONTINUE;
+                case SSTRecord.sid:
+                    sst = (SSTRecord) record;
+                    return CONTINUE;
+                case ExtendedFormatRecord.sid:
+                    xfRecords.add((ExtendedFormatRecord) record);
+                    return CONTINUE;
+                case FontRecord.sid:
+                    fontRecords.add((FontRecord) record);
+                    return CONTINUE;
+                case FormatRecord.sid:
+                    FormatRecord format = (FormatRecord) record;
+                    formats.put(format.getIndexCode(), format.getFormatString());
+                    return CONTINUE;
+                case PaletteRecord.sid:
+                    applyPalette((PaletteRecord) record);
+                    return CONTINUE;
+                case DateWindow1904Record.sid:
+                    if (((DateWindow1904Record) record).getWindowing() == 1) {
+                        setDate1904((HSSFWorkbook) sheet.getWorkbook());
+                    }
+                    return CONTINUE;
+                default:
+                    break;
+            }
+
+            // Registros de la hoja: sólo los del primer bloque de hoja
+            if (sheetDepth < 0 || depth != sheetDepth) {
+                return CONTINUE;
+            }
+
+            if (record instanceof RowRecord) {
+                int rowNum = ((RowRecord) record).getRowNumber();
+                if (rowNum < maxRows) {
+                    getOrCreateRow(rowNum);
+                }
+                return CONTINUE;
+            }
+
+            if (record instanceof StringRecord) {
+                // Resultado de texto de la fórmula anterior
+                if (pendingFormulaCell != null) {
+                    pendingFormulaCell.setCellValue(((StringRecord) record).getString());
+                    pendingFormulaCell = null;
+                }
+                return CONTINUE;
+            }
+
+            if (record instanceof MulBlankRecord) {
+                MulBlankRecord blanks = (MulBlankRecord) record;
+                if (blanks.getRow() >= maxRows) {
+                    return ABORT;
+                }
+                for (int i = 0; i < blanks.getNumColumns(); i++) {
+                    createCell(blanks.getRow(), blanks.getFirstColumn() + i, blanks.getXFAt(i));
+                }
+                return CONTINUE;
+            }
+
+            if (record instanceof CellValueRecordInterface) {
+                CellValueRecordInterface cellRecord = (CellValueRecordInterface) record;
+                // Las celdas vienen ordenadas por fila: la primera fuera de la ventana corta la lectura
+                if (cellRecord.getRow() >= maxRows) {
+                    return ABORT;
+                }
+                addCell(record, cellRecord);
+            }
+
+            return CONTINUE;
+        }
+
+        private void addCell(Record record, CellValueRecordInterface cellRecord) {
+            Cell cell = createCell(cellRecord.getRow(), cellRecord.getColumn(), cellRecord.getXFIndex());
+            pendingFormulaCell = null;
+
+            if (record instanceof LabelSSTRecord) {
+                int index = ((LabelSSTRecord) record).getSSTIndex();
+                if (sst != null) {
+                    cell.setCellValue(sst.getString(index).getString());
+                }
+            } else if (record instanceof LabelRecord) {
+                cell.setCellValue(((LabelRecord) record).getValue());
+            } else if (record instanceof NumberRecord) {
+                cell.setCellValue(((NumberRecord) record).getValue());
+            } else if (record instanceof BoolErrRecord) {
+                BoolErrRecord boolErr = (BoolErrRecord) record;
+                if (boolErr.isBoolean()) {
+                    cell.setCellValue(boolErr.getBooleanValue());
+                }
+            } else if (record instanceof FormulaRecord) {
+                // Las fórmulas se copian con su último valor calculado
+                FormulaRecord formula = (FormulaRecord) record;
+                if (formula.hasCachedResultString()) {
+                    pendingFormulaCell = cell;
+                } else if (formula.getCachedResultType() == Cell.CELL_TYPE_NUMERIC) {
+                    cell.setCellValue(formula.getValue());
+                } else if (formula.getCachedResultType() == Cell.CELL_TYPE_BOOLEAN) {
+                    cell.setCellValue(formula.getCachedBooleanValue());
+                }
+            }
+        }
+
+        /**
+         * Marca el libro destino con el sistema de fechas 1904 del original:
+         * el registro DATEWINDOW1904 y el indicador que InternalWorkbook lee
+         * al cargar un libro (sin setter público, de ahí la reflexión)
+         */
+        private static void setDate1904(HSSFWorkbook target) {
+            InternalWorkbook workbook = target.getInternalWorkbook();
+            DateWindow1904Record window = (DateWindow1904Record) workbook.findFirstRecordBySid(DateWindow1904Record.sid);
+            if (window != null) {
+                window.setWindowing((short) 1);
+            }
+            try {
+                Field flag = InternalWorkbook.class.getDeclaredField("uses1904datewindowing");
+                flag.setAccessible(true);
+                flag.setBoolean(workbook, true);
+            } catch (Exception e) {
+                throw new IllegalStateException("No se pudo marcar el libro con fechas 1904", e);
+            }
+        }
+
+        private Row getOrCreateRow(int rowNum) {
+            Row row = sheet.getRow(rowNum);
+            if (row == null) {
+                row = sheet.createRow(rowNum);
+            }
+            return row;
+        }
+
+        private Cell createCell(int rowNum, int column, short xfIndex) {
+            Cell cell = getOrCreateRow(rowNum).createCell(column);
+            cell.setCellStyle(targetStyle(xfIndex));
+            return cell;
+        }
+
+        /**
+         * Reconstruye (una sola vez por índice XF) el estilo original en el libro destino
+         */
+        private CellStyle targetStyle(int xfIndex) {
+            CellStyle style = styleCache.get(xfIndex);
+            if (style != null) {
+                return style;
+            }
+
+            Workbook wb = sheet.getWorkbook();
+            style = wb.createCellStyle();
+
+            if (xfIndex < xfRecords.size()) {
+                ExtendedFormatRecord xf = xfRecords.get(xfIndex);
+
+                style.setFillForegroundColor(xf.getFillForeground());
+                style.setFillBackgroundColor(xf.getFillBackground());
+                style.setFillPattern(FillPatternType.forInt(xf.getAdtlFillPattern()));
+                style.setBorderTop(BorderStyle.valueOf(xf.getBorderTop()));
+                style.setBorderBottom(BorderStyle.valueOf(xf.getBorderBottom()));
+                style.setBorderLeft(BorderStyle.valueOf(xf.getBorderLeft()));
+                style.setBorderRight(BorderStyle.valueOf(xf.getBorderRight()));
+
+                String formatString = formats.get((int) xf.getFormatIndex());
+                if (formatString == null) {
+                    formatString = BuiltinFormats.getBuiltinFormat(xf.getFormatIndex());
+                }
+                if (formatString != null) {
+                    style.setDataFormat(wb.createDataFormat().getFormat(formatString));
+                }
+
+                FontRecord fontRecord = getFontRecord(xf.getFontIndex());
+                if (fontRecord != null) {
+                    Font font = wb.createFont();
+                    font.setFontName(fontRecord.getFontName());
+                    font.setFontHeight(fontRecord.getFontHeight());
+                    font.setBold(fontRecord.getBoldWeight() == 0x2bc);
+                    font.setItalic(fontRecord.isItalic());
+                    font.setStrikeout(fontRecord.isStruckout());
+                    font.setUnderline(fontRecord.getUnderline());
+                    font.setColor(fontRecord.getColorPaletteIndex());
+                    style.setFont(font);
+                }
+            }
+
+            styleCache.put(xfIndex, style);
+            return style;
+        }
+
+        /**
+         * Los índices de fuente HSSF saltan el 4 (compatibilidad con Excel antiguo)
+         */
+        private FontRecord getFontRecord(int fontIndex) {
+            int position = fontIndex > 4 ? fontIndex - 1 : fontIndex;
+            if (fontIndex == 4 || position >= fontRecords.size()) {
+                return null;
+            }
+            return fontRecords.get(position);
+        }
+
+        /**
+         * Copia la paleta personalizada del archivo al libro destino
+         */
+        private void applyPalette(PaletteRecord paletteRecord) {
+            HSSFPalette palette = ((HSSFWorkbook) sheet.getWorkbook()).getCustomPalette();
+            for (short index = PaletteRecord.FIRST_COLOR_INDEX; index < 64; index++) {
+                byte[] rgb = paletteRecord.getColor(index);
+                if (rgb != null) {
+                    palette.setColorAtIndex(index, rgb[0], rgb[1], rgb[2]);
+                }
+            }
+        }
+    }
+}
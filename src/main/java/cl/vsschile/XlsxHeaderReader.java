@@ -0,0 +1,275 @@
+package cl.vsschile;
+
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.ss.usermodel.*;
+import org.apache.poi.util.SAXHelper;
+import org.apache.poi.xssf.eventusermodel.ReadOnlySharedStringsTable;
+import org.apache.poi.xssf.eventusermodel.XSSFReader;
+import org.apache.poi.xssf.model.StylesTable;
+import org.apache.poi.xssf.usermodel.XSSFCellStyle;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.openxmlformats.schemas.spreadsheetml.x2006.main.CTWorkbook;
+import org.openxmlformats.schemas.spreadsheetml.x2006.main.CTWorkbookPr;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.*;
+
+/**
+ * Lectura en streaming (SAX) de las primeras filas de la primera hoja de un .xlsx.
+ *
+ * Recorre el XML de la hoja con el API de eventos de POI y se detiene apenas
+ * sale de la ventana de filas pedida, sin cargar las líneas de ítems. El
+ * resultado es una hoja en memoria que contiene sólo esas filas, con sus
+ * valores y estilos (colores, fuentes, formato de fecha) copiados, de modo que
+ * ColumnDetector y los demás extractores funcionan igual que sobre el libro completo.
+ */
+public class XlsxHeaderReader {
+
+    /**
+     * Lee las primeras maxRows filas de la primera hoja del archivo.
+     * La hoja retornada pertenece a un libro nuevo que el llamador debe cerrar
+     * (sheet.getWorkbook().close()).
+     */
+    public static Sheet readHeaderRows(File file, int maxRows) throws Exception {
+        OPCPackage pkg = OPCPackage.open(file, PackageAccess.READ);
+        try {
+            return readHeaderRows(pkg, maxRows);
+        } finally {
+            pkg.revert();
+        }
+    }
+
+    /**
+     * Igual que readHeaderRows(File, int) pero sobre un paquete ya abierto
+     */
+    public static Sheet readHeaderRows(OPCPackage pkg, int maxRows) throws Exception {
+        XSSFReader reader = new XSSFReader(pkg);
+        StylesTable styles = reader.getStylesTable();
+        ReadOnlySharedStringsTable strings = new ReadOnlySharedStringsTable(pkg);
+
+        XSSFWorkbook target = new XSSFWorkbook();
+        // Sistema de fechas del libro original: sin él las fechas de un libro 1904 saldrían 4 años antes
+        if (isDate1904(reader)) {
+            CTWorkbook workbook = target.getCTWorkbook();
+            CTWorkbookPr workbookPr = workbook.isSetWorkbookPr() ? workbook.getWorkbookPr() : workbook.addNewWorkbookPr();
+            workbookPr.setDate1904(true);
+        }
+        // El tema debe estar presente antes de crear estilos para resolver colores de tema
+        if (styles.getTheme() != null) {
+            target.getStylesSource().setTheme(styles.getTheme());
+        }
+        Sheet sheet = target.createSheet();
+
+        Iterator<InputStream> sheets = reader.getSheetsData();
+        if (!sheets.hasNext()) {
+            return sheet;
+        }
+
+        InputStream sheetData = sheets.next();
+        try {
+            HeaderHandler handler = new HeaderHandler(sheet, styles, strings, maxRows);
+            XMLReader parser = SAXHelper.newXMLReader();
+            parser.setContentHandler(handler);
+            try {
+                parser.parse(new InputSource(sheetData));
+            } catch (StopParsingException e) {
+                // Ventana de cabecera completa: no se lee el resto de la hoja
+            }
+        } finally {
+            sheetData.close();
+        }
+
+        return sheet;
+    }
+
+    /**
+     * Lee el atributo date1904 de workbookPr en workbook.xml (al comienzo del
+     * archivo: el parseo se corta ahí)
+     */
+    private static boolean isDate1904(XSSFReader reader) throws Exception {
+        final boolean[] date1904 = new boolean[1];
+        InputStream workbookData = reader.getWorkbookData();
+        try {
+            XMLReader parser = SAXHelper.newXMLReader();
+            parser.setContentHandler(new DefaultHandler() {
+                @Override
+                public void startElement(String uri, String localName, String qName, Attributes attrs)
+                        throws SAXException {
+                    if ("workbookPr".equals(localName)) {
+                        String value = attrs.getValue("date1904");
+                        date1904[0] = "1".equals(value) || "true".equalsIgnoreCase(value);
+                        throw new StopParsingException();
+                    } else if ("sheets".equals(localName)) {
+                        // workbookPr va antes de sheets: sin él el libro usa 1900
+                        throw new StopParsingException();
+                    }
+                }
+            });
+            try {
+                parser.parse(new InputSource(workbookData));
+            } catch (StopParsingException e) {
+                // Atributo encontrado (o ausente)
+            }
+        } finally {
+            workbookData.close();
+        }
+        return date1904[0];
+    }
+
+    /**
+     * Señal para cortar el parseo SAX una vez cubierta la ventana de filas
+     */
+    private static class StopParsingException extends SAXException {
+        private static final long serialVersionUID = 1L;
+
+        StopParsingException() {
+            super("Ventana de cabecera completa");
+        }
+    }
+
+    /**
+     * Handler SAX que copia las celdas de las primeras filas a la hoja destino
+     */
+    private static class HeaderHandler extends DefaultHandler {
+
+        private final Sheet sheet;
+        private final StylesTable sourceStyles;
+        private final ReadOnlySharedStringsTable strings;
+        private final int maxRows;
+        private final Map<Integer, CellStyle> styleCache = new HashMap<Integer, CellStyle>();
+
+        private Row currentRow;
+        private int nextRowIndex = 0;
+
+        private String cellRef;
+        private String cellType;
+        private int cellStyle;
+        private int nextColumnIndex = 0;
+        private boolean inValue;
+        private final StringBuilder value = new StringBuilder();
+        private boolean hasValue;
+
+        HeaderHandler(Sheet sheet, StylesTable sourceStyles, ReadOnlySharedStringsTable strings, int maxRows) {
+            this.sheet = sheet;
+            this.sourceStyles = sourceStyles;
+            this.strings = strings;
+            this.maxRows = maxRows;
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attrs)
+                throws SAXException {
+            if ("row".equals(localName)) {
+                String r = attrs.getValue("r");
+                int rowIndex = r != null ? Integer.parseInt(r) - 1 : nextRowIndex;
+                if (rowIndex >= maxRows) {
+                    throw new StopParsingException();
+                }
+                currentRow = sheet.createRow(rowIndex);
+                nextRowIndex = rowIndex + 1;
+                nextColumnIndex = 0;
+            } else if ("c".equals(localName)) {
+                cellRef = attrs.getValue("r");
+                cellType = attrs.getValue("t");
+                String s = attrs.getValue("s");
+                cellStyle = s != null ? Integer.parseInt(s) : 0;
+                value.setLength(0);
+                hasValue = false;
+            } else if ("v".equals(localName) || "t".equals(localName)) {
+                // <v> valor, <t> texto de una cadena inline (<is><t>)
+                inValue = true;
+                hasValue = true;
+            }
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int length) {
+            if (inValue) {
+                value.append(ch, start, length);
+            }
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) throws SAXException {
+            if ("v".equals(localName) || "t".equals(localName)) {
+                inValue = false;
+            } else if ("c".equals(localName)) {
+                addCell();
+            } else if ("row".equals(localName)) {
+                currentRow = null;
+            } else if ("sheetData".equals(localName)) {
+                throw new StopParsingException();
+            }
+        }
+
+        private void addCell() {
+            if (currentRow == null) return;
+
+            int columnIndex = cellRef != null ? columnIndexOf(cellRef) : nextColumnIndex;
+            nextColumnIndex = columnIndex + 1;
+
+            Cell cell = currentRow.createCell(columnIndex);
+            cell.setCellStyle(targetStyle(cellStyle));
+
+            if (!hasValue) {
+                return;
+            }
+
+            if ("s".equals(cellType)) {
+                cell.setCellValue(strings.getEntryAt(Integer.parseInt(value.toString().trim())));
+            } else if ("inlineStr".equals(cellType) || "str".equals(cellType)) {
+                // Las fórmulas de texto se copian con su último valor calculado
+                cell.setCellValue(value.toString());
+            } else if ("b".equals(cellType)) {
+                cell.setCellValue("1".equals(value.toString().trim()));
+            } else if ("e".equals(cellType)) {
+                // Errores (#N/A, #REF!...) se dejan como celda vacía
+                return;
+            } else {
+                try {
+                    cell.setCellValue(Double.parseDouble(value.toString().trim()));
+                } catch (NumberFormatException e) {
+                    cell.setCellValue(value.toString());
+                }
+            }
+        }
+
+        /**
+         * Copia (una sola vez por índice) el estilo original al libro destino
+         */
+        private CellStyle targetStyle(int sourceIndex) {
+            CellStyle style = styleCache.get(sourceIndex);
+            if (style == null) {
+                style = sheet.getWorkbook().createCellStyle();
+                if (sourceIndex < sourceStyles.getNumCellStyles()) {
+                    XSSFCellStyle source = sourceStyles.getStyleAt(sourceIndex);
+                    if (source != null) {
+                        style.cloneStyleFrom(source);
+                    }
+                }
+                styleCache.put(sourceIndex, style);
+            }
+            return style;
+        }
+
+        /**
+         * Convierte la referencia "AB12" en el índice de columna 0-based
+         */
+        private static int columnIndexOf(String ref) {
+            int col = 0;
+            for (int i = 0; i < ref.length(); i++) {
+                char c = ref.charAt(i);
+                if (c < 'A' || c > 'Z') break;
+                col = col * 26 + (c - 'A' + 1);
+            }
+            return col - 1;
+        }
+    }
+}
@@ -13,9 +13,17 @@ CREATE TABLE IF NOT EXISTS cotizaciones_archivos (
     numero_cotizacion VARCHAR(255),
     fecha_archivo DATE,
     fecha_procesado TIMESTAMP DEFAULT CURRENT_TIMESTAMP,
+    -- SHA-256 del contenido; las copias idénticas apuntan al original y no guardan colores
+    content_hash VARCHAR(64),
+    duplicado_de INTEGER REFERENCES cotizaciones_archivos(archivo_id) ON DELETE SET NULL,
     CONSTRAINT uk_broker_archivo UNIQUE(broker_id, nombre_archivo)
 );
 
+-- Bases creadas antes de la deduplicación por contenido
+ALTER TABLE cotizaciones_archivos ADD COLUMN IF NOT EXISTS content_hash VARCHAR(64);
+ALTER TABLE cotizaciones_archivos ADD COLUMN IF NOT EXISTS duplicado_de INTEGER 
+    REFERENCES cotizaciones_archivos(archivo_id) ON DELETE SET NULL;
+
 -- Tabla para almacenar colores específicos de cada archivo
 CREATE TABLE IF NOT EXISTS archivo_colores (
     color_id SERIAL PRIMARY KEY,
@@ -39,6 +47,7 @@ CREATE TABLE IF NOT EXISTS archivo_colores (
 CREATE INDEX IF NOT EXISTS idx_archivo_broker ON cotizaciones_archivos(broker_id);
 CREATE INDEX IF NOT EXISTS idx_archivo_vessel ON cotizaciones_archivos(vessel_name);
 CREATE INDEX IF NOT EXISTS idx_archivo_imo ON cotizaciones_archivos(imo_number);
+CREATE INDEX IF NOT EXISTS idx_archivo_content_hash ON cotizaciones_archivos(content_hash);
 CREATE INDEX IF NOT EXISTS idx_colores_archivo ON archivo_colores(archivo_id);
 CREATE INDEX IF NOT EXISTS idx_colores_campo ON archivo_colores(campo_estandar);
 
@@ -58,7 +67,7 @@ SELECT
     COUNT(ac.color_id) FILTER (WHERE ac.es_negrita = TRUE) as columnas_negrita
 FROM cotizaciones_archivos ca
 INNER JOIN brokers b ON ca.broker_id = b.broker_id
-LEFT JOIN archivo_colores ac ON ca.archivo_id = ac.archivo_id
+LEFT JOIN archivo_colores ac ON COALESCE(ca.duplicado_de, ca.archivo_id) = ac.archivo_id
 GROUP BY ca.archivo_id, b.broker_name, ca.nombre_archivo, 
          ca.vessel_name, ca.imo_number, ca.numero_cotizacion,
          ca.fecha_archivo, ca.fecha_procesado;
@@ -79,7 +88,7 @@ SELECT
     ac.tiene_borde,
     ac.fecha_deteccion
 FROM archivo_colores ac
-INNER JOIN cotizaciones_archivos ca ON ac.archivo_id = ca.archivo_id
+INNER JOIN cotizaciones_archivos ca ON ac.archivo_id = COALESCE(ca.duplicado_de, ca.archivo_id)
 INNER JOIN brokers b ON ca.broker_id = b.broker_id
 ORDER BY b.broker_name, ca.nombre_archivo, ac.indice_columna;
 
@@ -102,5 +111,6 @@ ORDER BY b.broker_name, ac.campo_estandar;
 
 -- Comentarios
 COMMENT ON TABLE cotizaciones_archivos IS 'Registro de cada archivo/planilla de cotización procesado';
+COMMENT ON COLUMN cotizaciones_archivos.duplicado_de IS 'Archivo original con el mismo contenido (sus colores aplican a éste)';
 COMMENT ON TABLE archivo_colores IS 'Colores y estilos específicos de cada archivo de cotización';
 COMMENT ON VIEW v_comparacion_colores_broker IS 'Muestra variaciones de color entre archivos del mismo broker';